@@ -0,0 +1,273 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.*;
+
+/*
+    Asynchronous writer for the per-user action log (server_data/<user>/log.txt).
+    
+    Request threads only enqueue a record. Users are hashed onto a fixed set of shards; each shard
+    owns a bounded queue and one writer thread that drains records in batches, groups them per user
+    and appends each group with a single write to a FileChannel kept open in a small LRU.
+    
+    Settings (system properties):
+        audit.shards        writer threads (default 2)
+        audit.queue         records per shard queue before request threads block (default 8192)
+        audit.flushMillis   longest a record waits before it is written (default 200)
+        audit.openFiles     log files kept open per shard (default 64)
+        audit.sync          none | shutdown | always - when written data is forced to disk (default shutdown)
+*/
+public class AuditLog {
+    private static final int SHARDS = Integer.getInteger("audit.shards", 2);
+    private static final int QUEUE_CAPACITY = Integer.getInteger("audit.queue", 8192);
+    private static final long FLUSH_MILLIS = Long.getLong("audit.flushMillis", 200);
+    private static final int OPEN_FILES = Integer.getInteger("audit.openFiles", 64);
+    private static final String SYNC = System.getProperty("audit.sync", "shutdown");
+    private static final int MAX_BATCH = 1024;
+    
+    private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static volatile CachedTimestamp lastTimestamp = new CachedTimestamp(0, "");
+    
+    private static final Shard[] shards = new Shard[SHARDS];
+    private static volatile boolean closed = false;
+    
+    static {
+        for (int i = 0; i < SHARDS; i++) {
+            shards[i] = new Shard(i);
+            shards[i].start();
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(AuditLog::shutdown, "audit-shutdown"));
+    }
+    
+    // Queue one action line; blocks only while the user's shard queue is full
+    public static void log(String username, String fileName, String action, String status) {
+        String line = fileName + "|" + timestamp() + "|" + action + "|" + status + "\n";
+        Record record = new Record(username, line, null);
+        Shard shard = shardFor(username);
+        if (closed) {
+            // Late records during shutdown are written inline so they are not lost
+            shard.writeLate(record);
+            return;
+        }
+        try {
+            shard.queue.put(record);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        if (closed) {
+            // Shutdown started while queueing, the writer may have drained for the last time already
+            shard.writeLate(null);
+        }
+    }
+    
+    // Wait until everything queued so far for this user is in log.txt (used before reading history)
+    public static void flush(String username) {
+        if (closed) return;
+        Shard shard = shardFor(username);
+        CountDownLatch done = new CountDownLatch(1);
+        try {
+            shard.queue.put(new Record(username, null, done));
+            if (closed) shard.writeLate(null);
+            done.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    // Drain every shard and close the open files, forcing them to disk unless audit.sync=none
+    public static void shutdown() {
+        if (closed) return;
+        closed = true;
+        // No interrupt: an interrupted thread closes any FileChannel it is writing to.
+        // The writers notice the flag within one flush interval.
+        for (Shard shard : shards) {
+            try {
+                shard.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+    
+    // Formatting once per second instead of once per record; the string is immutable so it is safe to share
+    private static String timestamp() {
+        long second = System.currentTimeMillis() / 1000;
+        CachedTimestamp cached = lastTimestamp;
+        if (cached.second != second) {
+            cached = new CachedTimestamp(second, LocalDateTime.now().format(TIMESTAMP));
+            lastTimestamp = cached;
+        }
+        return cached.text;
+    }
+    
+    private static Shard shardFor(String username) {
+        return shards[(username.hashCode() & 0x7fffffff) % SHARDS];
+    }
+    
+    private static class CachedTimestamp {
+        final long second;
+        final String text;
+        
+        CachedTimestamp(long second, String text) {
+            this.second = second;
+            this.text = text;
+        }
+    }
+    
+    // A log line, or a flush marker when done is set
+    private static class Record {
+        final String username;
+        final String line;
+        final CountDownLatch done;
+        
+        Record(String username, String line, CountDownLatch done) {
+            this.username = username;
+            this.line = line;
+            this.done = done;
+        }
+    }
+    
+    private static class Shard extends Thread {
+        final BlockingQueue<Record> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        
+        // Access-ordered so the least recently written log is closed first
+        private final LinkedHashMap<String, FileChannel> openFiles = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, FileChannel> eldest) {
+                if (size() > OPEN_FILES) {
+                    closeQuietly(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+        
+        Shard(int index) {
+            super("audit-writer-" + index);
+            setDaemon(true);
+        }
+        
+        @Override
+        public void run() {
+            List<Record> batch = new ArrayList<>();
+            while (!closed) {
+                try {
+                    Record first = queue.poll(FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+                    if (first == null) continue;
+                    batch.add(first);
+                    // Collect a burst for up to one flush interval so each user gets one write;
+                    // a flush marker or a full batch writes immediately
+                    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(FLUSH_MILLIS);
+                    while (first.done == null && batch.size() < MAX_BATCH) {
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0) break;
+                        Record next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                        if (next == null) break;
+                        batch.add(next);
+                        if (next.done != null) break;
+                        queue.drainTo(batch, MAX_BATCH - batch.size());
+                    }
+                    writeBatch(batch);
+                    batch.clear();
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+            batch.addAll(queue);
+            queue.clear();
+            writeBatch(batch);
+            closeAll();
+        }
+        
+        // Used once shutdown has started: waits for the writer to exit, then writes whatever
+        // was queued after its last drain, followed by record if given
+        void writeLate(Record record) {
+            try {
+                join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            synchronized (this) {
+                List<Record> late = new ArrayList<>();
+                queue.drainTo(late);
+                if (record != null) late.add(record);
+                if (late.isEmpty()) return;
+                writeBatch(late);
+                closeAll();
+            }
+        }
+        
+        private synchronized void closeAll() {
+            for (FileChannel channel : openFiles.values()) {
+                if (!SYNC.equals("none")) forceQuietly(channel);
+                closeQuietly(channel);
+            }
+            openFiles.clear();
+        }
+        
+        private synchronized void writeBatch(List<Record> batch) {
+            // Group lines per user, keeping their order
+            Map<String, StringBuilder> perUser = new LinkedHashMap<>();
+            List<CountDownLatch> flushed = new ArrayList<>();
+            for (Record record : batch) {
+                if (record.done != null) {
+                    flushed.add(record.done);
+                } else {
+                    perUser.computeIfAbsent(record.username, k -> new StringBuilder()).append(record.line);
+                }
+            }
+            
+            for (Map.Entry<String, StringBuilder> entry : perUser.entrySet()) {
+                String username = entry.getKey();
+                try {
+                    FileChannel channel = channelFor(username);
+                    ByteBuffer bytes = ByteBuffer.wrap(entry.getValue().toString().getBytes(StandardCharsets.UTF_8));
+                    while (bytes.hasRemaining()) {
+                        channel.write(bytes);
+                    }
+                    if (SYNC.equals("always")) channel.force(false);
+                } catch (IOException e) {
+                    Log.error("Failed to write audit log for " + username, e);
+                    closeQuietly(openFiles.remove(username));
+                }
+            }
+            
+            for (CountDownLatch done : flushed) {
+                done.countDown();
+            }
+        }
+        
+        private FileChannel channelFor(String username) throws IOException {
+            FileChannel channel = openFiles.get(username);
+            if (channel == null || !channel.isOpen()) {
+                channel = FileChannel.open(Paths.get("server_data", username, "log.txt"),
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                openFiles.put(username, channel);
+            }
+            return channel;
+        }
+        
+        private static void forceQuietly(FileChannel channel) {
+            try {
+                channel.force(false);
+            } catch (IOException e) {
+                Log.warn("Failed to force audit log to disk: {}", e.getMessage());
+            }
+        }
+        
+        private static void closeQuietly(FileChannel channel) {
+            if (channel == null) return;
+            try {
+                channel.close();
+            } catch (IOException e) {
+                Log.warn("Failed to close audit log: {}", e.getMessage());
+            }
+        }
+    }
+}
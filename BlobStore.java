@@ -0,0 +1,290 @@
+import java.io.*;
+import java.nio.file.*;
+import java.security.*;
+import java.util.*;
+
+/*
+    Content-addressed store for uploaded files.
+
+    Each distinct content is kept once as server_data/.blobs/<xx>/<sha256>. A user's file
+    server_data/<user>/<filename> is a hard link to its blob, so listing, downloading and
+    deleting keep working on plain paths, and identical uploads from many users share one
+    copy on disk. On file systems without hard links the file is copied instead, which still
+    saves the upload but not the disk space.
+
+    References (user, filename) -> hash live in memory and are persisted like the metadata
+    index: server_data/.blobs/refs.txt (snapshot) plus refs.log (append-only changes). A blob
+    is deleted when its last reference goes away.
+    
+    Next to each blob, <sha256>.crc holds its checksums: the size, the block size and a CRC32C
+    per block, computed while the upload streamed in. Downloads verify against them and
+    re-request only the blocks that fail (CHECKSUMS command).
+
+    Log lines: +|hash|owner|filename
+               -|owner|filename
+*/
+public class BlobStore {
+    private static final File BLOB_DIR = new File("server_data/.blobs");
+    private static final File SNAPSHOT_FILE = new File(BLOB_DIR, "refs.txt");
+    private static final File LOG_FILE = new File(BLOB_DIR, "refs.log");
+    private static final int COMPACT_THRESHOLD = 256;  // Log records before compacting
+    public static final int CHECKSUM_BLOCK = 256 * 1024;  // Bytes covered by one CRC32C
+    
+    private static final Map<String, String> refs = new HashMap<>();      // owner|filename -> hash
+    private static final Map<String, Integer> refCounts = new HashMap<>(); // hash -> references
+    private static int logRecords = 0;
+    
+    // Whole-file SHA-256 plus a CRC32C for every block of blockSize bytes
+    public static class Checksums {
+        public final String hash;
+        public final long size;
+        public final int blockSize;
+        public final int[] blockCrcs;
+        
+        public Checksums(String hash, long size, int blockSize, int[] blockCrcs) {
+            this.hash = hash;
+            this.size = size;
+            this.blockSize = blockSize;
+            this.blockCrcs = blockCrcs;
+        }
+    }
+    
+    public static synchronized void load() {
+        BLOB_DIR.mkdirs();
+        try {
+            readRefs(SNAPSHOT_FILE, false);
+            readRefs(LOG_FILE, true);
+        } catch (IOException e) {
+            Log.error("Failed to load blob references", e);
+        }
+        Log.info("Blob store: {} blobs, {} references", refCounts.size(), refs.size());
+    }
+    
+    // True if content with this hash and size is stored, so an upload of it can be skipped
+    public static synchronized boolean contains(String hash, long size) {
+        File blob = blobFile(hash);
+        return blob != null && refCounts.containsKey(hash) && blob.length() == size;
+    }
+    
+    /*
+        Store a finished upload under its hash and make it owner/fileName. When the content is
+        already stored the spool file is dropped. Returns true if it was a duplicate.
+    */
+    public static synchronized boolean commit(Path spool, Checksums checksums, String owner, String fileName) throws IOException {
+        String hash = checksums.hash;
+        File blob = blobFile(hash);
+        if (blob == null) throw new IOException("Invalid hash: " + hash);
+        
+        boolean duplicate = blob.exists();
+        if (duplicate) {
+            Files.deleteIfExists(spool);
+        } else {
+            blob.getParentFile().mkdirs();
+            move(spool, blob.toPath());
+        }
+        if (!checksumFile(blob).exists()) {
+            writeChecksums(blob, checksums);
+        }
+        link(blob, owner, fileName);
+        addRef(hash, owner, fileName);
+        return duplicate;
+    }
+    
+    // Checksums of owner/fileName, null for files stored before the blob store kept them
+    public static synchronized Checksums checksums(String owner, String fileName) {
+        String hash = refs.get(key(owner, fileName));
+        File blob = blobFile(hash);
+        if (blob == null) return null;
+        
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(checksumFile(blob))))) {
+            long size = in.readLong();
+            int blockSize = in.readInt();
+            int[] blockCrcs = new int[in.readInt()];
+            for (int i = 0; i < blockCrcs.length; i++) {
+                blockCrcs[i] = in.readInt();
+            }
+            return new Checksums(hash, size, blockSize, blockCrcs);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+    
+    // Make already stored content owner/fileName; false if the hash is not stored
+    public static synchronized boolean linkExisting(String hash, long size, String owner, String fileName) throws IOException {
+        if (!contains(hash, size)) return false;
+        link(blobFile(hash), owner, fileName);
+        addRef(hash, owner, fileName);
+        return true;
+    }
+    
+    // Hash of owner/fileName, null for files stored before the blob store existed
+    public static synchronized String hashOf(String owner, String fileName) {
+        return refs.get(key(owner, fileName));
+    }
+    
+    // Hex SHA-256 of length bytes at offset of the stored content, null if it is not stored
+    public static String rangeHash(String hash, long offset, int length) {
+        File blob = blobFile(hash);
+        if (blob == null) return null;
+        try (RandomAccessFile raf = new RandomAccessFile(blob, "r")) {
+            byte[] bytes = new byte[length];
+            raf.seek(offset);
+            raf.readFully(bytes);
+            return hex(MessageDigest.getInstance("SHA-256").digest(bytes));
+        } catch (IOException | NoSuchAlgorithmException e) {
+            return null;
+        }
+    }
+    
+    // Called after owner/fileName was deleted
+    public static synchronized void unlink(String owner, String fileName) {
+        String hash = refs.remove(key(owner, fileName));
+        if (hash == null) return;  // Stored before the blob store existed
+        try {
+            appendLog("-|" + owner + "|" + fileName);
+        } catch (IOException e) {
+            Log.warn("Failed to log blob reference removal for {}: {}", owner, e.getMessage());
+        }
+        release(hash);
+    }
+    
+    // Fold the change log into the snapshot, called periodically by the server
+    public static synchronized void compact() {
+        if (logRecords < COMPACT_THRESHOLD) return;
+        File tmpFile = new File(SNAPSHOT_FILE.getPath() + ".tmp");
+        try {
+            try (FileWriter fw = new FileWriter(tmpFile, false)) {
+                for (Map.Entry<String, String> ref : refs.entrySet()) {
+                    fw.write(ref.getValue() + "|" + ref.getKey() + "\n");
+                }
+            }
+            Files.move(tmpFile.toPath(), SNAPSHOT_FILE.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            
+            // Replaying the old log over the new snapshot is harmless if we crash before this
+            new FileWriter(LOG_FILE, false).close();
+            logRecords = 0;
+        } catch (IOException e) {
+            Log.warn("Blob reference compaction failed: {}", e.getMessage());
+        }
+    }
+    
+    private static void addRef(String hash, String owner, String fileName) throws IOException {
+        appendLog("+|" + hash + "|" + owner + "|" + fileName);
+        refCounts.merge(hash, 1, Integer::sum);
+        String previous = refs.put(key(owner, fileName), hash);
+        if (previous != null) {
+            release(previous);  // The upload replaced a file of the same name
+        }
+    }
+    
+    private static void release(String hash) {
+        Integer count = refCounts.merge(hash, -1, Integer::sum);
+        if (count != null && count <= 0) {
+            refCounts.remove(hash);
+            File blob = blobFile(hash);
+            if (blob != null && blob.delete()) {
+                checksumFile(blob).delete();
+                Log.debug("Deleted unreferenced blob {}", hash);
+            }
+        }
+    }
+    
+    // Put a hard link to the blob (or a copy) in place of server_data/<owner>/<fileName>
+    private static void link(File blob, String owner, String fileName) throws IOException {
+        Path target;
+        try {
+            target = Paths.get("server_data", owner, fileName);
+        } catch (InvalidPathException e) {
+            throw new IOException("Invalid file name: " + fileName, e);
+        }
+        
+        // Link next to the target first, then rename over it so readers never see a missing file
+        Path tmp = target.resolveSibling(".link_" + System.nanoTime());
+        try {
+            Files.createLink(tmp, blob.toPath());
+        } catch (UnsupportedOperationException | FileSystemException e) {
+            Files.copy(blob.toPath(), tmp, StandardCopyOption.REPLACE_EXISTING);
+        }
+        move(tmp, target);
+    }
+    
+    // Written beside the blob and renamed into place, a torn file is never read
+    private static void writeChecksums(File blob, Checksums checksums) throws IOException {
+        File tmp = new File(blob.getPath() + ".crc.tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeLong(checksums.size);
+            out.writeInt(checksums.blockSize);
+            out.writeInt(checksums.blockCrcs.length);
+            for (int crc : checksums.blockCrcs) {
+                out.writeInt(crc);
+            }
+        }
+        move(tmp.toPath(), checksumFile(blob).toPath());
+    }
+    
+    private static File checksumFile(File blob) {
+        return new File(blob.getPath() + ".crc");
+    }
+    
+    private static void move(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+    
+    private static void appendLog(String record) throws IOException {
+        try (FileWriter fw = new FileWriter(LOG_FILE, true)) {
+            fw.write(record + "\n");
+        }
+        logRecords++;
+    }
+    
+    // Snapshot lines are hash|owner|filename, log lines carry a +| or -| prefix
+    private static void readRefs(File file, boolean isLog) throws IOException {
+        if (!file.exists()) return;
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (isLog && line.startsWith("-|")) {
+                    String[] parts = line.substring(2).split("\\|", 2);
+                    if (parts.length < 2) continue;
+                    String hash = refs.remove(key(parts[0], parts[1]));
+                    if (hash != null) refCounts.merge(hash, -1, Integer::sum);
+                } else {
+                    if (isLog) {
+                        if (!line.startsWith("+|")) continue;  // Torn last line after a crash
+                        line = line.substring(2);
+                    }
+                    String[] parts = line.split("\\|", 3);
+                    if (parts.length < 3) continue;
+                    refCounts.merge(parts[0], 1, Integer::sum);
+                    String previous = refs.put(key(parts[1], parts[2]), parts[0]);
+                    if (previous != null) refCounts.merge(previous, -1, Integer::sum);
+                }
+                if (isLog) logRecords++;
+            }
+        }
+        refCounts.values().removeIf(count -> count <= 0);
+    }
+    
+    private static String key(String owner, String fileName) {
+        return owner + "|" + fileName;
+    }
+    
+    private static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+    
+    // null for anything that is not a hex SHA-256, so a client hash never escapes the blob directory
+    private static File blobFile(String hash) {
+        if (hash == null || !hash.matches("[0-9a-f]{64}")) return null;
+        return new File(new File(BLOB_DIR, hash.substring(0, 2)), hash);
+    }
+}
@@ -0,0 +1,139 @@
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+    Direct buffers for chunk I/O, shared by every transfer path of the process: upload chunks,
+    download copies and hash catch-up in the server, uploads and downloads in the client. A
+    direct buffer lets socket and file channels move the bytes without the JDK staging them in
+    a temporary buffer, and reusing it keeps chunk traffic from turning into garbage.
+    
+    Buffers are MAX_CHUNK_SIZE (upload.maxChunk) bytes. At most bufferPool.size idle buffers
+    are kept; acquire() allocates when none is idle, so a burst costs memory once instead of
+    stalling a transfer. Only bufferPool.maxOutstanding buffers can be out at a time though,
+    past that acquire() waits for a release, so direct memory stays bounded under any load.
+    
+    With leak detection on (bufferPool.leakDetection=true, or setLeakDetection() in a test)
+    every outstanding buffer remembers where it was acquired, leaks() lists the ones never
+    released and releasing a buffer twice throws. It costs a stack trace per acquire.
+    
+    Callers report the bytes they move with transferred(), so the allocation counters can be
+    read per transferred GB.
+*/
+public class BufferPool {
+    public static final int BUFFER_SIZE = Integer.getInteger("upload.maxChunk", 1024 * 1024);
+    
+    private static final BufferPool SHARED = new BufferPool(BUFFER_SIZE, Integer.getInteger("bufferPool.size", 64),
+                                                            Integer.getInteger("bufferPool.maxOutstanding", 512));
+    
+    private final int bufferSize;
+    private final ArrayBlockingQueue<ByteBuffer> idle;
+    private final Semaphore available;  // One permit per buffer that may still be handed out
+    private final AtomicLong allocations = new AtomicLong();
+    private final LongAdder acquires = new LongAdder();
+    private final LongAdder transferred = new LongAdder();
+    private final AtomicLong outstanding = new AtomicLong();
+    private volatile boolean leakDetection = Boolean.getBoolean("bufferPool.leakDetection");
+    private final Map<ByteBuffer, Throwable> owners = Collections.synchronizedMap(new IdentityHashMap<>());
+    
+    public BufferPool(int bufferSize, int maxIdle, int maxOutstanding) {
+        this.bufferSize = bufferSize;
+        this.idle = new ArrayBlockingQueue<>(Math.max(1, maxIdle));
+        this.available = new Semaphore(Math.max(1, maxOutstanding), true);
+    }
+    
+    public static BufferPool shared() {
+        return SHARED;
+    }
+    
+    // A cleared buffer of bufferSize() bytes, waits while maxOutstanding are out; give it back with release()
+    public ByteBuffer acquire() {
+        available.acquireUninterruptibly();
+        acquires.increment();
+        ByteBuffer buffer = idle.poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(bufferSize);
+            allocations.incrementAndGet();
+        }
+        buffer.clear();
+        outstanding.incrementAndGet();
+        if (leakDetection) {
+            owners.put(buffer, new Throwable("Buffer acquired here"));
+        }
+        return buffer;
+    }
+    
+    public void release(ByteBuffer buffer) {
+        if (buffer == null) return;
+        if (leakDetection && owners.remove(buffer) == null) {
+            throw new IllegalStateException("Buffer released twice or not from this pool");
+        }
+        outstanding.decrementAndGet();
+        if (buffer.capacity() == bufferSize && buffer.isDirect()) {
+            idle.offer(buffer);  // Dropped when the pool is full, the GC frees it
+        }
+        available.release();
+    }
+    
+    public void transferred(long bytes) {
+        transferred.add(bytes);
+    }
+    
+    public int bufferSize() {
+        return bufferSize;
+    }
+    
+    public void setLeakDetection(boolean enabled) {
+        leakDetection = enabled;
+        if (!enabled) {
+            owners.clear();
+        }
+    }
+    
+    // Where each buffer that is still out was acquired, empty without leak detection
+    public List<Throwable> leaks() {
+        synchronized (owners) {
+            return new ArrayList<>(owners.values());
+        }
+    }
+    
+    public long allocations() {
+        return allocations.get();
+    }
+    
+    public long allocatedBytes() {
+        return allocations.get() * bufferSize;
+    }
+    
+    public long acquires() {
+        return acquires.sum();
+    }
+    
+    public long outstanding() {
+        return outstanding.get();
+    }
+    
+    public int idle() {
+        return idle.size();
+    }
+    
+    public long transferredBytes() {
+        return transferred.sum();
+    }
+    
+    // Buffer bytes allocated per GB moved by the pool's users
+    public double allocatedBytesPerGb() {
+        long bytes = transferred.sum();
+        return bytes == 0 ? 0 : allocatedBytes() / (bytes / (1024.0 * 1024.0 * 1024.0));
+    }
+    
+    @Override
+    public String toString() {
+        return String.format("%d buffers of %d KB allocated, %d idle, %d in use, %d acquires, %.1f MB transferred, %.0f bytes allocated per GB",
+                             allocations(), bufferSize / 1024, idle(), outstanding(), acquires(),
+                             transferredBytes() / (1024.0 * 1024.0), allocatedBytesPerGb());
+    }
+}
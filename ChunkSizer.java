@@ -0,0 +1,144 @@
+import java.util.ArrayDeque;
+
+/*
+    Chunk size for one upload, adapted to the link while the upload runs.
+    
+    The server only sees when chunks arrive and when it acknowledged earlier ones. The client
+    sends a new chunk as soon as an ACK frees a slot in its window, so the time from an ACK to
+    the chunk it released is a round trip plus whatever was queued ahead of that chunk; the
+    smallest of these is taken as the path's RTT. The delivery rate is measured over each
+    window of chunks. From the two:
+    
+        chunk size = 2 x rate x max(RTT / window, 1 ms)
+    
+    clamped to [min, max] and to the file size. A window of chunks covers the bandwidth-delay
+    product, and on fast links with a tiny RTT each chunk still takes a millisecond to send, so
+    per-chunk costs (command, ACK, system calls) stay small. While the chunk size limits the
+    rate, the factor 2 doubles it every window until the link is full. A full upload budget
+    stops the growth, a nearly exhausted one halves the chunk size.
+    New uploads start at 64 KB (a small file at its own size).
+    
+    The handler turns the size into credits and tells the client with its next ACK.
+*/
+public class ChunkSizer {
+    private static final int INITIAL_CHUNK = 64 * 1024;
+    private static final long CHUNK_TIME_NANOS = 1_000_000;  // A chunk should take at least 1 ms to send
+    private static final double GROWTH_PRESSURE = 0.75;  // Budget use above which chunks stop growing
+    private static final double SHRINK_PRESSURE = 0.9;  // Budget use above which chunks shrink
+    
+    private final long fileSize;
+    private final int minChunk;
+    private final int maxChunk;
+    private final int window;
+    private int chunkSize;
+    
+    // RTT: the first chunk answers the approval, then each chunk after the initial window answers an ACK
+    private long startedAt;
+    private int unpaired;  // Chunks of the initial window still to arrive, they answer no ACK
+    private final ArrayDeque<Long> acks = new ArrayDeque<>();  // Send times of ACKs not answered yet
+    private long minRtt = Long.MAX_VALUE;
+    
+    // Delivery rate, measured from one mark to the next
+    private double rate;  // Bytes per second, 0 until measured
+    private boolean measured;  // A new rate sample since the last adjust()
+    private long bytes;
+    private long markTime;
+    private long markBytes;
+    private int chunksSinceMark;
+    
+    public ChunkSizer(long fileSize, int minChunk, int maxChunk, int window) {
+        this.fileSize = fileSize;
+        this.minChunk = minChunk;
+        this.maxChunk = maxChunk;
+        this.window = Math.max(1, window);
+        this.chunkSize = clamp(INITIAL_CHUNK);
+    }
+    
+    public synchronized int chunkSize() {
+        return chunkSize;
+    }
+    
+    // UPLOAD_APPROVED or UPLOAD_RESUMED went out, the client may now send a whole window
+    public synchronized void started(long now) {
+        startedAt = now;
+        unpaired = window;
+        acks.clear();
+        markTime = 0;
+    }
+    
+    public synchronized void chunkArrived(long now, int length) {
+        if (startedAt != 0) {
+            sampleRtt(now - startedAt);
+            startedAt = 0;
+            unpaired--;
+        } else if (unpaired > 0) {
+            unpaired--;
+        } else if (!acks.isEmpty()) {
+            sampleRtt(now - acks.poll());
+        }
+        
+        bytes += length;
+        if (markTime == 0) {
+            markTime = now;
+            markBytes = bytes;
+            chunksSinceMark = 0;
+        } else if (++chunksSinceMark >= window && now - markTime >= Math.min(minRtt, 1_000_000_000L)) {
+            double sample = (bytes - markBytes) * 1e9 / (now - markTime);
+            rate = Math.max(sample, rate * 0.9);  // Decaying max, one slow window is not a slow link
+            measured = true;
+            markTime = now;
+            markBytes = bytes;
+            chunksSinceMark = 0;
+        }
+    }
+    
+    // An ACK or NACK went out; either frees a slot in the client's window
+    public synchronized void acked(long now) {
+        if (acks.size() < 4 * window) {
+            acks.add(now);
+        }
+    }
+    
+    /*
+        New chunk size after a fresh rate sample, 0 while it stays as it is. pressure is the
+        share of the upload budget in use (0 to 1).
+    */
+    public synchronized int adjust(double pressure) {
+        if (!measured || minRtt == Long.MAX_VALUE) return 0;
+        measured = false;
+        
+        long target = (long) (2 * rate * Math.max(minRtt / window, CHUNK_TIME_NANOS) / 1e9);
+        if (pressure > SHRINK_PRESSURE) {
+            target = Math.min(target, chunkSize / 2);
+        } else if (pressure > GROWTH_PRESSURE) {
+            target = Math.min(target, chunkSize);
+        }
+        
+        int next = clamp(target);
+        if (Math.abs(next - chunkSize) < chunkSize / 4) {
+            return 0;  // Not worth telling the client
+        }
+        chunkSize = next;
+        return next;
+    }
+    
+    // The caller could not get credits for the whole size
+    public synchronized void limit(int size) {
+        chunkSize = Math.min(chunkSize, Math.max(1, size));
+    }
+    
+    public synchronized double rate() {
+        return rate;
+    }
+    
+    private void sampleRtt(long rtt) {
+        if (rtt > 0) {
+            minRtt = Math.min(minRtt, rtt);
+        }
+    }
+    
+    private int clamp(long size) {
+        long clamped = Math.max(minChunk, Math.min(maxChunk, size));
+        return (int) Math.max(1, Math.min(fileSize, clamped));
+    }
+}
@@ -1,53 +1,102 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
 
 
 public class Client {
     private Socket socket;
     private PrintWriter out;
-    private DataInputStream dataIn;
-    private DataOutputStream dataOut;
+    private ProtocolReader dataIn;
+    private WritableByteChannel dataOut;  // v1 chunk payloads, written straight from pooled buffers
     private BufferedReader userInput;
     private String username;
     private BlockingQueue<String> responseQueue = new LinkedBlockingQueue<>();
-    private volatile boolean binaryMode = false;  // Flag to pause text listener during binary transfer
+    private volatile File downloadTarget;  // Where the reader writes the next DOWNLOAD_START payload
+    private volatile boolean downloadAppend;  // Append to downloadTarget instead of truncating it
+    private volatile Verifier downloadVerifier;  // Checks the payload for downloadTarget, null without checksums
+    private final Map<Integer, StreamDownload> streams = new ConcurrentHashMap<>();  // v2 downloads by requestId
+    private final boolean requestFrames;  // Ask for protocol v2, false with --protocol=1
+    private boolean framed;  // Server accepted protocol v2, see FrameProtocol
+    private final AtomicInteger requestIds = new AtomicInteger();
     
     private static final String SERVER_HOST = "localhost";
     private static final int SERVER_PORT = 8000;
+    private static final int MAX_CONNECTIONS = 16;  // Upper bound for parallel download connections
+    private static final int PAGE_SIZE = 20;  // Entries per VIEW_MESSAGES / VIEW_HISTORY page
     
-    public Client() {
+    public Client(boolean requestFrames) {
+        this.requestFrames = requestFrames;
         userInput = new BufferedReader(new InputStreamReader(System.in));
     }
     
     public static void main(String[] args) {
-        Client client = new Client();
+        // --protocol=1 stays on the line protocol, e.g. to test servers without v2
+        boolean requestFrames = true;
+        for (String arg : args) {
+            if (arg.startsWith("--protocol=")) {
+                requestFrames = !arg.substring(11).equals("1");
+            }
+        }
+        Client client = new Client(requestFrames);
         client.start();
     }
     
     public void start() {
         try {
             System.out.println("=== File Server Client ===");
+            System.out.print("Login or sign up? (login/signup): ");
+            String authMode = userInput.readLine().trim().equalsIgnoreCase("signup") ? "SIGNUP" : "LOGIN";
             System.out.print("Enter username: ");
             username = userInput.readLine();
+            System.out.print("Enter password: ");
+            String password = userInput.readLine();
+            String securityAnswer = null;
+            if (authMode.equals("SIGNUP")) {
+                System.out.print("Your favorite word (security answer): ");
+                securityAnswer = userInput.readLine();
+            }
             
-            // Connect to server
-            socket = new Socket(SERVER_HOST, SERVER_PORT);
+            // Connect through a channel so chunks move between pooled direct buffers and the socket
+            socket = SocketChannel.open(new InetSocketAddress(SERVER_HOST, SERVER_PORT)).socket();
             
-            // Get raw streams (no BufferedReader to avoid buffering conflicts)
+            // Text lines and binary chunks are read through the same buffered reader
             InputStream rawIn = socket.getInputStream();
             OutputStream rawOut = socket.getOutputStream();
             
-            dataIn = new DataInputStream(rawIn);
-            dataOut = new DataOutputStream(rawOut);
-            out = new PrintWriter(rawOut, true);
+            dataIn = new ProtocolReader(rawIn, socket.getChannel());
+            dataOut = socket.getChannel();
+            out = new PrintWriter(new OutputStreamWriter(rawOut, StandardCharsets.UTF_8), true);
             
-            // Send username
+            // Ask for protocol v2, then send auth mode, username and password (and the security answer when signing up)
+            if (requestFrames) {
+                out.println(FrameProtocol.HELLO);
+            }
+            out.println(authMode);
             out.println(username);
+            out.println(password);
+            if (securityAnswer != null) {
+                out.println(securityAnswer);
+            }
             out.flush();
             
             // Wait for response using DataInputStream
-            String response = readLine(dataIn);
+            String response = dataIn.readLine();
+            if (FrameProtocol.HELLO.equals(response)) {
+                framed = true;
+                response = dataIn.readLine();
+            }
             
             if (response.startsWith("ERROR")) {
                 System.out.println("Login failed: " + response.split(":", 2)[1]);
@@ -57,8 +106,13 @@ public class Client {
             
             System.out.println(response.split(":", 2)[1]);
             
+            // From here on every command is a TEXT frame with its own requestId
+            if (framed) {
+                out = new FramedWriter(rawOut, socket.getChannel(), requestIds::incrementAndGet);
+            }
+            
             // Start message listener thread
-            new Thread(this::listenForMessages).start();
+            new Thread(framed ? this::listenForFrames : this::listenForMessages).start();
             
             // Main menu loop
             mainMenu();
@@ -68,52 +122,210 @@ public class Client {
         }
     }
     
-    // Read a line from DataInputStream without buffering extra bytes
-    private String readLine(DataInputStream in) throws IOException {
-        StringBuilder sb = new StringBuilder();
-        int c;
-        while ((c = in.read()) != -1) {
-            if (c == '\n') {
-                break;
-            }
-            if (c != '\r') {  // Skip \r
-                sb.append((char) c);
+    /*
+        The only reader of the socket. Blocks on the next frame and routes it: NEW_MESSAGE pushes
+        are printed, download payloads that follow a DOWNLOAD_START are written to the registered
+        target, and every other line goes to responseQueue for the waiting command.
+    */
+    private void listenForMessages() {
+        try {
+            String line;
+            while ((line = dataIn.readLine()) != null) {
+                if (line.startsWith("NEW_MESSAGE:")) {
+                    System.out.println("\n[NOTIFICATION] " + line.substring(12));
+                    System.out.print("> ");
+                } else if (line.startsWith("DOWNLOAD_START:")) {
+                    // The framed payload follows immediately, consume it before handing on the line
+                    String error = receivePayload(line);
+                    responseQueue.offer(error == null ? line : "DOWNLOAD_FAILED:" + error);
+                } else {
+                    // Put other responses in queue for command methods to read
+                    responseQueue.offer(line);
+                }
             }
+        } catch (IOException e) {
+            // Connection closed
         }
-        return sb.length() > 0 || c != -1 ? sb.toString() : null;
+        responseQueue.offer("ERROR:Connection closed");
     }
     
-    private void listenForMessages() {
+    /*
+        v2 counterpart of listenForMessages. Every transfer is a stream identified by the
+        requestId of its DOWNLOAD_REQUEST: its DATA frames are written to that stream's file
+        and its DOWNLOAD_COMPLETE is reported here, so downloads run in the background while
+        other commands and pushes are interleaved with them.
+    */
+    private void listenForFrames() {
+        FrameProtocol.Header frame = new FrameProtocol.Header();
+        ByteBuffer buffer = BufferPool.shared().acquire();  // Held by the listener for the whole session
+        
         try {
-            while (true) {
-                // Pause if in binary mode (download/upload in progress)
-                if (binaryMode) {
-                    Thread.sleep(50);
+            while (FrameProtocol.readHeader(dataIn, frame)) {
+                if (frame.type == FrameProtocol.DATA) {
+                    StreamDownload download = streams.get(frame.requestId);
+                    for (int remaining = frame.length; remaining > 0; ) {
+                        int n = Math.min(remaining, buffer.capacity());
+                        buffer.clear();
+                        dataIn.readFully(buffer, n);
+                        if (download != null) {
+                            download.write(buffer.flip());
+                        }
+                        remaining -= n;
+                    }
+                    BufferPool.shared().transferred(frame.length);
                     continue;
                 }
                 
-                // Check if data is available before attempting to read
-                if (dataIn.available() > 0) {
-                    String line = readLine(dataIn);
-                    if (line == null) break;
-                    
-                    if (line.startsWith("NEW_MESSAGE:")) {
-                        System.out.println("\n[NOTIFICATION] " + line.substring(12));
-                        System.out.print("> ");
-                    } else {
-                        // Put other responses in queue for command methods to read
+                String line = FrameProtocol.readText(dataIn, frame.length);
+                StreamDownload download = streams.get(frame.requestId);
+                if (frame.type == FrameProtocol.PUSH) {
+                    System.out.println("\n[NOTIFICATION] " + line.substring(12));
+                    System.out.print("> ");
+                } else if (download == null) {
+                    responseQueue.offer(line);
+                } else if (line.startsWith("DOWNLOAD_START:")) {
+                    download.start(Long.parseLong(line.substring(15).split("\\|")[1]));
+                    if (download.parent == null) {
                         responseQueue.offer(line);
                     }
+                } else if (!download.started() && download.parent == null) {
+                    // Refused before it started, downloadFile reports it
+                    streams.remove(frame.requestId);
+                    responseQueue.offer(line);
                 } else {
-                    // No data available, sleep briefly to avoid busy-waiting
-                    Thread.sleep(50);
+                    // DOWNLOAD_COMPLETE or the error that ended the stream
+                    streams.remove(frame.requestId);
+                    finishStream(download, line);
                 }
             }
         } catch (IOException e) {
             // Connection closed
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
+        } finally {
+            BufferPool.shared().release(buffer);
+        }
+        for (StreamDownload download : streams.values()) {
+            download.finish("ERROR:Connection closed");
+        }
+        responseQueue.offer("ERROR:Connection closed");
+    }
+    
+    /*
+        A finished stream whose blocks failed their CRC32C gets each of them fetched again on a
+        stream of its own; the download is reported once the last of those is in. Called on the
+        reader thread only.
+    */
+    private void finishStream(StreamDownload download, String completion) {
+        String error = download.finish(completion);
+        Verifier verifier = download.verifier;
+        
+        if (download.parent != null) {
+            StreamDownload parent = download.parent;
+            if (error == null && !verifier.badBlocks.isEmpty()) {
+                error = "Block at " + download.start + " failed verification again";
+            }
+            if (error != null && parent.error == null) {
+                parent.error = error;
+            }
+            if (--parent.repairsLeft == 0) {
+                reportDownload(parent);
+            }
+            return;
+        }
+        
+        if (error == null && verifier != null && !verifier.badBlocks.isEmpty()) {
+            Checksums checksums = verifier.checksums;
+            for (long block : verifier.badBlocks) {
+                long offset = block * checksums.blockSize;
+                long length = Math.min(checksums.blockSize, checksums.size - offset);
+                int id = requestIds.incrementAndGet();
+                streams.put(id, new StreamDownload(download.file, download.source, offset, checksums, download));
+                download.repairsLeft++;
+                ((FramedWriter) out).println(id, "DOWNLOAD_REQUEST:" + download.source + "|" + offset + "|" + length);
+            }
+            return;
+        }
+        reportDownload(download);
+    }
+    
+    private void reportDownload(StreamDownload download) {
+        Verifier verifier = download.verifier;
+        String result;
+        if (download.error != null) {
+            result = download.file.getName() + " failed: " + download.error;
+        } else if (verifier == null) {
+            result = download.file.getName() + " saved to " + download.file.getAbsolutePath();
+        } else if (!verifier.badBlocks.isEmpty()) {
+            result = download.file.getName() + " saved to " + download.file.getAbsolutePath() + " (" 
+                    + verifier.badBlocks.size() + " blocks failed verification and were fetched again)";
+        } else if (download.start == 0 && !verifier.hashMatches()) {
+            result = download.file.getName() + " failed: SHA-256 does not match";
+        } else {
+            result = download.file.getName() + " saved to " + download.file.getAbsolutePath() + " (verified)";
         }
+        System.out.println("\n[DOWNLOAD] " + result);
+        System.out.print("> ");
+    }
+    
+    // Reads the writeInt-framed chunks of one download; returns an error message or null
+    private String receivePayload(String startLine) throws IOException {
+        // Both the full and the ranged reply carry the number of bytes that follow in field 1
+        long length = Long.parseLong(startLine.substring(15).split("\\|")[1]);
+        File target = downloadTarget;
+        Verifier verifier = downloadVerifier;
+        downloadTarget = null;
+        downloadVerifier = null;
+        
+        if (target == null) {
+            // Nobody asked for the bytes (e.g. a size probe), keep the stream in frame
+            for (long skipped = 0; skipped < length; ) {
+                int chunkSize = dataIn.readInt();
+                dataIn.skipBytes(chunkSize);
+                skipped += chunkSize;
+            }
+            return null;
+        }
+        
+        String error = null;
+        ByteBuffer buffer = BufferPool.shared().acquire();
+        try (FileOutputStream fos = new FileOutputStream(target, downloadAppend)) {
+            FileChannel file = fos.getChannel();
+            long totalReceived = 0;
+            
+            while (totalReceived < length) {
+                int chunkSize = dataIn.readInt();
+                // A chunk larger than a pooled buffer arrives in pieces
+                for (int remaining = chunkSize; remaining > 0; ) {
+                    int n = Math.min(remaining, buffer.capacity());
+                    buffer.clear();
+                    dataIn.readFully(buffer, n);
+                    buffer.flip();
+                    if (verifier != null) {
+                        verifier.update(buffer.duplicate());
+                    }
+                    if (error == null) {
+                        try {
+                            while (buffer.hasRemaining()) {
+                                file.write(buffer);
+                            }
+                        } catch (IOException e) {
+                            error = "Cannot write " + target + ": " + e.getMessage();  // Keep draining
+                        }
+                    }
+                    remaining -= n;
+                }
+                totalReceived += chunkSize;
+                BufferPool.shared().transferred(chunkSize);
+                System.out.println("Received: " + totalReceived + "/" + length + " bytes");
+            }
+        } finally {
+            BufferPool.shared().release(buffer);
+        }
+        if (error == null && verifier != null && !verifier.badBlocks.isEmpty()) {
+            error = verifier.badBlocks.size() + " blocks failed verification, download the file again";
+        } else if (error == null && verifier != null && !downloadAppend && !verifier.hashMatches()) {
+            error = "SHA-256 does not match";
+        }
+        return error;
     }
     
     private void mainMenu() {
@@ -129,6 +341,7 @@ public class Client {
                 System.out.println("7. View unread messages");
                 System.out.println("8. View upload/download history");
                 System.out.println("9. Logout");
+                System.out.println("10. Download file over parallel connections");
                 System.out.print("> ");
                 
                 String choice = userInput.readLine();
@@ -161,6 +374,9 @@ public class Client {
                     case "9":
                         logout();
                         return;
+                    case "10":
+                        parallelDownload();
+                        break;
                     default:
                         System.out.println("Invalid choice");
                 }
@@ -301,10 +517,34 @@ public class Client {
         String fileName = file.getName(); // Extract file name from path
         long fileSize = file.length(); // Get file size
         
-        // Send upload request
-        out.println("UPLOAD_REQUEST:" + fileName + "|" + fileSize + "|" + isPublic + "|" + requestId);
+        // An earlier upload of the same file that lost its connection can be continued
+        String[] unfinished = findUnfinishedUpload(fileName, fileSize);
+        if (unfinished != null) {
+            System.out.print("Resume the interrupted upload (" + unfinished[2] + "/" + fileSize + " bytes)? (yes/no): ");
+            if (userInput.readLine().trim().equalsIgnoreCase("yes")) {
+                resumeUpload(file, unfinished[0]);
+                return;
+            }
+        }
+        
+        // Send upload request with the content hash, so the server can skip content it already has
+        String hash = sha256(file);
+        out.println("UPLOAD_HASH:" + hash + "|" + fileName + "|" + fileSize + "|" + isPublic + "|" + requestId);
         String response = responseQueue.take();
         
+        // The server has this content and wants proof that we do too: the hash of a range it picked
+        if (response.startsWith("UPLOAD_PROVE:")) {
+            String[] challenge = response.substring(13).split("\\|");
+            String proof = sha256Range(file, Long.parseLong(challenge[1]), Integer.parseInt(challenge[2]));
+            out.println("UPLOAD_PROOF:" + challenge[0] + "|" + proof);
+            response = responseQueue.take();
+        }
+        
+        if (response.equals("UPLOAD_EXISTS")) {
+            System.out.println("The server already has this content, file stored without uploading it");
+            return;
+        }
+        
         if (response.startsWith("ERROR")) {
             System.out.println("Upload failed: " + response.split(":", 2)[1]);
             return;
@@ -314,54 +554,197 @@ public class Client {
             String[] parts = response.substring(16).split("\\|");
             String fileId = parts[0];
             int chunkSize = Integer.parseInt(parts[1]);
+            int window = parts.length > 2 ? Math.max(1, Integer.parseInt(parts[2])) : 1;
             
-            System.out.println("Upload approved. Chunk size: " + chunkSize + " bytes");
+            System.out.println("Upload approved. Chunk size: " + chunkSize + " bytes, window: " + window + " chunks");
             
-            // Send file in chunks
-            try (FileInputStream fis = new FileInputStream(file)) {
-                byte[] buffer = new byte[chunkSize];
-                int bytesRead;
-                int chunkNum = 0;
-                
-                while ((bytesRead = fis.read(buffer)) != -1) {
-                    chunkNum++;
-                    
-                    // Send chunk command
-                    out.println("UPLOAD_CHUNK:" + fileId + "|" + bytesRead);
-                    out.flush();  // CRITICAL: Flush text command before binary data
-                    
-                    // Enter binary mode before sending chunk data
-                    binaryMode = true;
-                    Thread.sleep(10);
-                    
-                    dataOut.write(buffer, 0, bytesRead);
-                    dataOut.flush();
-                    
-                    // Exit binary mode to receive acknowledgment
-                    binaryMode = false;
-                    
-                    // Wait for acknowledgment
-                    String ack = responseQueue.take();
-                    if (!ack.equals("CHUNK_ACK")) {
-                        System.out.println("Error sending chunk " + chunkNum);
-                        return;
+            if (sendChunks(file, fileId, chunkSize, window, 0)) {
+                completeUpload(fileId, hash);
+            }
+        }
+    }
+    
+    private static String sha256(File file) throws IOException {
+        MessageDigest digest = newSha256();
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return hex(digest.digest());
+    }
+    
+    private static String sha256Range(File file, long offset, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            raf.seek(offset);
+            raf.readFully(bytes);
+        }
+        return hex(newSha256().digest(bytes));
+    }
+    
+    private static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);  // Every JRE has SHA-256
+        }
+    }
+    
+    private static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+    
+    // fileId|fileName|committed|totalSize of an unfinished upload on the server, or null
+    private String[] findUnfinishedUpload(String fileName, long fileSize) throws InterruptedException {
+        out.println("LIST_UPLOADS:");
+        String response = responseQueue.poll(5, TimeUnit.SECONDS);
+        if (response == null || !response.startsWith("UPLOADS:")) return null;
+        
+        for (String entry : response.substring(8).split(";")) {
+            String[] fields = entry.split("\\|");
+            if (fields.length == 4 && fields[1].equals(fileName) && Long.parseLong(fields[3]) == fileSize) {
+                return fields;
+            }
+        }
+        return null;
+    }
+    
+    private void resumeUpload(File file, String fileId) throws IOException, InterruptedException {
+        out.println("UPLOAD_RESUME:" + fileId);
+        String response = responseQueue.take();
+        if (!response.startsWith("UPLOAD_RESUMED:")) {
+            System.out.println("Resume failed: " + response);
+            return;
+        }
+        
+        String[] parts = response.substring(15).split("\\|");
+        long committed = Long.parseLong(parts[1]);
+        int chunkSize = Integer.parseInt(parts[2]);
+        int window = Math.max(1, Integer.parseInt(parts[3]));
+        
+        System.out.println("Resuming upload at byte " + committed);
+        if (sendChunks(file, fileId, chunkSize, window, committed)) {
+            completeUpload(fileId, sha256(file));
+        }
+    }
+    
+    // The server compares the hash with the one it computed while the chunks came in
+    private void completeUpload(String fileId, String hash) throws InterruptedException {
+        out.println("UPLOAD_COMPLETE:" + fileId + "|" + hash);
+        
+        String finalResponse = responseQueue.take();
+        
+        if (finalResponse.equals("UPLOAD_SUCCESS")) {
+            System.out.println("File uploaded successfully!");
+        } else {
+            System.out.println("Upload failed: " + finalResponse);
+        }
+    }
+    
+    /*
+        Sliding-window upload: up to <window> chunks are sent before waiting for an ACK. Each chunk
+        carries a sequence number, its file offset and its CRC32C; a NACKed chunk (lost, or
+        corrupted on the way) is read again and resent. An ACK may change the chunk size and
+        window for the chunks not sent yet. Sending starts at startOffset, which is non-zero
+        when resuming.
+    */
+    private boolean sendChunks(File file, String fileId, int chunkSize, int window, long startOffset) 
+            throws IOException, InterruptedException {
+        long fileSize = file.length();
+        Map<Integer, long[]> chunks = new HashMap<>();  // seq -> {offset, length} until it is ACKed
+        Map<Integer, Integer> retries = new HashMap<>();
+        Deque<Integer> resend = new ArrayDeque<>();
+        Set<Integer> inFlight = new HashSet<>();
+        ByteBuffer pooled = BufferPool.shared().acquire();
+        CRC32C crc = new CRC32C();
+        long nextOffset = startOffset;
+        long acked = startOffset;
+        int nextSeq = 0;
+        
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while (nextOffset < fileSize || !chunks.isEmpty()) {
+                // Fill the window, resends first
+                while (inFlight.size() < window && (!resend.isEmpty() || nextOffset < fileSize)) {
+                    int seq;
+                    if (!resend.isEmpty()) {
+                        seq = resend.poll();
+                    } else {
+                        seq = nextSeq++;
+                        long length = Math.min(chunkSize, fileSize - nextOffset);
+                        chunks.put(seq, new long[] {nextOffset, length});
+                        nextOffset += length;
+                    }
+                    long offset = chunks.get(seq)[0];
+                    int length = (int) chunks.get(seq)[1];
+                    // Only a server configured with a larger upload.maxChunk asks for more than a pooled buffer
+                    ByteBuffer buffer = length <= pooled.capacity() ? pooled : ByteBuffer.allocateDirect(length);
+                    buffer.clear().limit(length);
+                    while (buffer.hasRemaining()) {
+                        if (channel.read(buffer, offset + buffer.position()) < 0) {
+                            throw new EOFException("File shrank during upload: " + file);
+                        }
                     }
+                    buffer.flip();
+                    crc.reset();
+                    crc.update(buffer.duplicate());
                     
-                    System.out.println("Chunk " + chunkNum + " sent (" + bytesRead + " bytes)");
+                    String chunkLine = "UPLOAD_CHUNK:" + fileId + "|" + length + "|" + seq + "|" + offset + "|" + Long.toHexString(crc.getValue());
+                    if (framed) {
+                        // The DATA frame names the same stream as its UPLOAD_CHUNK line
+                        FramedWriter frames = (FramedWriter) out;
+                        int id = requestIds.incrementAndGet();
+                        frames.println(id, chunkLine);
+                        frames.sendData(id, buffer);
+                    } else {
+                        out.println(chunkLine);
+                        while (buffer.hasRemaining()) {
+                            dataOut.write(buffer);
+                        }
+                    }
+                    BufferPool.shared().transferred(length);
+                    inFlight.add(seq);
                 }
                 
-                // Send completion message
-                out.println("UPLOAD_COMPLETE:" + fileId);
-                
-                String finalResponse = responseQueue.take();
-                
-                if (finalResponse.equals("UPLOAD_SUCCESS")) {
-                    System.out.println("File uploaded successfully!");
+                String ack = responseQueue.take();
+                if (ack.startsWith("CHUNK_ACK:")) {
+                    // seq|committed, or seq|committed|chunkSize|window when the server resizes
+                    String[] fields = ack.substring(10).split("\\|");
+                    int seq = Integer.parseInt(fields[0]);
+                    if (inFlight.remove(seq)) {
+                        acked += chunks.remove(seq)[1];
+                        System.out.println("Chunk " + (seq + 1) + " acknowledged (" + acked + "/" + fileSize + " bytes)");
+                    }
+                    if (fields.length >= 4) {
+                        chunkSize = Integer.parseInt(fields[2]);
+                        window = Math.max(1, Integer.parseInt(fields[3]));
+                        System.out.println("Server set chunk size " + chunkSize + " bytes, window " + window + " chunks");
+                    }
+                } else if (ack.startsWith("CHUNK_NACK:")) {
+                    int seq = Integer.parseInt(ack.substring(11).split("\\|")[0]);
+                    if (!inFlight.remove(seq)) {
+                        continue;  // Stale reply for a chunk that is no longer outstanding
+                    }
+                    if (retries.merge(seq, 1, Integer::sum) > 3) {
+                        System.out.println("Error sending chunk " + (seq + 1) + ", giving up");
+                        return false;
+                    }
+                    resend.add(seq);
                 } else {
-                    System.out.println("Upload failed: " + finalResponse);
+                    System.out.println("Upload failed: " + ack);
+                    return false;
                 }
             }
+        } finally {
+            BufferPool.shared().release(pooled);
         }
+        return true;
     }
     
     private void downloadFile() throws IOException, InterruptedException {
@@ -371,70 +754,238 @@ public class Client {
         System.out.print("Enter file name: ");
         String fileName = userInput.readLine();
         
-        // Stop listener from interfering - set binary mode BEFORE sending request
-        binaryMode = true;
-        Thread.sleep(100);  // Ensure listener is paused
+        // A partial file from an interrupted download can be continued from its current length
+        File existing = new File("downloads/" + fileName);
+        long resumeOffset = 0;
+        if (existing.isFile() && existing.length() > 0) {
+            System.out.print("Resume the partial download (" + existing.length() + " bytes)? (yes/no): ");
+            if (userInput.readLine().trim().equalsIgnoreCase("yes")) {
+                resumeOffset = existing.length();
+            }
+        }
+        
+        File downloadFile = new File("downloads/" + fileName);
+        downloadFile.getParentFile().mkdirs();
+        Checksums checksums = fetchChecksums(owner, fileName);
         
-        out.println("DOWNLOAD_REQUEST:" + owner + "|" + fileName);
+        String request = resumeOffset > 0 
+                ? "DOWNLOAD_REQUEST:" + owner + "|" + fileName + "|" + resumeOffset 
+                : "DOWNLOAD_REQUEST:" + owner + "|" + fileName;
+        
+        // Register the target first, the reader thread writes the payload as it arrives
+        if (framed) {
+            int id = requestIds.incrementAndGet();
+            streams.put(id, new StreamDownload(downloadFile, owner + "|" + fileName, resumeOffset, checksums, null));
+            ((FramedWriter) out).println(id, request);
+        } else {
+            downloadAppend = resumeOffset > 0;  // Ranged replies continue after the bytes we already have
+            downloadVerifier = checksums != null ? new Verifier(checksums, resumeOffset) : null;
+            downloadTarget = downloadFile;
+            out.println(request);
+        }
         out.flush();
         
-        // Read response directly (listener is paused)
-        String response = readLine(dataIn);
+        // v1: arrives once the payload has been written, v2: before its DATA frames
+        String response = responseQueue.take();
         
-        if (response.startsWith("ERROR")) {
+        if (response.startsWith("DOWNLOAD_FAILED:")) {
+            responseQueue.take();  // The server still finishes the transfer
+            System.out.println("Download failed: " + response.substring(16));
+            return;
+        }
+        if (!response.startsWith("DOWNLOAD_START:")) {
+            downloadTarget = null;
+            downloadVerifier = null;
             System.out.println("Download failed: " + response.split(":", 2)[1]);
-            binaryMode = false;  // Re-enable listener
             return;
         }
         
-        if (response.startsWith("DOWNLOAD_START:")) {
-            String[] parts = response.substring(15).split("\\|");
-            String downloadFileName = parts[0];
-            long fileSize = Long.parseLong(parts[1]);
-            
-            System.out.println("Downloading " + downloadFileName + " (" + fileSize + " bytes)...");
-           // System.out.println("[DEBUG] Starting to receive file data...");
+        String[] parts = response.substring(15).split("\\|");
+        System.out.println("Downloading " + parts[0] + " (" + parts[1] + " bytes)...");
+        if (framed) {
+            System.out.println("The download continues in the background, you will be notified when it completes");
+            return;
+        }
+        
+        String completion = responseQueue.take();
+        if (completion.equals("DOWNLOAD_COMPLETE")) {
+            System.out.println("File downloaded successfully to: " + downloadFile.getAbsolutePath());
+        } else {
+            System.out.println("Download failed: " + completion);
+        }
+    }
+    
+    // Digests the server recorded at upload time, null if it has none for this file
+    private Checksums fetchChecksums(String owner, String fileName) throws InterruptedException {
+        out.println("CHECKSUMS:" + owner + "|" + fileName);
+        return Checksums.parse(responseQueue.take());
+    }
+    
+    /*
+        Segmented download: the file is split into K byte ranges, each fetched over its own
+        connection (authenticated with a TRANSFER_TOKEN) and written at its offset into a
+        preallocated file. A segment that fails is retried from where it stopped; one whose
+        block fails its CRC32C is retried from the start of that block.
+    */
+    private void parallelDownload() throws IOException, InterruptedException {
+        System.out.print("Enter file owner username: ");
+        String owner = userInput.readLine();
+        System.out.print("Enter file name: ");
+        String fileName = userInput.readLine();
+        System.out.print("Number of connections (1-" + MAX_CONNECTIONS + ", default 4): ");
+        String countInput = userInput.readLine().trim();
+        int connections = 4;
+        try {
+            if (!countInput.isEmpty()) connections = Integer.parseInt(countInput);
+        } catch (NumberFormatException e) {
+            // Keep the default
+        }
+        connections = Math.max(1, Math.min(MAX_CONNECTIONS, connections));
+        
+        // An empty range tells us the size and checks access without sending any data
+        out.println("DOWNLOAD_REQUEST:" + owner + "|" + fileName + "|0|0");
+        String response = responseQueue.take();
+        if (!response.startsWith("DOWNLOAD_START:")) {
+            System.out.println("Download failed: " + response.split(":", 2)[1]);
+            return;
+        }
+        String[] parts = response.substring(15).split("\\|");
+        long fileSize = Long.parseLong(parts[3]);
+        responseQueue.take();  // DOWNLOAD_COMPLETE of the empty range
+        
+        out.println("TRANSFER_TOKEN:");
+        response = responseQueue.take();
+        if (!response.startsWith("TRANSFER_TOKEN:")) {
+            System.out.println("Download failed: " + response);
+            return;
+        }
+        String token = response.substring(15);
+        
+        File downloadFile = new File("downloads/" + fileName);
+        downloadFile.getParentFile().mkdirs();
+        Checksums checksums = fetchChecksums(owner, fileName);
+        long segmentSize = Math.max(1, (fileSize + connections - 1) / connections);
+        if (checksums != null) {
+            // Whole blocks per segment, so every block can be verified
+            segmentSize = (segmentSize + checksums.blockSize - 1) / checksums.blockSize * checksums.blockSize;
+        }
+        AtomicLong received = new AtomicLong();
+        List<Future<?>> segments = new ArrayList<>();
+        ExecutorService pool = Executors.newFixedThreadPool(connections);
+        long startTime = System.nanoTime();
+        
+        System.out.println("Downloading " + fileName + " (" + fileSize + " bytes) over " + connections + " connections...");
+        try (RandomAccessFile raf = new RandomAccessFile(downloadFile, "rw")) {
+            raf.setLength(fileSize);  // Preallocate, segments are written in place
+            FileChannel channel = raf.getChannel();
             
-            // Receive file
-            File downloadFile = new File("downloads/" + downloadFileName);
-            downloadFile.getParentFile().mkdirs();
+            for (long start = 0; start < fileSize; start += segmentSize) {
+                long segmentStart = start;
+                long length = Math.min(segmentSize, fileSize - start);
+                segments.add(pool.submit(() -> {
+                    downloadSegment(token, owner, fileName, segmentStart, length, channel, received, checksums);
+                    return null;
+                }));
+            }
             
-            try (FileOutputStream fos = new FileOutputStream(downloadFile)) {
-                long totalReceived = 0;
-                
-                while (totalReceived < fileSize) {
-                    //System.out.println("[DEBUG] Attempting to read chunk size...");
-                    int chunkSize = dataIn.readInt();
-                    //System.out.println("[DEBUG] Read chunk size: " + chunkSize);
-                    byte[] buffer = new byte[chunkSize];
-                    int bytesRead = 0;
-                    
-                    while (bytesRead < chunkSize) {
-                        int read = dataIn.read(buffer, bytesRead, chunkSize - bytesRead);
-                        if (read == -1) break;
-                        bytesRead += read;
+            // Report aggregate progress until every segment is done
+            boolean failed = false;
+            for (Future<?> segment : segments) {
+                while (true) {
+                    try {
+                        segment.get(1, TimeUnit.SECONDS);
+                        break;
+                    } catch (TimeoutException e) {
+                        printThroughput(received.get(), fileSize, startTime);
+                    } catch (ExecutionException e) {
+                        System.out.println("Segment failed: " + e.getCause().getMessage());
+                        failed = true;
+                        break;
                     }
-                    
-                    fos.write(buffer, 0, bytesRead);
-                    totalReceived += bytesRead;
-                    
-                    System.out.println("Received: " + totalReceived + "/" + fileSize + " bytes");
+                }
+            }
+            
+            if (failed) {
+                System.out.println("Download incomplete, run it again to retry");
+                return;
+            }
+            printThroughput(received.get(), fileSize, startTime);
+            System.out.println("File downloaded successfully to: " + downloadFile.getAbsolutePath() 
+                    + (checksums != null ? " (verified)" : ""));
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+    
+    private void downloadSegment(String token, String owner, String fileName, long start, long length,
+                                 FileChannel channel, AtomicLong received, Checksums checksums) throws IOException {
+        long position = start;
+        long end = start + length;
+        IOException lastError = null;
+        
+        for (int attempt = 0; attempt < 3 && position < end; attempt++) {
+            ByteBuffer buffer = BufferPool.shared().acquire();
+            try (Socket transfer = SocketChannel.open(new InetSocketAddress(SERVER_HOST, SERVER_PORT)).socket()) {
+                ProtocolReader in = new ProtocolReader(transfer.getInputStream(), transfer.getChannel());
+                PrintWriter cmd = new PrintWriter(new OutputStreamWriter(transfer.getOutputStream(), StandardCharsets.UTF_8), true);
+                cmd.println("ATTACH");
+                cmd.println(username);
+                cmd.println(token);
+                String reply = in.readLine();
+                if (reply == null || !reply.startsWith("SUCCESS")) {
+                    throw new IOException("Transfer connection refused: " + reply);
                 }
                 
-                // Read completion message directly
-                String completion = readLine(dataIn);
-                System.out.println("Completion message: " + completion);
+                cmd.println("DOWNLOAD_REQUEST:" + owner + "|" + fileName + "|" + position + "|" + (end - position));
+                reply = in.readLine();
+                if (reply == null || !reply.startsWith("DOWNLOAD_START:")) {
+                    throw new IOException("Range request failed: " + reply);
+                }
                 
-                System.out.println("File downloaded successfully to: " + downloadFile.getAbsolutePath());
+                Verifier verifier = checksums != null ? new Verifier(checksums, position) : null;
+                while (position < end) {
+                    int chunkSize = in.readInt();
+                    for (int remaining = chunkSize; remaining > 0; ) {
+                        int n = Math.min(remaining, buffer.capacity());
+                        buffer.clear();
+                        in.readFully(buffer, n);
+                        buffer.flip();
+                        if (verifier != null) {
+                            verifier.update(buffer.duplicate());
+                            if (!verifier.badBlocks.isEmpty()) {
+                                // Part of the block may be written already, fetch all of it again
+                                long blockStart = verifier.badBlocks.get(0) * checksums.blockSize;
+                                received.addAndGet(blockStart - position);
+                                position = blockStart;
+                                throw new IOException("Block at " + blockStart + " failed verification");
+                            }
+                        }
+                        while (buffer.hasRemaining()) {
+                            position += channel.write(buffer, position);  // Positional, safe to share the channel
+                        }
+                        received.addAndGet(n);
+                        remaining -= n;
+                    }
+                    BufferPool.shared().transferred(chunkSize);
+                }
+                in.readLine();  // DOWNLOAD_COMPLETE
+                cmd.println("LOGOUT:");
+            } catch (IOException e) {
+                lastError = e;  // Retry the rest of this segment on a new connection
             } finally {
-                // Exit binary mode to resume text listener
-                binaryMode = false;
+                BufferPool.shared().release(buffer);
             }
-        } else {
-            binaryMode = false;  // Re-enable listener
+        }
+        if (position < end) {
+            throw lastError != null ? lastError : new IOException("Segment incomplete");
         }
     }
     
+    private void printThroughput(long received, long total, long startTime) {
+        double seconds = Math.max(1e-3, (System.nanoTime() - startTime) / 1e9);
+        System.out.printf("Received: %d/%d bytes (%.1f MB/s)%n", received, total, received / seconds / (1024 * 1024));
+    }
+    
     private void makeFileRequest() throws IOException, InterruptedException {
         System.out.print("Enter file description: ");
         String description = userInput.readLine();
@@ -452,55 +1003,254 @@ public class Client {
     }
     
     private void viewMessages() throws IOException, InterruptedException {
-        out.println("VIEW_MESSAGES:");
-        String response = responseQueue.take();
+        // Fetch one page at a time: VIEW_MESSAGES:<cursor>|<limit>
+        long cursor = 0;
+        boolean first = true;
         
-        if (response.startsWith("MESSAGES:")) {
-            String messageData = response.substring(9);
-            if (messageData.isEmpty()) {
+        while (true) {
+            out.println("VIEW_MESSAGES:" + cursor + "|" + PAGE_SIZE);
+            String response = responseQueue.take();
+            
+            if (!response.startsWith("MESSAGES_PAGE:")) {
+                System.out.println("Error: " + response);
+                return;
+            }
+            
+            // MESSAGES_PAGE:<nextCursor>|<hasMore>|<id>~<text>;...
+            String[] parts = response.substring(14).split("\\|", 3);
+            cursor = Long.parseLong(parts[0]);
+            boolean hasMore = Boolean.parseBoolean(parts[1]);
+            String messageData = parts.length > 2 ? parts[2] : "";
+            
+            if (first && messageData.isEmpty()) {
                 System.out.println("No unread messages");
                 return;
             }
+            if (first) {
+                System.out.println("\n=== Unread Messages ===");
+                first = false;
+            }
             
-            String[] messages = messageData.split(";");
-            System.out.println("\n=== Unread Messages ===");
-            for (String message : messages) {
+            for (String message : messageData.split(";")) {
                 if (!message.isEmpty()) {
-                    System.out.println("- " + message);
+                    System.out.println("- " + message.substring(message.indexOf('~') + 1));
                 }
             }
+            
+            if (!hasMore || !askForMore()) {
+                return;
+            }
         }
     }
     
     private void viewHistory() throws IOException, InterruptedException {
-        out.println("VIEW_HISTORY:");
-        String response = responseQueue.take();
+        // Newest entries first, one page at a time: VIEW_HISTORY:<cursor>|<limit>
+        String cursor = "";
+        boolean first = true;
         
-        if (response.startsWith("HISTORY:")) {
-            String historyData = response.substring(8);
-            if (historyData.isEmpty()) {
-                System.out.println("No history found");
+        while (true) {
+            out.println("VIEW_HISTORY:" + cursor + "|" + PAGE_SIZE);
+            String response = responseQueue.take();
+            
+            if (!response.startsWith("HISTORY_PAGE:")) {
+                System.out.println("Error: " + response);
                 return;
             }
             
-            String[] entries = historyData.split(";");
-            System.out.println("\n=== Upload/Download History ===");
-            System.out.println(String.format("%-20s %-20s %-10s %-20s", "File", "Timestamp", "Action", "Status"));
-            System.out.println("=".repeat(75));
+            // HISTORY_PAGE:<nextCursor>|<hasMore>|entry;entry;...
+            String[] parts = response.substring(13).split("\\|", 3);
+            cursor = parts[0];
+            boolean hasMore = Boolean.parseBoolean(parts[1]);
+            String historyData = parts.length > 2 ? parts[2] : "";
             
-            for (String entry : entries) {
+            if (first && historyData.isEmpty()) {
+                System.out.println("No history found");
+                return;
+            }
+            if (first) {
+                System.out.println("\n=== Upload/Download History ===");
+                System.out.println(String.format("%-20s %-20s %-10s %-20s", "File", "Timestamp", "Action", "Status"));
+                System.out.println("=".repeat(75));
+                first = false;
+            }
+            
+            for (String entry : historyData.split(";")) {
                 if (!entry.isEmpty()) {
-                    String[] parts = entry.split("\\|");
+                    String[] fields = entry.split("\\|");
                     System.out.println(String.format("%-20s %-20s %-10s %-20s", 
-                        parts[0], parts[1], parts[2], parts[3]));
+                        fields[0], fields[1], fields[2], fields[3]));
                 }
             }
+            
+            if (!hasMore || !askForMore()) {
+                return;
+            }
         }
     }
     
+    private boolean askForMore() throws IOException {
+        System.out.print("Show more? (yes/no): ");
+        String answer = userInput.readLine();
+        return answer != null && answer.equalsIgnoreCase("yes");
+    }
+    
     private void logout() throws IOException {
         out.println("LOGOUT:");
         socket.close();
         System.out.println("Logged out successfully");
     }
+    
+    // A v2 download stream being written by the reader thread
+    private static class StreamDownload {
+        final File file;
+        final String source;  // owner|fileName on the server
+        final long start;  // File offset of the first byte of the stream
+        final Verifier verifier;  // null if the server has no checksums for the file
+        final StreamDownload parent;  // Download whose failed block this stream fetches again, or null
+        int repairsLeft;  // Streams still fetching failed blocks of this download
+        String error;
+        private RandomAccessFile out;
+        private long size = -1;  // Bytes announced by DOWNLOAD_START
+        private long received;
+        
+        StreamDownload(File file, String source, long start, Checksums checksums, StreamDownload parent) {
+            this.file = file;
+            this.source = source;
+            this.start = start;
+            this.verifier = checksums != null ? new Verifier(checksums, start) : null;
+            this.parent = parent;
+        }
+        
+        // The file is only opened once the server accepted the request
+        void start(long size) {
+            this.size = size;
+            try {
+                out = new RandomAccessFile(file, "rw");
+                if (parent == null) {
+                    out.setLength(start);  // Drop whatever followed the bytes we resume after
+                }
+                out.seek(start);
+            } catch (IOException e) {
+                error = "Cannot write " + file + ": " + e.getMessage();
+            }
+        }
+        
+        boolean started() {
+            return size >= 0;
+        }
+        
+        // Write the buffer's remaining bytes at the file position, the buffer is left unchanged
+        void write(ByteBuffer data) {
+            if (error != null || out == null) return;  // Keep consuming the stream's frames
+            try {
+                ByteBuffer src = data.duplicate();
+                while (src.hasRemaining()) {
+                    out.getChannel().write(src);
+                }
+                received += data.remaining();
+                if (verifier != null) {
+                    verifier.update(data.duplicate());
+                }
+            } catch (IOException e) {
+                error = "Cannot write " + file + ": " + e.getMessage();
+            }
+        }
+        
+        // Close the file; returns an error message or null if all bytes arrived
+        String finish(String completion) {
+            try {
+                if (out != null) out.close();
+            } catch (IOException e) {
+                if (error == null) error = e.getMessage();
+            }
+            if (error == null && !completion.equals("DOWNLOAD_COMPLETE")) {
+                error = completion;
+            } else if (error == null && received < size) {
+                error = "Received " + received + " of " + size + " bytes";
+            }
+            return error;
+        }
+    }
+    
+    // CHECKSUMS:<sha256>|<size>|<blockSize>|<crc>,<crc>,... as recorded by the server at upload time
+    private static class Checksums {
+        final String hash;
+        final long size;
+        final int blockSize;
+        final long[] blockCrcs;
+        
+        private Checksums(String hash, long size, int blockSize, long[] blockCrcs) {
+            this.hash = hash;
+            this.size = size;
+            this.blockSize = blockSize;
+            this.blockCrcs = blockCrcs;
+        }
+        
+        // null for an error reply or one we cannot read
+        static Checksums parse(String reply) {
+            if (!reply.startsWith("CHECKSUMS:")) return null;
+            String[] parts = reply.substring(10).split("\\|", -1);
+            if (parts.length < 4) return null;
+            try {
+                String[] crcs = parts[3].isEmpty() ? new String[0] : parts[3].split(",");
+                long[] blockCrcs = new long[crcs.length];
+                for (int i = 0; i < crcs.length; i++) {
+                    blockCrcs[i] = Long.parseLong(crcs[i], 16);
+                }
+                int blockSize = Integer.parseInt(parts[2]);
+                return blockSize > 0 ? new Checksums(parts[0], Long.parseLong(parts[1]), blockSize, blockCrcs) : null;
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+    
+    /*
+        Checks download bytes as they arrive, so the file is never read back: every block that
+        is received from its start is compared with its CRC32C, and a download that starts at
+        byte 0 also keeps the SHA-256 of everything it received.
+    */
+    private static class Verifier {
+        final Checksums checksums;
+        final List<Long> badBlocks = new ArrayList<>();  // Indexes of blocks that failed their CRC32C
+        private final CRC32C crc = new CRC32C();
+        private final MessageDigest digest;  // null unless the download starts at byte 0
+        private long position;
+        private boolean wholeBlock;  // The current block was received from its first byte
+        
+        Verifier(Checksums checksums, long start) {
+            this.checksums = checksums;
+            this.position = start;
+            this.wholeBlock = start % checksums.blockSize == 0;
+            this.digest = start == 0 ? newSha256() : null;
+        }
+        
+        // Consumes the buffer's remaining bytes
+        void update(ByteBuffer data) {
+            if (digest != null) {
+                digest.update(data.duplicate());
+            }
+            while (data.hasRemaining() && position < checksums.size) {
+                long block = position / checksums.blockSize;
+                long blockEnd = Math.min((block + 1) * checksums.blockSize, checksums.size);
+                int n = (int) Math.min(data.remaining(), blockEnd - position);
+                ByteBuffer part = data.slice().limit(n);
+                crc.update(part);
+                data.position(data.position() + n);
+                position += n;
+                if (position == blockEnd) {
+                    if (wholeBlock && (block >= checksums.blockCrcs.length || crc.getValue() != checksums.blockCrcs[(int) block])) {
+                        badBlocks.add(block);
+                    }
+                    crc.reset();
+                    wholeBlock = true;
+                }
+            }
+        }
+        
+        // True if the whole file went through this verifier and matches its SHA-256
+        boolean hashMatches() {
+            return digest != null && position == checksums.size && hex(digest.digest()).equals(checksums.hash);
+        }
+    }
 }
@@ -1,65 +1,228 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
 import java.util.*;
-import java.text.SimpleDateFormat;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
 
-public class ClientHandler extends Thread {
+public class ClientHandler implements Runnable {
     private Socket socket;
     private String username;
     private PrintWriter out;
-    private DataInputStream dataIn;
+    private ProtocolReader dataIn;
     private DataOutputStream dataOut;
+    private final OutputStream rawOut;  // ChannelOutputStream when the socket has a channel
     private volatile boolean running = true;
+    private static final int MAX_PAGE_LIMIT = 500;  // Upper bound for paged VIEW_HISTORY / VIEW_MESSAGES
+    private final boolean transferOnly;  // Extra connection opened with a TRANSFER_TOKEN
+    private final boolean framed;  // Protocol v2 negotiated at login, see FrameProtocol
+    private final FrameProtocol.Header frame = new FrameProtocol.Header();
+    private final ReentrantLock chunkLock = new ReentrantLock();  // v1 only, held for a whole download
+    private final Queue<String> deferredPushes = new ConcurrentLinkedQueue<>();  // v1 pushes held back by a download
+    private final Semaphore streams = new Semaphore(Server.getMaxStreams());  // Commands running on the executor
+    private final Map<String, UploadProof> pendingProofs = new ConcurrentHashMap<>();  // UPLOAD_PROVE token -> challenge
+    private final AtomicInteger proofIds = new AtomicInteger();
+    
+    private static final int PROOF_RANGE = 64 * 1024;  // Most bytes a client hashes to prove it has the content
+    private static final int MAX_PENDING_PROOFS = 16;
+    private static final long PROOF_TTL_MILLIS = 60_000;  // An unanswered UPLOAD_PROVE is dropped after this
+    private static final SecureRandom PROOF_RANDOM = new SecureRandom();
+    
+    // An UPLOAD_HASH waiting for its UPLOAD_PROOF
+    private static class UploadProof {
+        final String data;  // The UPLOAD_REQUEST fields
+        final String hash;
+        final long offset;
+        final int length;
+        final long expiresAt;
+        
+        UploadProof(String data, String hash, long offset, int length, long expiresAt) {
+            this.data = data;
+            this.hash = hash;
+            this.offset = offset;
+            this.length = length;
+            this.expiresAt = expiresAt;
+        }
+    }
+    
+    // Stream (requestId) of the command running on this thread, replies and DATA frames carry it in v2
+    private static final ThreadLocal<Integer> STREAM_ID = ThreadLocal.withInitial(() -> 0);
     
     public ClientHandler(Socket socket, String username, PrintWriter out, 
-                         InputStream rawIn, OutputStream rawOut) {
+                         ProtocolReader dataIn, OutputStream rawOut) {
+        this(socket, username, out, dataIn, rawOut, false, false);
+    }
+    
+    public ClientHandler(Socket socket, String username, PrintWriter out, 
+                         ProtocolReader dataIn, OutputStream rawOut, boolean transferOnly, boolean framed) {
         this.socket = socket;
         this.username = username;
-        this.out = out;
-        this.dataIn = new DataInputStream(rawIn);
+        this.out = framed ? new FramedWriter(rawOut, STREAM_ID::get) : out;
+        this.dataIn = dataIn;
         this.dataOut = new DataOutputStream(rawOut);
+        this.rawOut = rawOut;
+        this.transferOnly = transferOnly;
+        this.framed = framed;
     }
 
     @Override
     public void run() {
         try {
-            while (running) {
-                // Read command line using DataInputStream to avoid buffering issues
-                String command = readLine(dataIn);
-                
-                if (command == null || command.isEmpty()) {
-                    break;
-                }
-                
-                System.out.println("Command from " + username + ": " + command);
-                handleCommand(command);
+            while (processNextCommand()) {
+                // Keep serving this client
             }
         } catch (IOException e) {
-            System.out.println("Client " + username + " disconnected: " + e.getMessage());
+            Log.info("Client {} disconnected: {}", username, e.getMessage());
         } finally {
             cleanup();
         }
     }
     
-    // Read a line from DataInputStream without buffering extra bytes
-    private String readLine(DataInputStream in) throws IOException {
-        StringBuilder sb = new StringBuilder();
-        int c;
-        while ((c = in.read()) != -1) {
-            if (c == '\n') {
-                break;
+    // Read and handle a single command, returns false once the session is over
+    boolean processNextCommand() throws IOException {
+        String command = framed ? readCommandFrame() : dataIn.readLine();
+        
+        if (command == null || command.isEmpty()) {
+            return false;
+        }
+        
+        Log.debug("Command from {}: {}", username, command);
+        if (framed && !runsOnReader(command)) {
+            dispatch(frame.requestId, command);
+        } else {
+            STREAM_ID.set(frame.requestId);
+            handleCommand(command);
+        }
+        return running;
+    }
+    
+    // UPLOAD_CHUNK reads its DATA frame from the input and LOGOUT ends the session
+    private static boolean runsOnReader(String command) {
+        return command.startsWith("UPLOAD_CHUNK:") || command.startsWith("LOGOUT");
+    }
+    
+    /*
+        v2 commands run on the stream executor, so a listing does not wait behind a download
+        and several transfers of one session proceed at once. Their frames interleave through
+        the fair frame lock. The reader thread goes straight back to reading the next frame.
+    */
+    private void dispatch(int streamId, String command) {
+        if (!streams.tryAcquire()) {
+            STREAM_ID.set(streamId);
+            out.println("ERROR:Too many concurrent requests");
+            return;
+        }
+        Server.getStreamExecutor().execute(() -> {
+            STREAM_ID.set(streamId);
+            try {
+                handleCommand(command);
+            } catch (IOException e) {
+                Log.debug("Stream {} of {} failed: {}", streamId, username, e.getMessage());  // The reader sees the dead connection
+            } catch (RuntimeException e) {
+                Log.error("Error serving " + username, e);
+                out.println("ERROR:Invalid command");
+            } finally {
+                STREAM_ID.remove();
+                streams.release();
+            }
+        });
+    }
+    
+    // Next TEXT frame as a command, frames that are not commands are dropped
+    private String readCommandFrame() throws IOException {
+        while (FrameProtocol.readHeader(dataIn, frame)) {
+            if (frame.type == FrameProtocol.TEXT) {
+                return FrameProtocol.readText(dataIn, frame.length);
             }
-            if (c != '\r') {   // Skip \r
-                sb.append((char) c);
+            dataIn.skipBytes(frame.length);
+            Log.debug("Dropped frame of type {} from {}", frame.type, username);
+        }
+        return null;
+    }
+    
+    // Push a notification; in v2 it is a PUSH frame that never splits a running transfer
+    void sendNotification(String message) {
+        if (framed) {
+            ((FramedWriter) out).push("NEW_MESSAGE:" + message);
+        } else {
+            deferredPushes.add("NEW_MESSAGE:" + message);
+            flushPushes();
+        }
+    }
+    
+    /*
+        A v1 client reads a download as one block of chunks up to DOWNLOAD_COMPLETE, so a push
+        may not land anywhere inside it. Pushes are queued and written by whoever gets chunkLock
+        without waiting: the pushing thread, or the download once it releases the lock.
+    */
+    private void flushPushes() {
+        while (!deferredPushes.isEmpty() && chunkLock.tryLock()) {
+            try {
+                String push;
+                while ((push = deferredPushes.poll()) != null) {
+                    out.println(push);
+                }
+            } finally {
+                chunkLock.unlock();
             }
         }
-        return sb.length() > 0 || c != -1 ? sb.toString() : null;
+    }
+    
+    void close() {
+        cleanup();
+    }
+    
+    SocketChannel getChannel() {
+        return socket.getChannel();
+    }
+    
+    // Used by the selector engine, waits for a push that is being written to finish first
+    void configureBlocking(boolean block) throws IOException {
+        if (rawOut instanceof ChannelOutputStream) {
+            ((ChannelOutputStream) rawOut).configureBlocking(block);
+        } else {
+            getChannel().configureBlocking(block);
+        }
+    }
+    
+    // True if the next command already arrived with the previous one
+    boolean hasBufferedInput() {
+        return dataIn.buffered() > 0;
+    }
+    
+    String getUsername() {
+        return username;
     }
     
     private void handleCommand(String command) throws IOException {
         String[] parts = command.split(":", 2);
         String cmd = parts[0];
         
+        // Transfer connections only move data, the user's session stays on the main connection
+        if (transferOnly && !cmd.equals("DOWNLOAD_REQUEST") && !cmd.equals("UPLOAD_CHUNK") && !cmd.equals("LOGOUT")) {
+            out.println("ERROR:Not allowed on a transfer connection");
+            return;
+        }
+        
+        long started = System.nanoTime();
+        try {
+            dispatch(cmd, parts);
+        } finally {
+            Metrics.command(cmd, System.nanoTime() - started);
+        }
+    }
+    
+    private void dispatch(String cmd, String[] parts) throws IOException {
         switch (cmd) {
             case "LIST_CLIENTS":
                 handleListClients();
@@ -71,7 +234,13 @@ public class ClientHandler extends Thread {
                 handleListPublicFiles(parts.length > 1 ? parts[1] : "");
                 break;
             case "UPLOAD_REQUEST":
-                handleUploadRequest(parts[1]);
+                handleUploadRequest(parts[1], null);
+                break;
+            case "UPLOAD_HASH":
+                handleUploadHash(parts.length > 1 ? parts[1] : "");
+                break;
+            case "UPLOAD_PROOF":
+                handleUploadProof(parts.length > 1 ? parts[1] : "");
                 break;
             case "UPLOAD_CHUNK":
                 handleUploadChunk(parts[1]);
@@ -79,17 +248,29 @@ public class ClientHandler extends Thread {
             case "UPLOAD_COMPLETE":
                 handleUploadComplete(parts[1]);
                 break;
+            case "TRANSFER_TOKEN":
+                out.println("TRANSFER_TOKEN:" + Server.issueTransferToken(username));
+                break;
+            case "UPLOAD_RESUME":
+                handleUploadResume(parts.length > 1 ? parts[1] : "");
+                break;
+            case "LIST_UPLOADS":
+                handleListUploads();
+                break;
             case "DOWNLOAD_REQUEST":
                 handleDownloadRequest(parts[1]);
                 break;
+            case "CHECKSUMS":
+                handleChecksums(parts.length > 1 ? parts[1] : "");
+                break;
             case "FILE_REQUEST":
                 handleFileRequest(parts[1]);
                 break;
             case "VIEW_MESSAGES":
-                handleViewMessages();
+                handleViewMessages(parts.length > 1 ? parts[1] : "");
                 break;
             case "VIEW_HISTORY":
-                handleViewHistory();
+                handleViewHistory(parts.length > 1 ? parts[1] : "");
                 break;
             case "DELETE_FILE":
                 handleDeleteFile(parts.length > 1 ? parts[1] : "");
@@ -97,6 +278,12 @@ public class ClientHandler extends Thread {
             case "DELETE_MESSAGE":
                 handleDeleteMessage(parts.length > 1 ? parts[1] : "");
                 break;
+            case "DELETE_MESSAGE_ID":
+                handleDeleteMessageById(parts.length > 1 ? parts[1] : "");
+                break;
+            case "METRICS":
+                handleMetrics();
+                break;
             case "LOGOUT":
                 running = false;
                 out.println("SUCCESS:Logged out");
@@ -106,13 +293,24 @@ public class ClientHandler extends Thread {
         }
     }
     
+    // METRICS: -> METRICS:<name>=<value>;... for the users in admin.users, see Metrics.summary
+    private void handleMetrics() {
+        if (!Server.isAdmin(username)) {
+            out.println("ERROR:Not allowed");
+            return;
+        }
+        out.println("METRICS:" + Metrics.summary());
+    }
+    
     private void handleListClients() {
         StringBuilder response = new StringBuilder("CLIENT_LIST:");
         Set<String> allClients = Server.getAllKnownClients();
         Map<String, ClientHandler> onlineClients = Server.getOnlineClients();
         
-        System.out.println("All known clients: " + allClients);
-        System.out.println("Online clients: " + onlineClients.keySet());
+        if (Log.isDebugEnabled()) {
+            // Snapshot now, the appender formats later
+            Log.debug("Known clients: {}, online: {}", allClients.toString(), onlineClients.keySet().toString());
+        }
         
         for (String client : allClients) {
             boolean isOnline = onlineClients.containsKey(client);
@@ -120,27 +318,17 @@ public class ClientHandler extends Thread {
         }
         
         String finalResponse = response.toString();
-        System.out.println("Sending response to " + username + ": " + finalResponse);
+        Log.debug("Sending response to {}: {}", username, finalResponse);
         out.println(finalResponse);
         out.flush();
     }
     
     private void handleListOwnFiles() {
-        File userDir = new File("server_data/" + username);
-        File metadataFile = new File(userDir, "metadata.txt");
-        
         StringBuilder response = new StringBuilder("OWN_FILES:");
         
-        if (metadataFile.exists()) {
-            try (BufferedReader reader = new BufferedReader(new FileReader(metadataFile))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    // filename|public|requestId
-                    response.append(line).append(";");
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        for (FileMetadata metadata : MetadataIndex.list(username)) {
+            // filename|public|requestId|description
+            response.append(metadata.toLine()).append(";");
         }
         
         out.println(response.toString());
@@ -152,30 +340,90 @@ public class ClientHandler extends Thread {
             return;
         }
         
-        File userDir = new File("server_data/" + targetUsername);
-        File metadataFile = new File(userDir, "metadata.txt");
-        
         StringBuilder response = new StringBuilder("PUBLIC_FILES:");
         
-        if (metadataFile.exists()) {
-            try (BufferedReader reader = new BufferedReader(new FileReader(metadataFile))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    String[] parts = line.split("\\|");
-                    if (parts.length >= 2 && parts[1].equals("public")) {
-                        String desc = parts.length > 3 ? parts[3] : "";
-                        response.append(parts[0]).append("~").append(desc).append(";");
-                    }
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
+        for (FileMetadata metadata : MetadataIndex.list(targetUsername)) {
+            if (metadata.isPublic) {
+                response.append(metadata.fileName).append("~").append(metadata.description).append(";");
             }
         }
         
         out.println(response.toString());
     }
     
-    private void handleUploadRequest(String data) throws IOException {
+    /*
+        UPLOAD_HASH:<sha256>|<same fields as UPLOAD_REQUEST>
+        
+        If the server already stores that content, the file is linked in without any data being
+        sent and the reply is UPLOAD_EXISTS. Otherwise it continues as UPLOAD_REQUEST, and the
+        upload must match the announced hash when it completes.
+        
+        Knowing a hash is not proof of having the content, so unless the user already has a
+        file with it the server first replies UPLOAD_PROVE:<token>|<offset>|<length> for a
+        random range, see handleUploadProof. It does so whether or not it stores the content,
+        otherwise the challenge alone would tell anyone that knows a hash that it does.
+    */
+    private void handleUploadHash(String data) throws IOException {
+        String[] parts = data.split("\\|", 2);
+        if (parts.length < 2 || !parts[0].matches("[0-9a-f]{64}")) {
+            out.println("ERROR:Invalid hash");
+            return;
+        }
+        handleUploadRequest(parts[1], parts[0]);
+    }
+    
+    /*
+        UPLOAD_PROOF:<token>|<sha256 of the range>
+        
+        Answer to UPLOAD_PROVE. A matching hash links the stored content in (UPLOAD_EXISTS),
+        anything else continues as a normal upload without the announced hash.
+    */
+    private void handleUploadProof(String data) throws IOException {
+        String[] parts = data.split("\\|", 2);
+        UploadProof proof = parts.length < 2 ? null : pendingProofs.remove(parts[0]);
+        if (proof == null || proof.expiresAt < System.currentTimeMillis()) {
+            out.println("ERROR:Unknown upload proof");
+            return;
+        }
+        String expected = BlobStore.rangeHash(proof.hash, proof.offset, proof.length);
+        if (expected != null && expected.equals(parts[1].trim())) {
+            handleUploadRequest(proof.data, proof.hash, true);
+        } else {
+            Log.debug("Upload proof for {} did not match, uploading it in full", username);
+            handleUploadRequest(proof.data, null, false);
+        }
+    }
+    
+    private void handleUploadRequest(String data, String hash) throws IOException {
+        handleUploadRequest(data, hash, false);
+    }
+    
+    // Ask for the SHA-256 of a random range of the content, false if too many are pending
+    private boolean requestProof(String data, String hash, long fileSize) {
+        long now = System.currentTimeMillis();
+        pendingProofs.values().removeIf(proof -> proof.expiresAt < now);
+        if (pendingProofs.size() >= MAX_PENDING_PROOFS) {
+            return false;
+        }
+        int length = (int) Math.min(PROOF_RANGE, fileSize);
+        long offset = fileSize == length ? 0 : PROOF_RANDOM.nextLong(fileSize - length + 1);
+        String token = Integer.toString(proofIds.incrementAndGet());
+        pendingProofs.put(token, new UploadProof(data, hash, offset, length, now + PROOF_TTL_MILLIS));
+        out.println("UPLOAD_PROVE:" + token + "|" + offset + "|" + length);
+        return true;
+    }
+    
+    // True if one of the user's own files already has this content
+    private boolean ownsContent(String hash) {
+        for (FileMetadata metadata : MetadataIndex.list(username)) {
+            if (hash.equals(BlobStore.hashOf(username, metadata.fileName))) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    private void handleUploadRequest(String data, String hash, boolean proven) throws IOException {
         // filename|filesize|ispublic|requestId|description
         String[] parts = data.split("\\|", 5);
         String fileName = parts[0];
@@ -187,93 +435,241 @@ public class ClientHandler extends Thread {
         // Check if requestId is valid (if provided)
         String requesterUsername = "";  // Username of the person who requested this file
         if (!requestId.isEmpty()) {
-            boolean validRequest = false;
-            System.out.println("Validating request ID: " + requestId + " for user: " + username);
-            System.out.println("All file requests: " + Server.getAllFileRequests());
-            
-            // Search all file requests to validate the request ID
-            for (Map.Entry<String, List<FileRequest>> entry : Server.getAllFileRequests().entrySet()) {
-                System.out.println("Checking recipient: " + entry.getKey() + " with requests: " + entry.getValue().size());
-                for (FileRequest req : entry.getValue()) {
-                    System.out.println("  Request ID: " + req.requestId + ", Requester: " + req.requester);
-                    if (req.requestId.equals(requestId)) {
-                        validRequest = true;
-                        requesterUsername = req.requester; // Store requester username 
-                        System.out.println("  -> VALID REQUEST FOUND! Requester: " + requesterUsername);
-                        break;
-                    }
-                }
-                if (validRequest) break;
-            }
-            if (!validRequest) {
+            FileRequest request = Server.getFileRequest(requestId);
+            if (request == null) {
                 out.println("ERROR:Invalid request ID");
-                System.out.println("Invalid request ID: " + requestId + " from " + username);
+                Log.info("Invalid request ID {} from {}", requestId, username);
+                return;
+            }
+            FileRequestRegistry registry = Server.getFileRequestRegistry();
+            if (!registry.isAddressedTo(request, username)) {
+                out.println("ERROR:Request is not addressed to you");
+                Log.info("Request {} is not addressed to {}", requestId, username);
+                return;
+            }
+            if (registry.isFulfilledBy(request, username)) {
+                out.println("ERROR:Request already fulfilled");
+                return;
+            }
+            requesterUsername = request.requester;
+        }
+        
+        // Content the server already has is linked in, nothing has to be sent. Knowing its hash
+        // is not enough: unless the user already has a file with it, the client proves it first.
+        // Every such upload is challenged, stored or not, so the reply gives nothing away
+        if (hash != null) {
+            if (!proven && fileSize > 0 && !ownsContent(hash)) {
+                if (requestProof(data, hash, fileSize)) {
+                    return;
+                }
+            } else if (BlobStore.contains(hash, fileSize) && BlobStore.linkExisting(hash, fileSize, username, fileName)) {
+                saveFileMetadata(fileName, isPublic, requesterUsername, description);
+                out.println("UPLOAD_EXISTS");
+                logAction(fileName, "upload", "success - deduplicated");
+                Log.info("Upload of {} by {} deduplicated", fileName, username);
+                if (!requestId.isEmpty()) {
+                    notifyFileUploaded(requestId, fileName, description);
+                }
                 return;
             }
         }
         
-        // Check buffer availability
-        if (!Server.reserveBuffer(fileSize)) {
-            out.println("ERROR:Buffer full");
+        // Credits cover the chunks in flight, a busy server makes us wait our turn instead of refusing
+        ChunkSizer sizer = Server.newChunkSizer(fileSize);
+        int chunkSize = sizer.chunkSize();
+        long credits = reserveWindow(fileSize, chunkSize);
+        if (credits == 0) {
+            out.println("ERROR:Buffer full, try again later");
             logAction(fileName, "upload", "failed - buffer full");
             return;
         }
+        int window = windowFor(credits, fileSize, chunkSize);
         
-        // Generate file ID and chunk size
         String fileId = Server.generateFileId();
-        int chunkSize = Server.getRandomChunkSize();
         
         // Create upload session
-        FileUploadSession session = new FileUploadSession(fileId, username, fileName, 
-                                                          fileSize, chunkSize, isPublic, requestId);
+        FileUploadSession session;
+        try {
+            session = new FileUploadSession(fileId, username, fileName, 
+                                            fileSize, chunkSize, isPublic, requestId);
+        } catch (IOException e) {
+            Server.getUploadBudget().release(username, credits);
+            out.println("ERROR:Failed to create upload");
+            logAction(fileName, "upload", "failed - spool error");
+            return;
+        }
         session.requesterUsername = requesterUsername;  // Set requester username
         session.description = description;  // Set description
+        session.setCredits(credits);
+        session.expectedHash = hash;
+        session.sizer = sizer;
+        session.attach(this);
         Server.addUploadSession(fileId, session);
         
-        out.println("UPLOAD_APPROVED:" + fileId + "|" + chunkSize);
-        System.out.println("Upload approved for " + username + ": " + fileName + " (" + fileSize + " bytes)");
+        // The window tells the client how many chunks it may send before waiting for an ACK
+        out.println("UPLOAD_APPROVED:" + fileId + "|" + chunkSize + "|" + window);
+        sizer.started(System.nanoTime());
+        Log.info("Upload approved for {}: {} ({} bytes)", username, fileName, fileSize);
     }
     
+    /*
+        UPLOAD_CHUNK:<fileId>|<length>                           -> CHUNK_ACK (stop-and-wait, chunks in order)
+        UPLOAD_CHUNK:<fileId>|<length>|<seq>|<offset>[|<crc32c>] -> CHUNK_ACK:<seq>|<committed>
+                                                                    CHUNK_NACK:<seq>|<committed>
+        
+        Sequenced chunks are written at their offset, so a client can keep a window of them in
+        flight and resend only the ones that were NACKed. <committed> is the number of bytes from
+        the start of the file that have all been written (a cumulative ACK). A chunk whose data
+        does not match its CRC32C (hex) is NACKed without being written.
+        
+        An ACK may carry |<chunkSize>|<window>: the chunk size ChunkSizer picked from the RTT and
+        rate seen so far, for the chunks the client has not sent yet. Chunks already in flight
+        keep their size, every chunk says its own length and offset.
+    */
     private void handleUploadChunk(String data) throws IOException {
-        //fileId|chunkSize
+        long arrived = System.nanoTime();
         String[] parts = data.split("\\|");
         String fileId = parts[0];
         int chunkSize = Integer.parseInt(parts[1]);
+        String seq = parts.length > 3 ? parts[2] : null;
+        String crc = parts.length > 4 ? parts[4].trim() : null;
+        long offset = -1;
+        if (seq != null) {
+            try {
+                offset = Long.parseLong(parts[3]);
+            } catch (NumberFormatException e) {
+                offset = -2;  // Drain the data, then NACK
+            }
+        }
+        
+        if (framed) {
+            // The payload follows in its own DATA frame, whose length is authoritative
+            if (!FrameProtocol.readHeader(dataIn, frame)) {
+                throw new EOFException();
+            }
+            if (frame.type != FrameProtocol.DATA) {
+                throw new IOException("Expected a DATA frame after UPLOAD_CHUNK");
+            }
+            chunkSize = frame.length;
+        }
         
         FileUploadSession session = Server.getUploadSession(fileId);
-        if (session == null) {
-            out.println("ERROR:Invalid file ID");
+        if (session == null || !session.username.equals(username)) {
+            // The chunk data still has to be consumed to keep the stream in sync
+            dataIn.skipBytes(chunkSize);
+            out.println(seq != null ? "CHUNK_NACK:" + seq + "|0" : "ERROR:Invalid file ID");
             return;
         }
         
-        // Read chunk data
-        byte[] buffer = new byte[chunkSize];
-        int totalRead = 0;
-        while (totalRead < chunkSize) {
-            int read = dataIn.read(buffer, totalRead, chunkSize - totalRead);
-            if (read == -1) break;
-            totalRead += read;
+        if (chunkSize > Server.getMaxChunkSize()) {
+            dataIn.skipBytes(chunkSize);
+            out.println(seq != null ? "CHUNK_NACK:" + seq + "|" + session.committedSize() : "ERROR:Chunk too large");
+            return;
         }
         
-        byte[] chunk = Arrays.copyOf(buffer, totalRead);
-        session.addChunk(chunk);
+        // The whole chunk is checked before any of it is written; a short read ends the
+        // connection (EOFException) instead of committing a truncated chunk. The pooled buffer
+        // is only held for this one chunk, idle connections pin none.
+        ByteBuffer chunk = BufferPool.shared().acquire();
+        boolean written = false;
+        try {
+            dataIn.readFully(chunk, chunkSize);
+            chunk.flip();
+            BufferPool.shared().transferred(chunkSize);
+            Metrics.uploaded(chunkSize);
+            boolean valid = offset != -2 && (crc == null || crcMatches(chunk, crc));
+            if (valid) {
+                try {
+                    if (seq != null) {
+                        session.addChunk(chunk, offset);
+                    } else {
+                        session.addChunk(chunk);
+                    }
+                    written = true;
+                } catch (IOException e) {
+                    Log.warn("Failed to write chunk of {}: {}", fileId, e.getMessage());
+                }
+            } else {
+                Log.debug("Rejected chunk {} of {}: checksum mismatch", seq, fileId);
+            }
+        } finally {
+            BufferPool.shared().release(chunk);
+        }
         
-        out.println("CHUNK_ACK");
+        if (seq == null) {
+            out.println(written ? "CHUNK_ACK" : "ERROR:Failed to write chunk");
+        } else if (!written) {
+            out.println("CHUNK_NACK:" + seq + "|" + session.committedSize());
+            session.sizer.acked(System.nanoTime());
+        } else {
+            session.sizer.chunkArrived(arrived, chunkSize);
+            out.println("CHUNK_ACK:" + seq + "|" + session.committedSize() + resize(session));
+            session.sizer.acked(System.nanoTime());
+        }
         out.flush();
-        System.out.println("Chunk received for " + fileId + ": " + totalRead + " bytes");
+        Log.trace("Chunk received for {}: {} bytes", fileId, chunkSize);
+    }
+    
+    // ACK suffix |<chunkSize>|<window> when the sizer wants another chunk size, credits follow the new window
+    private String resize(FileUploadSession session) {
+        UploadBudget budget = Server.getUploadBudget();
+        int next = session.sizer.adjust((double) budget.inUse() / budget.capacity());
+        if (next == 0) return "";
+        
+        long remaining = Math.max(1, session.totalSize - session.committedSize());
+        long wanted = Math.min(remaining, (long) next * Server.getUploadWindow());
+        long held = session.credits();
+        if (wanted > held) {
+            held += budget.tryAcquire(username, wanted - held);
+        } else if (wanted < held) {
+            // Chunks already sent at the old size may still arrive, the overshoot is one window at most
+            budget.release(username, held - wanted);
+            held = wanted;
+        }
+        session.setCredits(held);
+        
+        int chunkSize = (int) Math.min(next, held);
+        session.sizer.limit(chunkSize);
+        session.chunkSize = chunkSize;
+        Log.debug("Upload {} now uses {} byte chunks at {} KB/s", session.fileId, chunkSize, (long) (session.sizer.rate() / 1024));
+        return "|" + chunkSize + "|" + windowFor(held, remaining, chunkSize);
+    }
+    
+    private static boolean crcMatches(ByteBuffer data, String expected) {
+        CRC32C crc = new CRC32C();
+        crc.update(data.duplicate());
+        try {
+            return crc.getValue() == Long.parseLong(expected, 16);
+        } catch (NumberFormatException e) {
+            return false;
+        }
     }
     
-    private void handleUploadComplete(String fileId) throws IOException {
+    // UPLOAD_COMPLETE:<fileId>[|<sha256>], the hash is checked against the one computed while the chunks came in
+    private void handleUploadComplete(String data) throws IOException {
+        String[] fields = data.split("\\|");
+        String fileId = fields[0];
         FileUploadSession session = Server.getUploadSession(fileId);
-        if (session == null) {
+        if (session == null || !session.username.equals(username)) {
             out.println("ERROR:Invalid file ID");
             return;
         }
         
-        // Verify file size
-        if (session.isComplete()) {
+        if (fields.length > 1 && !fields[1].isEmpty()) {
+            session.expectedHash = fields[1].trim().toLowerCase();
+        }
+        
+        // Verify file size, then content
+        if (session.isComplete() && session.expectedHash != null && !session.expectedHash.equals(session.contentHash())) {
+            session.deleteChunks();
+            out.println("ERROR:Checksum mismatch");
+            out.flush();
+            logAction(session.fileName, "upload", "failed - checksum mismatch");
+        } else if (session.isComplete()) {
             try {
-                session.saveToFile();
+                if (session.saveToFile()) {
+                    Log.debug("Upload of {} by {} matched stored content", session.fileName, username);
+                }
                 
                 // Save metadata
                 saveFileMetadata(session.fileName, session.isPublic, session.requesterUsername, session.description);
@@ -281,7 +677,7 @@ public class ClientHandler extends Thread {
                 out.println("UPLOAD_SUCCESS");
                 out.flush();
                 logAction(session.fileName, "upload", "success");
-                System.out.println("Upload completed: " + session.fileName);
+                Log.info("Upload completed: {} by {}", session.fileName, username);
                 
                 // If this was a requested file, notify the requester
                 if (!session.requestId.isEmpty()) {
@@ -301,15 +697,93 @@ public class ClientHandler extends Thread {
             logAction(session.fileName, "upload", "failed - size mismatch");
         }
         
-        Server.releaseBuffer(session.totalSize);
+        Server.releaseBuffer(session);
         Server.removeUploadSession(fileId);
     }
     
+    /*
+        UPLOAD_RESUME:<fileId> -> UPLOAD_RESUMED:<fileId>|<committed>|<chunkSize>|<window>
+        
+        Takes over an upload left behind by a dropped connection. The client continues with
+        sequenced chunks from <committed>, the number of bytes stored from the start of the file.
+    */
+    private void handleUploadResume(String fileId) throws IOException {
+        FileUploadSession session = Server.getUploadSession(fileId);
+        if (session == null || !session.username.equals(username)) {
+            out.println("ERROR:Invalid file ID");
+            return;
+        }
+        
+        // A detached upload gave its credits back, it queues for new ones like a fresh upload
+        int window = Server.getUploadWindow();
+        if (!session.hasCredits()) {
+            long remaining = session.totalSize - session.committedSize();
+            long credits = reserveWindow(remaining, session.chunkSize);
+            if (credits == 0) {
+                out.println("ERROR:Buffer full, try again later");
+                return;
+            }
+            session.setCredits(credits);
+            window = windowFor(credits, remaining, session.chunkSize);
+        }
+        session.attach(this);
+        out.println("UPLOAD_RESUMED:" + fileId + "|" + session.committedSize() + "|" 
+                    + session.chunkSize + "|" + window);
+        session.sizer.started(System.nanoTime());
+        Log.info("Upload resumed for {}: {} at {}", username, session.fileName, session.committedSize());
+    }
+    
+    // Credits for one window of chunks (less for a small file), 0 if the wait timed out
+    private long reserveWindow(long bytes, int chunkSize) throws InterruptedIOException {
+        try {
+            return Server.reserveBuffer(username, Math.max(1, Math.min(bytes, (long) chunkSize * Server.getUploadWindow())));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for upload credits");
+        }
+    }
+    
+    // Chunks the granted credits cover; fewer than the configured window past the user's share
+    private static int windowFor(long credits, long bytes, int chunkSize) {
+        if (credits >= bytes) {
+            return Server.getUploadWindow();
+        }
+        return (int) Math.max(1, Math.min(Server.getUploadWindow(), credits / chunkSize));
+    }
+    
+    // LIST_UPLOADS: -> UPLOADS:fileId|fileName|committed|totalSize;...  (unfinished uploads of this user)
+    private void handleListUploads() {
+        StringBuilder response = new StringBuilder("UPLOADS:");
+        for (FileUploadSession session : Server.getAllUploadSessions().values()) {
+            if (session.username.equals(username)) {
+                response.append(session.fileId).append("|").append(session.fileName).append("|")
+                        .append(session.committedSize()).append("|").append(session.totalSize).append(";");
+            }
+        }
+        out.println(response.toString());
+    }
+    
+    /*
+        DOWNLOAD_REQUEST:<owner>|<file>                       -> DOWNLOAD_START:<file>|<size>
+        DOWNLOAD_REQUEST:<owner>|<file>|<offset>[|<length>]   -> DOWNLOAD_START:<file>|<length>|<offset>|<size>
+        
+        The ranged form seeks to <offset> and sends <length> bytes (to the end of the file if
+        omitted), so an interrupted download can continue where it stopped.
+    */
     private void handleDownloadRequest(String data) throws IOException {
-        //owner|filename
         String[] parts = data.split("\\|");
         String owner = parts[0];
         String fileName = parts[1];
+        boolean ranged = parts.length > 2;
+        long offset = 0;
+        long length = -1;
+        try {
+            if (ranged) offset = Long.parseLong(parts[2].trim());
+            if (parts.length > 3) length = Long.parseLong(parts[3].trim());
+        } catch (NumberFormatException e) {
+            out.println("ERROR:Invalid range");
+            return;
+        }
         
         File file = new File("server_data/" + owner + "/" + fileName);
         
@@ -327,24 +801,51 @@ public class ClientHandler extends Thread {
         }
         
         long fileSize = file.length();
-        out.println("DOWNLOAD_START:" + fileName + "|" + fileSize);
+        if (offset < 0 || offset > fileSize || length < -1) {
+            out.println("ERROR:Invalid range");
+            return;
+        }
+        if (length == -1 || offset + length > fileSize) {
+            length = fileSize - offset;
+        }
+        
+        if (framed) {
+            sendFile(file, fileName, ranged, offset, length, fileSize);
+            return;
+        }
+        chunkLock.lock();
+        try {
+            sendFile(file, fileName, ranged, offset, length, fileSize);
+        } finally {
+            chunkLock.unlock();
+            flushPushes();
+        }
+    }
+    
+    // DOWNLOAD_START, the chunks and DOWNLOAD_COMPLETE
+    private void sendFile(File file, String fileName, boolean ranged, long offset, long length, long fileSize) {
+        if (ranged) {
+            out.println("DOWNLOAD_START:" + fileName + "|" + length + "|" + offset + "|" + fileSize);
+        } else {
+            out.println("DOWNLOAD_START:" + fileName + "|" + fileSize);
+        }
         out.flush();  // CRITICAL: Flush text message before binary data
         
-        // Send file in chunks
-        try (FileInputStream fis = new FileInputStream(file)) {
-            byte[] buffer = new byte[Server.getMaxChunkSize()];
-            int bytesRead;
-            
-            while ((bytesRead = fis.read(buffer)) != -1) {
-                dataOut.writeInt(bytesRead);
-                dataOut.write(buffer, 0, bytesRead);
-                dataOut.flush();
+        // Send file in chunks, each framed as writeInt(len) + payload
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (rawOut instanceof ChannelOutputStream) {
+                sendChunksZeroCopy(fileChannel, (ChannelOutputStream) rawOut, offset, length);
+            } else {
+                sendChunksCopy(fileChannel, offset, length);
             }
             
             out.println("DOWNLOAD_COMPLETE");
             out.flush();  // Flush completion message
-            logAction(fileName, "download", "success");
-            System.out.println("Download completed: " + fileName + " to " + username);
+            if (!transferOnly) {
+                // Segments of a parallel download are logged once, by the main connection's request
+                logAction(fileName, "download", "success");
+            }
+            Log.info("Download completed: {} to {}", fileName, username);
             
         } catch (IOException e) {
             out.println("ERROR:Download failed");
@@ -352,6 +853,120 @@ public class ClientHandler extends Thread {
         }
     }
     
+    /*
+        CHECKSUMS:<owner>|<file> -> CHECKSUMS:<sha256>|<size>|<blockSize>|<crc>,<crc>,...
+        
+        The digests recorded when the file was uploaded: its SHA-256 and a CRC32C (hex) for
+        every block of <blockSize> bytes. A client checks the bytes of a download against them
+        as they arrive and re-requests a block that fails with a ranged DOWNLOAD_REQUEST.
+    */
+    private void handleChecksums(String data) {
+        String[] parts = data.split("\\|", 2);
+        if (parts.length < 2) {
+            out.println("ERROR:Invalid request");
+            return;
+        }
+        String owner = parts[0];
+        String fileName = parts[1];
+        
+        if (!owner.equals(username) && !isFileAccessible(owner, fileName, username)) {
+            out.println("ERROR:File is private");
+            return;
+        }
+        BlobStore.Checksums checksums = BlobStore.checksums(owner, fileName);
+        if (checksums == null) {
+            out.println("ERROR:No checksums for this file");
+            return;
+        }
+        
+        StringBuilder reply = new StringBuilder("CHECKSUMS:").append(checksums.hash).append('|')
+                .append(checksums.size).append('|').append(checksums.blockSize).append('|');
+        for (int i = 0; i < checksums.blockCrcs.length; i++) {
+            if (i > 0) reply.append(',');
+            reply.append(Integer.toHexString(checksums.blockCrcs[i]));
+        }
+        out.println(reply.toString());
+    }
+    
+    // Move each payload from the page cache straight to the socket
+    private void sendChunksZeroCopy(FileChannel fileChannel, ChannelOutputStream target, long start, long length) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(FrameProtocol.HEADER_SIZE);
+        long position = start;
+        long end = start + length;
+        
+        while (position < end) {
+            int len = (int) Math.min(Server.getDownloadChunkSize(), end - position);
+            ReentrantLock lock = writeLock();
+            lock.lock();
+            try {
+                putChunkHeader(header, len);
+                target.write(header);
+                target.transferFrom(fileChannel, position, len);
+            } finally {
+                lock.unlock();
+            }
+            position += len;
+            Metrics.downloaded(len);
+        }
+    }
+    
+    // v1 frames a download chunk with writeInt(len), v2 with a DATA frame header on the command's stream
+    private void putChunkHeader(ByteBuffer header, int len) {
+        header.clear();
+        if (framed) {
+            FrameProtocol.putHeader(header, FrameProtocol.DATA, STREAM_ID.get(), len);
+        } else {
+            header.putInt(len);
+        }
+        header.flip();
+    }
+    
+    // A whole chunk is written under this lock so a push or another stream cannot land inside it;
+    // in v1 the download already holds chunkLock from DOWNLOAD_START on
+    private ReentrantLock writeLock() {
+        return framed ? ((FramedWriter) out).frameLock() : chunkLock;
+    }
+    
+    // Fallback for sockets without a channel: copy through a pooled buffer
+    private void sendChunksCopy(FileChannel fileChannel, long start, long length) throws IOException {
+        WritableByteChannel target = Channels.newChannel(dataOut);
+        ByteBuffer buffer = BufferPool.shared().acquire();
+        ByteBuffer header = ByteBuffer.allocate(FrameProtocol.HEADER_SIZE);
+        long position = start;
+        long remaining = length;
+        
+        try {
+            while (remaining > 0) {
+                buffer.clear().limit((int) Math.min(Math.min(buffer.capacity(), Server.getDownloadChunkSize()), remaining));
+                int bytesRead = fileChannel.read(buffer, position);
+                if (bytesRead <= 0) break;
+                buffer.flip();
+                ReentrantLock lock = writeLock();
+                lock.lock();
+                try {
+                    putChunkHeader(header, bytesRead);
+                    dataOut.write(header.array(), 0, header.limit());
+                    while (buffer.hasRemaining()) {
+                        target.write(buffer);
+                    }
+                    dataOut.flush();
+                } finally {
+                    lock.unlock();
+                }
+                position += bytesRead;
+                remaining -= bytesRead;
+                BufferPool.shared().transferred(bytesRead);
+                Metrics.downloaded(bytesRead);
+            }
+        } finally {
+            BufferPool.shared().release(buffer);
+        }
+        dataOut.flush();
+        if (remaining > 0) {
+            throw new IOException("File changed during download");
+        }
+    }
+    
     private void handleFileRequest(String data) {
         //description|recipient
         String[] parts = data.split("\\|", 2);
@@ -359,42 +974,53 @@ public class ClientHandler extends Thread {
         String recipient = parts[1];
         
         String requestId = Server.generateRequestId();
-        FileRequest request = new FileRequest(requestId, username, description);
+        String message = "File request from " + username + " (ID: " + requestId + "): " + description;
+        Server.addFileRequest(requestId, username, description, recipient);
         
-        if (recipient.equals("ALL")) {
-            // Broadcast to all clients
+        if (recipient.equals(FileRequestRegistry.BROADCAST)) {
+            // Stored once for everyone, but each client still gets a message
             for (String client : Server.getAllKnownClients()) {
                 if (!client.equals(username)) {
-                    Server.addFileRequest(client, request);
-                    String message = "File request from " + username + " (ID: " + requestId + "): " + description;
                     Server.addMessage(client, message);
                     
                     // Notify if online
                     ClientHandler handler = Server.getOnlineClients().get(client);
                     if (handler != null) {
-                        handler.out.println("NEW_MESSAGE:" + message);
+                        handler.sendNotification(message);
                     }
                 }
             }
         } else {
             // Unicast to specific client
-            Server.addFileRequest(recipient, request);
-            String message = "File request from " + username + " (ID: " + requestId + "): " + description;
             Server.addMessage(recipient, message);
             
             // Notify if online
             ClientHandler handler = Server.getOnlineClients().get(recipient);
             if (handler != null) {
-                handler.out.println("NEW_MESSAGE:" + message);
+                handler.sendNotification(message);
             }
         }
         
         out.println("REQUEST_SENT:" + requestId);
-        System.out.println("File request created: " + requestId + " by " + username);
+        Log.info("File request created: {} by {}", requestId, username);
     }
     
-    private void handleViewMessages() {
-        // Load all persisted messages from file
+    /*
+        VIEW_MESSAGES:          -> MESSAGES:text;text;...
+        VIEW_MESSAGES:<since>   -> MESSAGES_SINCE:<nextOffset>|<id>~<text>;<id>~<text>;...
+        VIEW_MESSAGES:<cursor>|<limit> -> MESSAGES_PAGE:<nextCursor>|<hasMore>|<id>~<text>;...
+    */
+    private void handleViewMessages(String since) {
+        if (since.contains("|")) {
+            handleViewMessagesPage(since);
+            return;
+        }
+        if (!since.isEmpty()) {
+            handleViewMessagesSince(since);
+            return;
+        }
+        
+        // Load all persisted messages
         List<String> messages = Server.getAllMessages(username);
         StringBuilder response = new StringBuilder("MESSAGES:");
         
@@ -408,42 +1034,103 @@ public class ClientHandler extends Thread {
         Server.clearMessages(username);
     }
     
-    private void handleDeleteMessage(String messageText) {
-        if (messageText == null || messageText.trim().isEmpty()) {
-            out.println("ERROR:No message specified");
+    private void handleViewMessagesSince(String since) {
+        long sinceOffset;
+        try {
+            sinceOffset = Long.parseLong(since.trim());
+        } catch (NumberFormatException e) {
+            out.println("ERROR:Invalid offset");
             return;
         }
         
-        File msgFile = new File("server_data/" + username + "/messages.txt");
-        if (!msgFile.exists()) {
-            out.println("ERROR:No messages file");
+        long nextOffset = MessageStore.nextOffset(username);
+        StringBuilder response = new StringBuilder("MESSAGES_SINCE:").append(nextOffset).append("|");
+        try {
+            for (StoredMessage message : MessageStore.readSince(username, sinceOffset)) {
+                if (message.offset >= nextOffset) break;  // Arrived after we took nextOffset
+                response.append(message.offset).append("~").append(message.text).append(";");
+            }
+        } catch (IOException e) {
+            Log.error("Failed to read messages for " + username, e);
+            out.println("ERROR:Failed to read messages");
             return;
         }
         
-        List<String> remaining = new ArrayList<>();
-        boolean found = false;
+        out.println(response.toString());
+        Server.clearMessages(username);
+    }
+    
+    // Oldest first, the cursor is the offset (ID) of the first message to return
+    private void handleViewMessagesPage(String data) {
+        long cursor;
+        int limit;
+        try {
+            String[] parts = data.split("\\|");
+            cursor = Long.parseLong(parts[0].trim());
+            limit = Math.min(Integer.parseInt(parts[1].trim()), MAX_PAGE_LIMIT);
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            out.println("ERROR:Invalid page request");
+            return;
+        }
+        if (limit <= 0) {
+            out.println("ERROR:Invalid page request");
+            return;
+        }
         
-        try (BufferedReader reader = new BufferedReader(new FileReader(msgFile))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                if (!found && line.trim().equals(messageText.trim())) {
-                    found = true; // Remove only first matching message
-                } else {
-                    remaining.add(line);
-                }
-            }
+        List<StoredMessage> messages;
+        try {
+            // One extra message tells us whether another page exists
+            messages = MessageStore.readPage(username, cursor, limit + 1);
         } catch (IOException e) {
-            e.printStackTrace();
+            Log.error("Failed to read messages for " + username, e);
             out.println("ERROR:Failed to read messages");
             return;
         }
         
-        try (FileWriter fw = new FileWriter(msgFile, false)) {
-            for (String line : remaining) {
-                fw.write(line + "\n");
+        boolean hasMore = messages.size() > limit;
+        if (hasMore) {
+            messages = messages.subList(0, limit);
+        }
+        long nextCursor = messages.isEmpty() ? cursor : messages.get(messages.size() - 1).offset + 1;
+        
+        StringBuilder response = new StringBuilder("MESSAGES_PAGE:");
+        response.append(nextCursor).append("|").append(hasMore).append("|");
+        for (StoredMessage message : messages) {
+            response.append(message.offset).append("~").append(message.text).append(";");
+        }
+        out.println(response.toString());
+        Server.clearMessages(username);
+    }
+    
+    private void handleDeleteMessage(String messageText) {
+        if (messageText == null || messageText.trim().isEmpty()) {
+            out.println("ERROR:No message specified");
+            return;
+        }
+        
+        try {
+            // Like before, a text that matches nothing is not an error
+            MessageStore.deleteFirstMatching(username, messageText);
+        } catch (IOException e) {
+            Log.error("Failed to delete message for " + username, e);
+            out.println("ERROR:Failed to update messages");
+            return;
+        }
+        
+        out.println("MESSAGE_DELETED");
+    }
+    
+    private void handleDeleteMessageById(String id) {
+        try {
+            if (!MessageStore.delete(username, Long.parseLong(id.trim()))) {
+                out.println("ERROR:Message not found");
+                return;
             }
+        } catch (NumberFormatException e) {
+            out.println("ERROR:Invalid message ID");
+            return;
         } catch (IOException e) {
-            e.printStackTrace();
+            Log.error("Failed to delete message for " + username, e);
             out.println("ERROR:Failed to update messages");
             return;
         }
@@ -451,8 +1138,22 @@ public class ClientHandler extends Thread {
         out.println("MESSAGE_DELETED");
     }
     
-    private void handleViewHistory() {
+    /*
+        VIEW_HISTORY:                 -> HISTORY:entry;entry;...
+        VIEW_HISTORY:<cursor>|<limit> -> HISTORY_PAGE:<nextCursor>|<hasMore>|entry;entry;...
+        
+        Pages go from newest to oldest. The cursor is the index of the entry to stop before
+        (empty or -1 for the newest), so pages stay stable while new entries are logged.
+    */
+    private void handleViewHistory(String data) {
         File logFile = new File("server_data/" + username + "/log.txt");
+        AuditLog.flush(username);  // Include actions still queued for writing
+        
+        if (data.contains("|")) {
+            handleViewHistoryPage(logFile, data);
+            return;
+        }
+        
         StringBuilder response = new StringBuilder("HISTORY:");
         
         if (logFile.exists()) {
@@ -462,73 +1163,67 @@ public class ClientHandler extends Thread {
                     response.append(line).append(";");
                 }
             } catch (IOException e) {
-                e.printStackTrace();
+                Log.error("Failed to read history for " + username, e);
             }
         }
         
         out.println(response.toString());
     }
     
-    /*
-        Save file metadata: filename|public/private|requesterUsername|description
-    */
-    private void saveFileMetadata(String fileName, boolean isPublic, String requesterUsername, String description) throws IOException {
-        File metadataFile = new File("server_data/" + username + "/metadata.txt");
+    private void handleViewHistoryPage(File logFile, String data) {
+        int cursor;
+        int limit;
+        try {
+            String[] parts = data.split("\\|");
+            cursor = parts[0].trim().isEmpty() ? -1 : Integer.parseInt(parts[0].trim());
+            limit = Math.min(Integer.parseInt(parts[1].trim()), MAX_PAGE_LIMIT);
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            out.println("ERROR:Invalid page request");
+            return;
+        }
+        if (limit <= 0) {
+            out.println("ERROR:Invalid page request");
+            return;
+        }
         
-        // Read existing metadata and remove old entry for this file if exists
-        List<String> lines = new ArrayList<>();
-        if (metadataFile.exists()) {
-            try (BufferedReader reader = new BufferedReader(new FileReader(metadataFile))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    String[] parts = line.split("\\|");
-                    // Keep all entries except the one with the same filename
-                    if (!parts[0].equals(fileName)) {
-                        lines.add(line);
-                    }
-                }
+        List<String> entries = new ArrayList<>();
+        int from = 0;
+        if (logFile.exists()) {
+            try {
+                LogIndex index = LogIndex.forFile(logFile);
+                int total = index.refresh();
+                int to = (cursor < 0 || cursor > total) ? total : cursor;
+                from = Math.max(0, to - limit);
+                entries = index.readLines(from, to);
+            } catch (IOException e) {
+                Log.error("Failed to read history for " + username, e);
+                out.println("ERROR:Failed to read history");
+                return;
             }
         }
         
-        // Add new entry: filename|public/private|requesterUsername|description
-        String desc = (description != null) ? description : "";
-        lines.add(fileName + "|" + (isPublic ? "public" : "private") + "|" + requesterUsername + "|" + desc);
-        
-        // Write all entries back
-        try (FileWriter fw = new FileWriter(metadataFile, false)) {
-            for (String line : lines) {
-                fw.write(line + "\n");
-            }
+        StringBuilder response = new StringBuilder("HISTORY_PAGE:");
+        response.append(from).append("|").append(from > 0).append("|");
+        for (int i = entries.size() - 1; i >= 0; i--) {
+            response.append(entries.get(i)).append(";");
         }
+        out.println(response.toString());
+    }
+    
+    /*
+        Save file metadata: filename|public/private|requesterUsername|description
+    */
+    private void saveFileMetadata(String fileName, boolean isPublic, String requesterUsername, String description) throws IOException {
+        MetadataIndex.put(username, new FileMetadata(fileName, isPublic, requesterUsername, description));
     }
     
     // Check if file is accessible by downloader (public OR downloader is the requester)
     private boolean isFileAccessible(String owner, String fileName, String downloader) {
-        File metadataFile = new File("server_data/" + owner + "/metadata.txt");
-        
-        if (metadataFile.exists()) {
-            try (BufferedReader reader = new BufferedReader(new FileReader(metadataFile))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    String[] parts = line.split("\\|");
-                    if (parts[0].equals(fileName)) {
-                        // File is accessible if it's public OR downloader is the requester
-                        if (parts[1].equals("public")) {
-                            return true;
-                        }
-                        // Check if downloader is the requester (parts[2] has requester username)
-                        if (parts.length > 2 && parts[2].equals(downloader)) {
-                            return true;
-                        }
-                        return false;
-                    }
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        FileMetadata metadata = MetadataIndex.get(owner, fileName);
+        if (metadata == null) {
+            return false;
         }
-        
-        return false;
+        return metadata.isPublic || metadata.requesterUsername.equals(downloader);
     }
     
     private void handleDeleteFile(String fileName) {
@@ -546,11 +1241,12 @@ public class ClientHandler extends Thread {
         
         // Delete the file
         if (file.delete()) {
-            // Remove from metadata
+            // Remove from metadata and drop the blob reference
             removeFileMetadata(fileName);
+            BlobStore.unlink(username, fileName);
             logAction(fileName, "delete", "success");
             out.println("DELETE_SUCCESS:" + fileName);
-            System.out.println("File deleted: " + fileName + " by " + username);
+            Log.info("File deleted: {} by {}", fileName, username);
         } else {
             logAction(fileName, "delete", "failed");
             out.println("ERROR:Failed to delete file");
@@ -558,73 +1254,44 @@ public class ClientHandler extends Thread {
     }
     
     private void removeFileMetadata(String fileName) {
-        File metadataFile = new File("server_data/" + username + "/metadata.txt");
-        if (!metadataFile.exists()) return;
-        
-        List<String> lines = new ArrayList<>();
-        try (BufferedReader reader = new BufferedReader(new FileReader(metadataFile))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                String[] parts = line.split("\\|");
-                if (!parts[0].equals(fileName)) {
-                    lines.add(line);
-                }
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-            return;
-        }
-        
-        try (FileWriter fw = new FileWriter(metadataFile, false)) {
-            for (String line : lines) {
-                fw.write(line + "\n");
-            }
+        try {
+            MetadataIndex.remove(username, fileName);
         } catch (IOException e) {
-            e.printStackTrace();
+            Log.error("Failed to update metadata for " + username, e);
         }
     }
     
     private void logAction(String fileName, String action, String status) {
-        File logFile = new File("server_data/" + username + "/log.txt");
-        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-        String timestamp = sdf.format(new Date());
-        
-        try (FileWriter fw = new FileWriter(logFile, true)) {
-            fw.write(fileName + "|" + timestamp + "|" + action + "|" + status + "\n");
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        AuditLog.log(username, fileName, action, status);
     }
     
     private void notifyFileUploaded(String requestId, String fileName, String description) {
-        // Search all file requests to find the one matching this requestId
-        for (Map.Entry<String, List<FileRequest>> entry : Server.getAllFileRequests().entrySet()) {
-            for (FileRequest req : entry.getValue()) {
-                if (req.requestId.equals(requestId)) {
-                    String requester = req.requester;
-                    String message = username + " uploaded requested file '" + fileName + "' (Request ID: " + requestId + ")";
-                    if (description != null && !description.isEmpty()) {
-                        message += " - Note: " + description;
-                    }
-                    Server.addMessage(requester, message);
-                    
-                    // Notify if requester is online
-                    ClientHandler handler = Server.getOnlineClients().get(requester);
-                    if (handler != null) {
-                        handler.out.println("NEW_MESSAGE:" + message);
-                    }
-                    
-                    System.out.println("Notified " + requester + " about uploaded file: " + fileName);
-                    return;
-                }
-            }
+        FileRequest request = Server.getFileRequest(requestId);
+        if (request == null) {
+            return;  // Expired while the upload was running
+        }
+        Server.getFileRequestRegistry().markFulfilled(request, username);
+        
+        String requester = request.requester;
+        String message = username + " uploaded requested file '" + fileName + "' (Request ID: " + requestId + ")";
+        if (description != null && !description.isEmpty()) {
+            message += " - Note: " + description;
+        }
+        Server.addMessage(requester, message);
+        
+        // Notify if requester is online
+        ClientHandler handler = Server.getOnlineClients().get(requester);
+        if (handler != null) {
+            handler.sendNotification(message);
         }
+        
+        Log.debug("Notified {} about uploaded file: {}", requester, fileName);
     }
     
     private void cleanup() {
-        System.out.println("Cleaning up client: " + username);
+        Log.debug("Cleaning up client: {}", username);
         
-        if (username == null) {
+        if (username == null || transferOnly) {
             try {
                 socket.close();
             } catch (IOException e) {
@@ -633,30 +1300,27 @@ public class ClientHandler extends Thread {
             return;
         }
         
-        // Remove incomplete uploads
-        List<String> toRemove = new ArrayList<>();
-        for (Map.Entry<String, FileUploadSession> entry : Server.getAllUploadSessions().entrySet()) {
-            FileUploadSession session = entry.getValue();
+        // Keep incomplete uploads around so they can be resumed, unless resuming is disabled
+        for (FileUploadSession session : Server.getAllUploadSessions().values()) {
             if (session.username.equals(username)) {
-                session.deleteChunks();
-                Server.releaseBuffer(session.totalSize);
-                toRemove.add(entry.getKey());
-                System.out.println("Deleted incomplete upload: " + session.fileName);
+                if (Server.getUploadResumeTtl() > 0) {
+                    if (session.detach(this)) {
+                        Server.releaseBuffer(session);  // Nothing is in flight while detached
+                    }
+                } else if (session.attachedTo == this) {
+                    Server.discardUploadSession(session);
+                }
             }
         }
         
-        for (String fileId : toRemove) {
-            Server.removeUploadSession(fileId);
-        }
-        
         Server.removeClient(username);
         
         try {
             socket.close();
         } catch (IOException e) {
-            e.printStackTrace();
+            Log.error("Error closing socket for " + username, e);
         }
         
-        System.out.println("Client " + username + " disconnected");
+        Log.info("Client {} disconnected", username);
     }
 }
@@ -0,0 +1,328 @@
+import java.io.*;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/*
+    Decides which threads run the auth handshake and the session of each accepted connection.
+    Selected at startup with --engine=thread|virtual|selector
+*/
+interface ConnectionEngine {
+    
+    // Called from the accept loop for every new connection
+    void accept(SocketChannel channel, Runnable handshake);
+    
+    // Called once the handshake succeeded and the user is online
+    void startSession(ClientHandler handler);
+    
+    static ConnectionEngine create(String name, int workers) {
+        switch (name) {
+            case "thread":
+                return new ThreadEngine();
+            case "virtual":
+                return new VirtualThreadEngine();
+            case "selector":
+                return new SelectorEngine(workers);
+            default:
+                throw new IllegalArgumentException("Unknown engine: " + name);
+        }
+    }
+}
+
+/*
+    One platform thread per connection, it runs the handshake and then the whole session
+*/
+class ThreadEngine implements ConnectionEngine {
+    
+    @Override
+    public void accept(SocketChannel channel, Runnable handshake) {
+        new Thread(handshake).start();
+    }
+    
+    @Override
+    public void startSession(ClientHandler handler) {
+        handler.run();  // Already on the connection's own thread
+    }
+}
+
+/*
+    One virtual thread per connection (JDK 21+). On older JDKs it falls back to a
+    cached pool of platform threads so the server still starts.
+*/
+class VirtualThreadEngine implements ConnectionEngine {
+    private final ExecutorService executor;
+    
+    VirtualThreadEngine() {
+        ExecutorService virtual = null;
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            virtual = (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            Log.info("Virtual threads not available on this JDK, using a cached thread pool");
+        }
+        this.executor = virtual != null ? virtual : Executors.newCachedThreadPool();
+    }
+    
+    ExecutorService getExecutor() {
+        return executor;
+    }
+    
+    @Override
+    public void accept(SocketChannel channel, Runnable handshake) {
+        executor.execute(handshake);
+    }
+    
+    @Override
+    public void startSession(ClientHandler handler) {
+        handler.run();  // Already on the connection's own virtual thread
+    }
+}
+
+/*
+    Idle sessions are parked on a single selector thread and cost no thread at all.
+    When a session becomes readable it is handed to a fixed worker pool, which switches
+    the channel back to blocking mode and runs one command with the normal line protocol.
+    The worker also switches it to non-blocking mode again before parking, so the selector
+    thread never waits for a write in progress on the channel.
+    
+    v2 sessions are parked the same way between frames while their stream executor keeps
+    writing replies and downloads. Every write goes through ChannelOutputStream, which works
+    in either mode and makes a mode switch wait until the write in progress is done.
+    
+    New connections wait on the selector too until the client sends its first bytes. The
+    login then runs on a separate pool (handshake.threads), so connections that never log in
+    and slow logins cannot take the workers that serve commands; Server bounds each
+    handshake read with handshake.timeout.
+*/
+class SelectorEngine implements ConnectionEngine {
+    private static final int HANDSHAKE_THREADS = Integer.getInteger("handshake.threads", 16);
+    
+    private final Selector selector;
+    private final ExecutorService workers;
+    private final ExecutorService handshakes;
+    private final Queue<ClientHandler> pendingParks = new ConcurrentLinkedQueue<>();
+    private final Queue<Handshake> pendingHandshakes = new ConcurrentLinkedQueue<>();
+    
+    // A connection waiting for its first bytes
+    private static class Handshake {
+        final SocketChannel channel;
+        final Runnable login;
+        
+        Handshake(SocketChannel channel, Runnable login) {
+            this.channel = channel;
+            this.login = login;
+        }
+    }
+    
+    SelectorEngine(int workerCount) {
+        try {
+            this.selector = Selector.open();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        this.workers = Executors.newFixedThreadPool(workerCount);
+        this.handshakes = Executors.newFixedThreadPool(HANDSHAKE_THREADS, r -> {
+            Thread t = new Thread(r, "handshake");
+            t.setDaemon(true);
+            return t;
+        });
+        
+        Thread selectorThread = new Thread(this::selectLoop, "session-selector");
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+    }
+    
+    @Override
+    public void accept(SocketChannel channel, Runnable handshake) {
+        try {
+            channel.configureBlocking(false);
+        } catch (IOException e) {
+            closeQuietly(channel);
+            return;
+        }
+        pendingHandshakes.add(new Handshake(channel, handshake));
+        selector.wakeup();
+    }
+    
+    @Override
+    public void startSession(ClientHandler handler) {
+        try {
+            park(handler);
+        } catch (IOException e) {
+            handler.close();
+        }
+    }
+    
+    // Hand the session back to the selector until the client sends its next command
+    private void park(ClientHandler handler) throws IOException {
+        handler.configureBlocking(false);
+        pendingParks.add(handler);
+        selector.wakeup();
+    }
+    
+    private void selectLoop() {
+        List<ClientHandler> ready = new ArrayList<>();
+        List<Handshake> readyHandshakes = new ArrayList<>();
+        while (true) {
+            try {
+                registerPending();
+                selector.select();
+                
+                for (SelectionKey key : selector.selectedKeys()) {
+                    key.cancel();
+                    if (key.attachment() instanceof Handshake) {
+                        readyHandshakes.add((Handshake) key.attachment());
+                    } else {
+                        ready.add((ClientHandler) key.attachment());
+                    }
+                }
+                selector.selectedKeys().clear();
+                
+                if (!ready.isEmpty() || !readyHandshakes.isEmpty()) {
+                    // Flush the cancelled keys so the channels can go back to blocking mode
+                    selector.selectNow();
+                    selector.selectedKeys().clear();
+                    for (ClientHandler handler : ready) {
+                        workers.execute(() -> runCommand(handler));
+                    }
+                    for (Handshake handshake : readyHandshakes) {
+                        handshakes.execute(() -> runHandshake(handshake));
+                    }
+                    ready.clear();
+                    readyHandshakes.clear();
+                }
+            } catch (IOException e) {
+                Log.error("Selector error", e);
+            }
+        }
+    }
+    
+    private void registerPending() {
+        Handshake handshake;
+        while ((handshake = pendingHandshakes.poll()) != null) {
+            try {
+                handshake.channel.register(selector, SelectionKey.OP_READ, handshake);
+            } catch (IOException | CancelledKeyException e) {
+                closeQuietly(handshake.channel);
+            }
+        }
+        
+        ClientHandler handler;
+        while ((handler = pendingParks.poll()) != null) {
+            try {
+                handler.getChannel().register(selector, SelectionKey.OP_READ, handler);
+            } catch (IOException | CancelledKeyException e) {
+                final ClientHandler failed = handler;
+                workers.execute(failed::close);
+            }
+        }
+    }
+    
+    private void runHandshake(Handshake handshake) {
+        try {
+            handshake.channel.configureBlocking(true);
+        } catch (IOException e) {
+            closeQuietly(handshake.channel);
+            return;
+        }
+        handshake.login.run();
+    }
+    
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Already gone
+        }
+    }
+    
+    private void runCommand(ClientHandler handler) {
+        try {
+            handler.configureBlocking(true);
+            boolean open;
+            do {
+                open = handler.processNextCommand();
+            } while (open && handler.hasBufferedInput());  // The selector cannot see bytes we already buffered
+            
+            if (open) {
+                park(handler);
+            } else {
+                handler.close();
+            }
+        } catch (IOException e) {
+            Log.info("Client {} disconnected: {}", handler.getUsername(), e.getMessage());
+            handler.close();
+        } catch (RuntimeException e) {
+            Log.error("Error serving " + handler.getUsername(), e);
+            handler.close();
+        }
+    }
+}
+
+/*
+    OutputStream over a SocketChannel that also works while the channel is parked in
+    non-blocking mode, so other sessions and v2 streams can still write to it. When the
+    socket buffer is full it waits for OP_WRITE on a selector of its own. All writes to the
+    channel, including zero-copy file transfers, go through it.
+*/
+class ChannelOutputStream extends OutputStream {
+    private final SocketChannel channel;
+    
+    ChannelOutputStream(SocketChannel channel) {
+        this.channel = channel;
+    }
+    
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+    
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        write(ByteBuffer.wrap(b, off, len));
+    }
+    
+    synchronized void write(ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            if (channel.write(src) == 0) {
+                awaitWritable();  // Socket buffer full in non-blocking mode
+            }
+        }
+    }
+    
+    // count bytes of file from position, straight from the page cache to the socket
+    synchronized void transferFrom(FileChannel file, long position, long count) throws IOException {
+        long sent = 0;
+        while (sent < count) {
+            long n = file.transferTo(position + sent, count - sent, channel);
+            if (n == 0 && !channel.isBlocking() && position + sent < file.size()) {
+                awaitWritable();
+                continue;
+            }
+            if (n <= 0) {
+                throw new IOException("File changed during download");
+            }
+            sent += n;
+        }
+    }
+    
+    // Switch modes only between writes, a write never sees the mode change under it
+    synchronized void configureBlocking(boolean block) throws IOException {
+        channel.configureBlocking(block);
+    }
+    
+    // Rechecks once a second, closing the channel does not wake the select
+    private void awaitWritable() throws IOException {
+        try (Selector writable = Selector.open()) {
+            channel.register(writable, SelectionKey.OP_WRITE);
+            writable.select(1000);
+        }
+    }
+    
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
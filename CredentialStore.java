@@ -0,0 +1,349 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/*
+    Account credentials: a salted PBKDF2-HMAC-SHA256 hash of each password and security
+    answer, never the plaintext.
+    
+    Persisted like the blob references: server_data/credentials.txt (the snapshot) plus
+    server_data/credentials.log (append-only changes since the snapshot). A signup or password
+    reset appends one line; compact() folds the log back into the snapshot. A hash is kept as
+    pbkdf2$iterations$salt$hash (Base64), so auth.iterations can be raised later and older
+    hashes are upgraded at the next login.
+    
+    Hashing is deliberately slow, so it runs on a small bounded pool (auth.threads, with at
+    most auth.queue waiting) instead of on the connection threads: a burst of logins then
+    costs at most auth.threads cores and is refused with BUSY once the queue is full. The
+    caller still waits for the result; with --engine=selector that is a handshake thread,
+    never one of the workers that run commands.
+    
+    A credentials.txt without the header line is the old plaintext user|password|answer file.
+    Those accounts are hashed by a background thread after startup (or at their next login,
+    whichever comes first) and the plaintext snapshot is replaced once none are left.
+    
+    Snapshot lines: user|passwordHash|answerHash   (answerHash is empty if none was set)
+    Log lines:      +|user|passwordHash|answerHash
+*/
+public class CredentialStore {
+    private static final File SNAPSHOT_FILE = new File("server_data/credentials.txt");
+    private static final File LOG_FILE = new File("server_data/credentials.log");
+    private static final String HEADER = "#credentials v2";
+    private static final int COMPACT_THRESHOLD = 1024;  // Log records before compacting
+    
+    private static final int ITERATIONS = Integer.getInteger("auth.iterations", 100_000);
+    private static final int THREADS = Integer.getInteger("auth.threads", Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    private static final int QUEUE = Integer.getInteger("auth.queue", 256);
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+    
+    // Result of an authentication step
+    public enum Result { OK, NO_ACCOUNT, WRONG, NO_ANSWER, EXISTS, BUSY }
+    
+    private static final Map<String, Credential> accounts = new ConcurrentHashMap<>();
+    private static final Object logLock = new Object();
+    private static int logRecords = 0;
+    private static int legacyAccounts = 0;  // Plaintext accounts not hashed yet, guarded by logLock
+    private static boolean legacySnapshot = false;  // credentials.txt is the plaintext file
+    
+    private static final SecureRandom saltRandom = new SecureRandom();
+    private static final ThreadPoolExecutor authExecutor = new ThreadPoolExecutor(
+            THREADS, THREADS, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(QUEUE), r -> {
+                Thread t = new Thread(r, "auth");
+                t.setDaemon(true);
+                return t;
+            });
+    
+    // Hashes are immutable, a password reset replaces the whole Credential
+    private static class Credential {
+        final String passwordHash;
+        final String answerHash;
+        final String legacyPassword;  // Plaintext from the old file until the account is migrated
+        final String legacyAnswer;
+        
+        Credential(String passwordHash, String answerHash) {
+            this(passwordHash, answerHash, null, null);
+        }
+        
+        Credential(String passwordHash, String answerHash, String legacyPassword, String legacyAnswer) {
+            this.passwordHash = passwordHash;
+            this.answerHash = answerHash;
+            this.legacyPassword = legacyPassword;
+            this.legacyAnswer = legacyAnswer;
+        }
+        
+        boolean isLegacy() {
+            return legacyPassword != null;
+        }
+        
+        boolean hasAnswer() {
+            return isLegacy() ? !legacyAnswer.isEmpty() : !answerHash.isEmpty();
+        }
+        
+        String toLine(String username) {
+            return username + "|" + passwordHash + "|" + answerHash;
+        }
+    }
+    
+    public static void load() {
+        long start = System.nanoTime();
+        SNAPSHOT_FILE.getParentFile().mkdirs();
+        try {
+            readSnapshot();
+            readLog();
+        } catch (IOException e) {
+            Log.error("Error loading credentials", e);
+        }
+        Log.info("Loaded {} saved credentials in {} ms.", accounts.size(), (System.nanoTime() - start) / 1_000_000);
+        
+        if (legacyAccounts > 0) {
+            Log.info("Hashing {} plaintext credentials in the background", legacyAccounts);
+            Thread migration = new Thread(CredentialStore::migrateLegacy, "credential-migration");
+            migration.setDaemon(true);
+            migration.setPriority(Thread.MIN_PRIORITY);
+            migration.start();
+        }
+    }
+    
+    public static boolean exists(String username) {
+        return accounts.containsKey(username);
+    }
+    
+    public static Set<String> usernames() {
+        return accounts.keySet();
+    }
+    
+    // Tasks waiting for an auth thread, for the metrics gauge
+    public static int queued() {
+        return authExecutor.getQueue().size();
+    }
+    
+    public static Result login(String username, String password) {
+        return onAuthThread(() -> {
+            Credential credential = accounts.get(username);
+            if (credential == null) return Result.NO_ACCOUNT;
+            if (credential.isLegacy()) {
+                if (!constantTimeEquals(credential.legacyPassword, password)) return Result.WRONG;
+                migrate(username, credential);
+                return Result.OK;
+            }
+            if (!verify(password, credential.passwordHash)) return Result.WRONG;
+            if (iterationsOf(credential.passwordHash) < ITERATIONS) {
+                replace(username, credential, new Credential(hash(password), credential.answerHash));
+            }
+            return Result.OK;
+        });
+    }
+    
+    public static Result signup(String username, String password, String securityAnswer) {
+        if (exists(username)) return Result.EXISTS;
+        return onAuthThread(() -> {
+            Credential credential = new Credential(hash(password), hash(normalizeAnswer(securityAnswer)));
+            synchronized (logLock) {
+                if (accounts.putIfAbsent(username, credential) != null) return Result.EXISTS;
+                appendLog(credential.toLine(username));
+            }
+            return Result.OK;
+        });
+    }
+    
+    // Set a new password for someone who knows the security answer
+    public static Result recover(String username, String securityAnswer, String newPassword) {
+        return onAuthThread(() -> {
+            Credential credential = accounts.get(username);
+            if (credential == null) return Result.NO_ACCOUNT;
+            if (!credential.hasAnswer()) return Result.NO_ANSWER;
+            String answer = normalizeAnswer(securityAnswer);
+            boolean matches = credential.isLegacy()
+                    ? constantTimeEquals(normalizeAnswer(credential.legacyAnswer), answer)
+                    : verify(answer, credential.answerHash);
+            if (!matches) return Result.WRONG;
+            
+            String answerHash = credential.isLegacy() ? hash(answer) : credential.answerHash;
+            replace(username, credential, new Credential(hash(newPassword), answerHash));
+            return Result.OK;
+        });
+    }
+    
+    // Fold the change log into the snapshot, called periodically by the server
+    public static void compact() {
+        synchronized (logLock) {
+            // The plaintext snapshot still holds accounts the log has not replaced yet
+            if (legacyAccounts > 0 || (logRecords < COMPACT_THRESHOLD && !legacySnapshot)) return;
+            File tmpFile = new File(SNAPSHOT_FILE.getPath() + ".tmp");
+            try {
+                try (BufferedWriter writer = new BufferedWriter(new FileWriter(tmpFile, StandardCharsets.UTF_8, false), 1 << 16)) {
+                    writer.write(HEADER + "\n");
+                    for (Map.Entry<String, Credential> entry : accounts.entrySet()) {
+                        writer.write(entry.getValue().toLine(entry.getKey()) + "\n");
+                    }
+                }
+                Files.move(tmpFile.toPath(), SNAPSHOT_FILE.toPath(),
+                           StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                
+                // Replaying the old log over the new snapshot is harmless if we crash before this
+                new FileWriter(LOG_FILE, false).close();
+                logRecords = 0;
+                legacySnapshot = false;
+            } catch (IOException e) {
+                Log.warn("Credential compaction failed: {}", e.getMessage());
+            }
+        }
+    }
+    
+    // Run an auth step on the auth pool and wait for it; BUSY when the queue is full
+    private static Result onAuthThread(Callable<Result> step) {
+        Future<Result> future;
+        try {
+            future = authExecutor.submit(step);
+        } catch (RejectedExecutionException e) {
+            return Result.BUSY;
+        }
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            return Result.BUSY;
+        } catch (ExecutionException e) {
+            Log.error("Authentication failed", e.getCause());
+            return Result.BUSY;
+        }
+    }
+    
+    // Swap in a new credential unless it changed meanwhile, and log it
+    private static void replace(String username, Credential old, Credential updated) throws IOException {
+        synchronized (logLock) {
+            if (!accounts.replace(username, old, updated)) return;
+            appendLog(updated.toLine(username));
+            if (old.isLegacy()) legacyAccounts--;
+        }
+    }
+    
+    private static void migrate(String username, Credential legacy) throws IOException {
+        replace(username, legacy, new Credential(hash(legacy.legacyPassword),
+                                                 legacy.legacyAnswer.isEmpty() ? "" : hash(normalizeAnswer(legacy.legacyAnswer))));
+    }
+    
+    private static void migrateLegacy() {
+        int migrated = 0;
+        for (Map.Entry<String, Credential> entry : accounts.entrySet()) {
+            if (!entry.getValue().isLegacy()) continue;
+            try {
+                migrate(entry.getKey(), entry.getValue());
+                migrated++;
+            } catch (IOException e) {
+                Log.warn("Failed to store hashed credentials for {}: {}", entry.getKey(), e.getMessage());
+            }
+        }
+        Log.info("Hashed {} plaintext credentials", migrated);
+        compact();
+    }
+    
+    // pbkdf2$iterations$salt$hash with a fresh salt
+    private static String hash(String secret) {
+        byte[] salt = new byte[SALT_BYTES];
+        saltRandom.nextBytes(salt);
+        Base64.Encoder base64 = Base64.getEncoder().withoutPadding();
+        return "pbkdf2$" + ITERATIONS + "$" + base64.encodeToString(salt) + "$" + base64.encodeToString(pbkdf2(secret, salt, ITERATIONS));
+    }
+    
+    private static boolean verify(String secret, String stored) {
+        String[] parts = stored.split("\\$");
+        if (parts.length != 4 || !parts[0].equals("pbkdf2")) return false;
+        try {
+            Base64.Decoder base64 = Base64.getDecoder();
+            byte[] expected = base64.decode(parts[3]);
+            return MessageDigest.isEqual(expected, pbkdf2(secret, base64.decode(parts[2]), Integer.parseInt(parts[1])));
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+    
+    private static int iterationsOf(String stored) {
+        int start = stored.indexOf('$') + 1;
+        int end = stored.indexOf('$', start);
+        try {
+            return Integer.parseInt(stored.substring(start, end));
+        } catch (RuntimeException e) {
+            return 0;
+        }
+    }
+    
+    private static byte[] pbkdf2(String secret, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(secret.toCharArray(), salt, iterations, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " not available", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+    
+    private static boolean constantTimeEquals(String a, String b) {
+        return MessageDigest.isEqual(a.getBytes(StandardCharsets.UTF_8), b.getBytes(StandardCharsets.UTF_8));
+    }
+    
+    // Security answers were compared ignoring case and surrounding spaces
+    private static String normalizeAnswer(String answer) {
+        return answer.trim().toLowerCase(Locale.ROOT);
+    }
+    
+    private static void appendLog(String record) throws IOException {
+        try (FileWriter fw = new FileWriter(LOG_FILE, StandardCharsets.UTF_8, true)) {
+            fw.write("+|" + record + "\n");
+        }
+        logRecords++;
+    }
+    
+    // The hashes are parsed only when an account logs in, loading just splits each line in three
+    private static void readSnapshot() throws IOException {
+        if (!SNAPSHOT_FILE.exists()) return;
+        try (BufferedReader reader = new BufferedReader(new FileReader(SNAPSHOT_FILE, StandardCharsets.UTF_8), 1 << 16)) {
+            String line = reader.readLine();
+            boolean legacy = !HEADER.equals(line);
+            if (!legacy) line = reader.readLine();
+            legacySnapshot = legacy;
+            for (; line != null; line = reader.readLine()) {
+                int first = line.indexOf('|');
+                if (first <= 0) continue;
+                int second = line.indexOf('|', first + 1);
+                String username = line.substring(0, first);
+                String password = second < 0 ? line.substring(first + 1) : line.substring(first + 1, second);
+                String answer = second < 0 ? "" : line.substring(second + 1);
+                if (legacy) {
+                    accounts.put(username, new Credential("", "", password, answer.trim()));
+                    legacyAccounts++;
+                } else {
+                    accounts.put(username, new Credential(password, answer));
+                }
+            }
+        }
+    }
+    
+    private static void readLog() throws IOException {
+        if (!LOG_FILE.exists()) return;
+        try (BufferedReader reader = new BufferedReader(new FileReader(LOG_FILE, StandardCharsets.UTF_8), 1 << 16)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.startsWith("+|")) continue;  // Torn last line after a crash
+                int first = line.indexOf('|', 2);
+                int second = first < 0 ? -1 : line.indexOf('|', first + 1);
+                if (first <= 2 || second < 0) continue;
+                Credential previous = accounts.put(line.substring(2, first),
+                        new Credential(line.substring(first + 1, second), line.substring(second + 1)));
+                if (previous != null && previous.isLegacy()) legacyAccounts--;
+                logRecords++;
+            }
+        }
+    }
+}
@@ -0,0 +1,69 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+/*
+    File requests indexed by requestId and by recipient. A broadcast request is stored
+    once under the ALL recipient instead of once per known user. Requests expire after
+    REQUEST_TTL_MILLIS and are swept periodically by the server.
+*/
+public class FileRequestRegistry {
+    public static final String BROADCAST = "ALL";
+    private static final long REQUEST_TTL_MILLIS = 7L * 24 * 60 * 60 * 1000;  // 7 days
+    
+    private final Map<String, FileRequest> byId = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> byRecipient = new ConcurrentHashMap<>();  // recipient -> requestIds
+    
+    public FileRequest create(String requestId, String requester, String description, String recipient) {
+        long now = System.currentTimeMillis();
+        FileRequest request = new FileRequest(requestId, requester, description, recipient, 
+                                              now, now + REQUEST_TTL_MILLIS);
+        byId.put(requestId, request);
+        byRecipient.computeIfAbsent(recipient, k -> ConcurrentHashMap.newKeySet()).add(requestId);
+        return request;
+    }
+    
+    // Live request for this ID, or null if unknown or expired
+    public FileRequest get(String requestId) {
+        FileRequest request = byId.get(requestId);
+        if (request == null || request.isExpired(System.currentTimeMillis())) {
+            return null;
+        }
+        return request;
+    }
+    
+    // Only the named recipient may answer a unicast request, anyone but the requester a broadcast
+    public boolean isAddressedTo(FileRequest request, String username) {
+        if (isIndexed(username, request.requestId)) {
+            return true;
+        }
+        return isIndexed(BROADCAST, request.requestId) && !request.requester.equals(username);
+    }
+    
+    // Each user answers a request once; a unicast request is done after its recipient uploaded
+    public boolean isFulfilledBy(FileRequest request, String username) {
+        return request.fulfilledBy.contains(username);
+    }
+    
+    public void markFulfilled(FileRequest request, String uploader) {
+        request.fulfilledBy.add(uploader);
+    }
+    
+    // Drop expired requests from both indexes
+    public void expire() {
+        long now = System.currentTimeMillis();
+        for (FileRequest request : byId.values()) {
+            if (request.isExpired(now)) {
+                byId.remove(request.requestId);
+                Set<String> ids = byRecipient.get(request.recipient);
+                if (ids != null) {
+                    ids.remove(request.requestId);
+                }
+            }
+        }
+    }
+    
+    private boolean isIndexed(String recipient, String requestId) {
+        Set<String> ids = byRecipient.get(recipient);
+        return ids != null && ids.contains(requestId);
+    }
+}
@@ -0,0 +1,159 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntSupplier;
+
+/*
+    Protocol v2: after login every message in both directions is a frame
+
+        type (1 byte) | requestId (4 bytes) | length (4 bytes) | payload (length bytes)
+
+    TEXT frames carry one UTF-8 command or reply without the newline, DATA frames carry
+    upload and download payloads, PUSH frames carry NEW_MESSAGE notifications. A reply uses
+    the requestId of its command, DATA frames use the requestId of the UPLOAD_CHUNK or
+    DOWNLOAD_REQUEST they belong to, and pushes use 0.
+
+    A client asks for v2 by sending "PROTOCOL:2" before the auth mode. The server confirms
+    with a "PROTOCOL:2" line just before the SUCCESS line; both sides switch to frames right
+    after SUCCESS. Error replies of the handshake stay plain lines.
+*/
+public class FrameProtocol {
+    public static final int VERSION = 2;
+    public static final String HELLO = "PROTOCOL:" + VERSION;
+    
+    public static final byte TEXT = 1;
+    public static final byte DATA = 2;
+    public static final byte PUSH = 3;
+    
+    public static final int HEADER_SIZE = 9;
+    public static final int MAX_TEXT_SIZE = 1 << 20;  // Longest command or reply we accept
+    
+    // Header of the frame being read, reused for every frame of a connection
+    public static class Header {
+        public byte type;
+        public int requestId;
+        public int length;
+    }
+    
+    // Read the next header, the payload is left in the reader; false at end of stream
+    public static boolean readHeader(ProtocolReader in, Header header) throws IOException {
+        int type = in.readByte();
+        if (type == -1) return false;
+        header.type = (byte) type;
+        header.requestId = in.readInt();
+        header.length = in.readInt();
+        if (header.length < 0) {
+            throw new IOException("Invalid frame length: " + header.length);
+        }
+        return true;
+    }
+    
+    public static String readText(ProtocolReader in, int length) throws IOException {
+        if (length > MAX_TEXT_SIZE) {
+            throw new IOException("Text frame too large: " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes, 0, length);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+    
+    public static void putHeader(ByteBuffer buffer, byte type, int requestId, int length) {
+        buffer.put(type).putInt(requestId).putInt(length);
+    }
+}
+
+/*
+    PrintWriter that turns every println into a TEXT frame, so existing reply code works
+    unchanged in v2. All frames go through one fair lock, which lets replies, pushes and the
+    chunks of other streams take turns between the chunks of a running transfer.
+*/
+class FramedWriter extends PrintWriter {
+    private final OutputStream raw;
+    private final WritableByteChannel channel;  // Same connection as raw, for payloads in ByteBuffers
+    private final IntSupplier requestIds;
+    private final ReentrantLock frameLock = new ReentrantLock(true);  // Fair, streams take turns
+    
+    FramedWriter(OutputStream raw, IntSupplier requestIds) {
+        this(raw, null, requestIds);
+    }
+    
+    // With the socket's channel, sendData(ByteBuffer) writes direct buffers without a heap copy
+    FramedWriter(OutputStream raw, WritableByteChannel channel, IntSupplier requestIds) {
+        super(raw, true);  // The inherited writer is never written to
+        this.raw = raw;
+        this.channel = channel != null ? channel : Channels.newChannel(raw);
+        this.requestIds = requestIds;
+    }
+    
+    @Override
+    public void println(String line) {
+        println(requestIds.getAsInt(), line);
+    }
+    
+    // Command on a stream the caller chose, so it can register the stream before the reply arrives
+    void println(int requestId, String line) {
+        byte[] text = line.getBytes(StandardCharsets.UTF_8);
+        frameLock.lock();
+        try {
+            send(FrameProtocol.TEXT, requestId, text, 0, text.length);
+        } finally {
+            frameLock.unlock();
+        }
+    }
+    
+    // Notification pushed by another session
+    void push(String line) {
+        byte[] text = line.getBytes(StandardCharsets.UTF_8);
+        frameLock.lock();
+        try {
+            send(FrameProtocol.PUSH, 0, text, 0, text.length);
+        } finally {
+            frameLock.unlock();
+        }
+    }
+    
+    // DATA frame with the payload's remaining bytes, e.g. a chunk in a pooled direct buffer
+    void sendData(int requestId, ByteBuffer payload) {
+        ByteBuffer header = ByteBuffer.allocate(FrameProtocol.HEADER_SIZE);
+        FrameProtocol.putHeader(header, FrameProtocol.DATA, requestId, payload.remaining());
+        frameLock.lock();
+        try {
+            raw.write(header.array(), 0, header.position());
+            raw.flush();
+            while (payload.hasRemaining()) {
+                channel.write(payload);
+            }
+        } catch (IOException e) {
+            setError();
+        } finally {
+            frameLock.unlock();
+        }
+    }
+    
+    // Held while writing a frame directly to the channel (zero-copy downloads)
+    ReentrantLock frameLock() {
+        return frameLock;
+    }
+    
+    private void send(byte type, int requestId, byte[] payload, int off, int len) {
+        // Small frames go out in one write, large payloads after their header
+        boolean single = len <= 8192;
+        ByteBuffer frame = ByteBuffer.allocate(FrameProtocol.HEADER_SIZE + (single ? len : 0));
+        FrameProtocol.putHeader(frame, type, requestId, len);
+        if (single) {
+            frame.put(payload, off, len);
+        }
+        try {
+            raw.write(frame.array(), 0, frame.position());
+            if (!single) {
+                raw.write(payload, off, len);
+            }
+            raw.flush();
+        } catch (IOException e) {
+            setError();  // Reported through checkError() like any PrintWriter failure
+        }
+    }
+}
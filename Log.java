@@ -0,0 +1,173 @@
+import java.io.PrintStream;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+    Leveled server log with an asynchronous appender.
+    
+    Calls below the configured level return after one comparison, so per-command and per-chunk
+    diagnostics cost nothing unless enabled. Enabled calls capture the pattern and arguments and
+    hand them to a single appender thread, which does the {} substitution and the console I/O.
+    When the queue is full, records are dropped and counted rather than blocking a session.
+    
+    Settings (system properties):
+        log.level   ERROR | WARN | INFO | DEBUG | TRACE (default INFO)
+        log.queue   records waiting for the appender (default 16384)
+*/
+public class Log {
+    public enum Level { ERROR, WARN, INFO, DEBUG, TRACE }
+    
+    private static final Level LEVEL = parseLevel(System.getProperty("log.level", "INFO"));
+    private static final BlockingQueue<Entry> queue = new ArrayBlockingQueue<>(Integer.getInteger("log.queue", 16384));
+    private static final AtomicLong dropped = new AtomicLong();
+    private static final DateTimeFormatter TIMESTAMP =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+    private static final Object[] NO_ARGS = new Object[0];
+    
+    private static final Thread appender = new Thread(Log::drain, "log-appender");
+    
+    static {
+        appender.setDaemon(true);
+        appender.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "log-shutdown"));
+    }
+    
+    public static boolean isEnabled(Level level) {
+        return level.ordinal() <= LEVEL.ordinal();
+    }
+    
+    public static boolean isDebugEnabled() {
+        return isEnabled(Level.DEBUG);
+    }
+    
+    // Fixed-arity overloads so a disabled call does not even allocate a varargs array
+    
+    public static void error(String pattern, Object... args) { log(Level.ERROR, null, pattern, args); }
+    
+    public static void error(String message, Throwable error) { log(Level.ERROR, error, message, NO_ARGS); }
+    
+    public static void warn(String pattern, Object... args) { log(Level.WARN, null, pattern, args); }
+    
+    public static void info(String message) { log(Level.INFO, null, message, NO_ARGS); }
+    
+    public static void info(String pattern, Object a) {
+        if (isEnabled(Level.INFO)) log(Level.INFO, null, pattern, new Object[] { a });
+    }
+    
+    public static void info(String pattern, Object a, Object b) {
+        if (isEnabled(Level.INFO)) log(Level.INFO, null, pattern, new Object[] { a, b });
+    }
+    
+    public static void info(String pattern, Object a, Object b, Object c) {
+        if (isEnabled(Level.INFO)) log(Level.INFO, null, pattern, new Object[] { a, b, c });
+    }
+    
+    public static void debug(String message) { log(Level.DEBUG, null, message, NO_ARGS); }
+    
+    public static void debug(String pattern, Object a) {
+        if (isEnabled(Level.DEBUG)) log(Level.DEBUG, null, pattern, new Object[] { a });
+    }
+    
+    public static void debug(String pattern, Object a, Object b) {
+        if (isEnabled(Level.DEBUG)) log(Level.DEBUG, null, pattern, new Object[] { a, b });
+    }
+    
+    public static void debug(String pattern, Object a, Object b, Object c) {
+        if (isEnabled(Level.DEBUG)) log(Level.DEBUG, null, pattern, new Object[] { a, b, c });
+    }
+    
+    public static void trace(String pattern, Object a, Object b) {
+        if (isEnabled(Level.TRACE)) log(Level.TRACE, null, pattern, new Object[] { a, b });
+    }
+    
+    private static void log(Level level, Throwable error, String pattern, Object[] args) {
+        if (!isEnabled(level)) return;
+        Entry entry = new Entry(System.currentTimeMillis(), level, Thread.currentThread().getName(), pattern, args, error);
+        if (!queue.offer(entry)) {
+            dropped.incrementAndGet();
+        }
+    }
+    
+    // Wait (briefly) until everything queued so far has been printed
+    public static void flush() {
+        long deadline = System.currentTimeMillis() + 2000;
+        while (!queue.isEmpty() && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+    
+    private static void drain() {
+        while (true) {
+            try {
+                Entry entry = queue.take();
+                long lost = dropped.getAndSet(0);
+                if (lost > 0) {
+                    System.err.println(format(new Entry(entry.time, Level.WARN, "log-appender",
+                            "{} log records dropped (queue full)", new Object[] { lost }, null)));
+                }
+                PrintStream stream = entry.level.ordinal() <= Level.WARN.ordinal() ? System.err : System.out;
+                stream.println(format(entry));
+                if (entry.error != null) {
+                    entry.error.printStackTrace(stream);
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                // A bad toString() in an argument must not kill the appender
+                e.printStackTrace();
+            }
+        }
+    }
+    
+    private static String format(Entry entry) {
+        StringBuilder line = new StringBuilder(64 + entry.pattern.length());
+        line.append(TIMESTAMP.format(Instant.ofEpochMilli(entry.time)))
+            .append(' ').append(entry.level);
+        for (int i = entry.level.name().length(); i < 5; i++) line.append(' ');
+        line.append(" [").append(entry.thread).append("] ");
+        
+        String pattern = entry.pattern;
+        int argIndex = 0;
+        int start = 0;
+        int brace;
+        while ((brace = pattern.indexOf("{}", start)) != -1 && argIndex < entry.args.length) {
+            line.append(pattern, start, brace).append(entry.args[argIndex++]);
+            start = brace + 2;
+        }
+        line.append(pattern, start, pattern.length());
+        return line.toString();
+    }
+    
+    private static Level parseLevel(String name) {
+        try {
+            return Level.valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return Level.INFO;
+        }
+    }
+    
+    private static class Entry {
+        final long time;
+        final Level level;
+        final String thread;
+        final String pattern;
+        final Object[] args;
+        final Throwable error;
+        
+        Entry(long time, Level level, String thread, String pattern, Object[] args, Throwable error) {
+            this.time = time;
+            this.level = level;
+            this.thread = thread;
+            this.pattern = pattern;
+            this.args = args;
+            this.error = error;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+/*
+    Line index over an append-only text file such as server_data/<user>/log.txt.
+    The start position of every line is cached and extended incrementally as the file grows,
+    so any page of lines is served with one seek and one read of exactly its bytes.
+*/
+public class LogIndex {
+    private static final Map<String, LogIndex> indexes = new ConcurrentHashMap<>();
+    
+    private final File file;
+    private long[] lineStarts = new long[64];
+    private int lineCount = 0;
+    private long indexedLength = 0;  // Bytes covered by complete lines
+    
+    private LogIndex(File file) {
+        this.file = file;
+    }
+    
+    public static LogIndex forFile(File file) {
+        return indexes.computeIfAbsent(file.getPath(), k -> new LogIndex(file));
+    }
+    
+    // Index lines appended since the last call and return the number of complete lines
+    public synchronized int refresh() throws IOException {
+        long length = file.length();
+        if (length < indexedLength) {
+            // File was replaced or truncated, start over
+            lineCount = 0;
+            indexedLength = 0;
+        }
+        if (length == indexedLength) return lineCount;
+        
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            raf.seek(indexedLength);
+            byte[] buffer = new byte[8192];
+            long position = indexedLength;
+            long lineStart = indexedLength;
+            int n;
+            while ((n = raf.read(buffer)) != -1) {
+                for (int i = 0; i < n; i++) {
+                    if (buffer[i] == '\n') {
+                        addLine(lineStart);
+                        lineStart = position + i + 1;
+                    }
+                }
+                position += n;
+            }
+            indexedLength = lineStart;  // A partially written last line is indexed next time
+        }
+        return lineCount;
+    }
+    
+    // Lines [from, to) in file order, without their line terminators
+    public synchronized List<String> readLines(int from, int to) throws IOException {
+        List<String> lines = new ArrayList<>();
+        from = Math.max(from, 0);
+        to = Math.min(to, lineCount);
+        if (from >= to) return lines;
+        
+        long start = lineStarts[from];
+        long end = to < lineCount ? lineStarts[to] : indexedLength;
+        byte[] bytes = new byte[(int) (end - start)];
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            raf.seek(start);
+            raf.readFully(bytes);
+        }
+        
+        for (String line : new String(bytes, StandardCharsets.UTF_8).split("\n")) {
+            lines.add(line.endsWith("\r") ? line.substring(0, line.length() - 1) : line);
+        }
+        return lines;
+    }
+    
+    private void addLine(long start) {
+        if (lineCount == lineStarts.length) {
+            lineStarts = Arrays.copyOf(lineStarts, lineCount * 2);
+        }
+        lineStarts[lineCount++] = start;
+    }
+}
@@ -0,0 +1,309 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/*
+    Per-user append-only message log, split into segments under server_data/<user>/messages/.
+    
+    Every message gets a stable, increasing offset which doubles as its ID. Deleting a message
+    appends a tombstone instead of rewriting the file, and compactAll() rewrites sealed segments
+    without the deleted messages in the background. A legacy messages.txt is imported on first use.
+    
+    Segment file name: <base offset>.log
+    Records:           M|<offset>|<text>
+                       D|<offset>
+*/
+public class MessageStore {
+    static final int SEGMENT_MAX_RECORDS = 1024;
+    
+    private static final Map<String, UserMessages> users = new ConcurrentHashMap<>();
+    
+    public static long append(String username, String text) throws IOException {
+        return forUser(username).append(text);
+    }
+    
+    // Live messages with offset >= sinceOffset, oldest first
+    public static List<StoredMessage> readSince(String username, long sinceOffset) throws IOException {
+        return forUser(username).readSince(sinceOffset);
+    }
+    
+    // At most limit live messages with offset >= cursor, reading stops once the page is full
+    public static List<StoredMessage> readPage(String username, long cursor, int limit) throws IOException {
+        return forUser(username).readSince(cursor, limit);
+    }
+    
+    // Offset the next message will get, clients pass it back as their since-offset
+    public static long nextOffset(String username) {
+        return forUser(username).nextOffset();
+    }
+    
+    public static boolean delete(String username, long offset) throws IOException {
+        return forUser(username).delete(offset);
+    }
+    
+    // Delete the oldest live message with exactly this text
+    public static boolean deleteFirstMatching(String username, String text) throws IOException {
+        return forUser(username).deleteFirstMatching(text);
+    }
+    
+    public static void compactAll() {
+        for (UserMessages user : users.values()) {
+            try {
+                user.compact();
+            } catch (IOException e) {
+                Log.warn("Message compaction failed for {}: {}", user.username, e.getMessage());
+            }
+        }
+    }
+    
+    private static UserMessages forUser(String username) {
+        return users.computeIfAbsent(username, UserMessages::load);
+    }
+}
+
+class StoredMessage {
+    final long offset;
+    final String text;
+    
+    StoredMessage(long offset, String text) {
+        this.offset = offset;
+        this.text = text;
+    }
+}
+
+class UserMessages {
+    final String username;
+    private final File dir;
+    private final TreeMap<Long, File> segments = new TreeMap<>();  // base offset -> segment file
+    private final Set<Long> tombstones = new HashSet<>();  // Deleted offsets still present on disk
+    private Long staleDeletes;  // Last segment with D records of already purged messages, see open()
+    private long nextOffset = 0;
+    private int activeRecords = 0;
+    
+    private UserMessages(String username) {
+        this.username = username;
+        this.dir = new File("server_data/" + username + "/messages");
+    }
+    
+    static UserMessages load(String username) {
+        UserMessages user = new UserMessages(username);
+        try {
+            user.open();
+        } catch (IOException e) {
+            Log.error("Failed to open message log for " + username, e);
+        }
+        return user;
+    }
+    
+    synchronized long nextOffset() {
+        return nextOffset;
+    }
+    
+    synchronized long append(String text) throws IOException {
+        long offset = nextOffset;
+        appendRecord("M|" + offset + "|" + text);
+        nextOffset++;
+        return offset;
+    }
+    
+    synchronized boolean delete(long offset) throws IOException {
+        if (offset < 0 || offset >= nextOffset || tombstones.contains(offset)) {
+            return false;
+        }
+        if (!exists(offset)) {
+            return false;  // Already compacted away
+        }
+        appendRecord("D|" + offset);
+        tombstones.add(offset);
+        return true;
+    }
+    
+    synchronized boolean deleteFirstMatching(String text) throws IOException {
+        for (StoredMessage message : readSince(0)) {
+            if (message.text.trim().equals(text.trim())) {
+                appendRecord("D|" + message.offset);
+                tombstones.add(message.offset);
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    synchronized int tombstoneCount() {
+        return tombstones.size();
+    }
+    
+    synchronized List<StoredMessage> readSince(long sinceOffset) throws IOException {
+        return readSince(sinceOffset, Integer.MAX_VALUE);
+    }
+    
+    synchronized List<StoredMessage> readSince(long sinceOffset, int limit) throws IOException {
+        List<StoredMessage> messages = new ArrayList<>();
+        if (sinceOffset >= nextOffset) return messages;
+        
+        // Start at the segment holding sinceOffset, earlier segments are never read
+        Long start = segments.floorKey(Math.max(sinceOffset, 0));
+        Collection<File> files = (start != null ? segments.tailMap(start, true) : segments).values();
+        
+        for (File segment : files) {
+            try (BufferedReader reader = new BufferedReader(new FileReader(segment))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (!line.startsWith("M|")) continue;
+                    int sep = line.indexOf('|', 2);
+                    if (sep < 0) continue;
+                    long offset = Long.parseLong(line.substring(2, sep));
+                    String text = line.substring(sep + 1);
+                    if (offset >= sinceOffset && !tombstones.contains(offset) && !text.trim().isEmpty()) {
+                        messages.add(new StoredMessage(offset, text));
+                        if (messages.size() >= limit) return messages;
+                    }
+                }
+            }
+        }
+        return messages;
+    }
+    
+    // Rewrite sealed segments that contain deleted messages
+    synchronized void compact() throws IOException {
+        Long activeBase = segments.isEmpty() ? null : segments.lastKey();
+        boolean staleSealed = staleDeletes != null && !staleDeletes.equals(activeBase);
+        if (tombstones.isEmpty() && !staleSealed) return;
+        
+        for (Map.Entry<Long, File> entry : new ArrayList<>(segments.entrySet())) {
+            if (entry.getKey().equals(activeBase)) continue;
+            compactSegment(entry.getKey(), entry.getValue());
+        }
+        if (staleSealed) {
+            staleDeletes = null;
+        }
+    }
+    
+    private void compactSegment(long base, File segment) throws IOException {
+        List<String> kept = new ArrayList<>();
+        Set<Long> purged = new HashSet<>();
+        boolean changed = false;
+        
+        try (BufferedReader reader = new BufferedReader(new FileReader(segment))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                long offset = parseOffset(line);
+                if (line.startsWith("M|") && tombstones.contains(offset)) {
+                    purged.add(offset);
+                    changed = true;
+                } else if (line.startsWith("D|") && (purged.contains(offset) || !tombstones.contains(offset))) {
+                    changed = true;  // Its message was purged above or by an earlier pass
+                } else {
+                    kept.add(line);
+                }
+            }
+        }
+        if (!changed) return;
+        
+        if (kept.isEmpty()) {
+            Files.delete(segment.toPath());
+            segments.remove(base);
+        } else {
+            File tmpFile = new File(segment.getPath() + ".tmp");
+            try (FileWriter fw = new FileWriter(tmpFile, false)) {
+                for (String line : kept) {
+                    fw.write(line + "\n");
+                }
+            }
+            Files.move(tmpFile.toPath(), segment.toPath(), 
+                       StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        tombstones.removeAll(purged);
+    }
+    
+    private void appendRecord(String record) throws IOException {
+        if (segments.isEmpty() || activeRecords >= MessageStore.SEGMENT_MAX_RECORDS) {
+            dir.mkdirs();
+            segments.put(nextOffset, new File(dir, String.format("%020d.log", nextOffset)));
+            activeRecords = 0;
+        }
+        try (FileWriter fw = new FileWriter(segments.lastEntry().getValue(), true)) {
+            fw.write(record + "\n");
+        }
+        activeRecords++;
+    }
+    
+    private boolean exists(long offset) throws IOException {
+        for (StoredMessage message : readSince(offset)) {
+            return message.offset == offset;
+        }
+        return false;
+    }
+    
+    private void open() throws IOException {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(".log"));
+        if (files == null) {
+            importLegacyFile();
+            return;
+        }
+        
+        for (File file : files) {
+            segments.put(Long.parseLong(file.getName().substring(0, file.getName().length() - 4)), file);
+        }
+        Set<Long> stored = new HashSet<>();
+        Map<Long, Long> deletedIn = new HashMap<>();  // offset -> segment of its D record
+        for (Map.Entry<Long, File> entry : segments.entrySet()) {
+            File segment = entry.getValue();
+            activeRecords = 0;
+            try (BufferedReader reader = new BufferedReader(new FileReader(segment))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    long offset = parseOffset(line);
+                    if (offset < 0) continue;  // Torn last line after a crash
+                    if (line.startsWith("M|")) {
+                        nextOffset = Math.max(nextOffset, offset + 1);
+                        stored.add(offset);
+                    } else if (line.startsWith("D|")) {
+                        tombstones.add(offset);
+                        deletedIn.put(offset, entry.getKey());
+                    }
+                    activeRecords++;
+                }
+            }
+        }
+        if (!segments.isEmpty()) {
+            nextOffset = Math.max(nextOffset, segments.lastKey());
+        }
+        // A delete in the active segment outlives its message once compaction purged that from
+        // a sealed one; compaction drops the record itself after its segment is sealed
+        for (Long offset : tombstones) {
+            if (!stored.contains(offset)) {
+                staleDeletes = Math.max(deletedIn.get(offset), staleDeletes == null ? 0 : staleDeletes);
+            }
+        }
+        tombstones.retainAll(stored);
+    }
+    
+    // One-time import of server_data/<user>/messages.txt
+    private void importLegacyFile() throws IOException {
+        File legacy = new File("server_data/" + username + "/messages.txt");
+        if (!legacy.exists()) return;
+        
+        try (BufferedReader reader = new BufferedReader(new FileReader(legacy))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.trim().isEmpty()) {
+                    append(line);
+                }
+            }
+        }
+        Files.move(legacy.toPath(), new File(legacy.getPath() + ".migrated").toPath(), 
+                   StandardCopyOption.REPLACE_EXISTING);
+    }
+    
+    private static long parseOffset(String line) {
+        if (line.length() < 3 || line.charAt(1) != '|') return -1;
+        int end = line.indexOf('|', 2);
+        try {
+            return Long.parseLong(end < 0 ? line.substring(2) : line.substring(2, end));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
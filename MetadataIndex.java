@@ -0,0 +1,199 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/*
+    In-memory file metadata keyed by (owner, filename).
+    
+    A user's entries are loaded lazily from server_data/<user>/metadata.txt (the snapshot)
+    plus server_data/<user>/metadata.log (append-only changes since the snapshot). Every
+    change is a single appended log line; compact() folds the log back into the snapshot.
+    
+    Log lines: +|filename|public/private|requesterUsername|description
+               -|filename
+*/
+public class MetadataIndex {
+    private static final int COMPACT_THRESHOLD = 64;  // Log records before a user is compacted
+    
+    private static final Map<String, UserMetadata> users = new ConcurrentHashMap<>();
+    
+    public static FileMetadata get(String owner, String fileName) {
+        UserMetadata user = forUser(owner);
+        return user != null ? user.get(fileName) : null;
+    }
+    
+    // Entries in upload order (a re-uploaded file moves to the end, as before)
+    public static List<FileMetadata> list(String owner) {
+        UserMetadata user = forUser(owner);
+        return user != null ? user.list() : new ArrayList<>();
+    }
+    
+    public static void put(String owner, FileMetadata metadata) throws IOException {
+        UserMetadata user = forUser(owner);
+        if (user == null) throw new FileNotFoundException("No directory for user " + owner);
+        user.put(metadata);
+    }
+    
+    public static void remove(String owner, String fileName) throws IOException {
+        UserMetadata user = forUser(owner);
+        if (user != null) user.remove(fileName);
+    }
+    
+    // Fold change logs into snapshots, called periodically by the server
+    public static void compactAll() {
+        for (UserMetadata user : users.values()) {
+            if (user.pendingLogRecords() >= COMPACT_THRESHOLD) {
+                try {
+                    user.compact();
+                } catch (IOException e) {
+                    Log.warn("Metadata compaction failed for {}: {}", user.owner, e.getMessage());
+                }
+            }
+        }
+    }
+    
+    private static UserMetadata forUser(String owner) {
+        UserMetadata user = users.get(owner);
+        if (user != null) return user;
+        
+        // Don't cache anything for users that don't exist
+        File userDir = new File("server_data/" + owner);
+        if (!userDir.isDirectory()) return null;
+        return users.computeIfAbsent(owner, UserMetadata::load);
+    }
+}
+
+class FileMetadata {
+    final String fileName;
+    final boolean isPublic;
+    final String requesterUsername;
+    final String description;
+    
+    FileMetadata(String fileName, boolean isPublic, String requesterUsername, String description) {
+        this.fileName = fileName;
+        this.isPublic = isPublic;
+        this.requesterUsername = requesterUsername != null ? requesterUsername : "";
+        this.description = description != null ? description : "";
+    }
+    
+    // filename|public/private|requesterUsername|description
+    String toLine() {
+        return fileName + "|" + (isPublic ? "public" : "private") + "|" + requesterUsername + "|" + description;
+    }
+    
+    static FileMetadata parse(String line) {
+        String[] parts = line.split("\\|", 4);
+        if (parts[0].isEmpty()) return null;
+        return new FileMetadata(parts[0], 
+                                parts.length > 1 && parts[1].equals("public"), 
+                                parts.length > 2 ? parts[2] : "", 
+                                parts.length > 3 ? parts[3] : "");
+    }
+}
+
+class UserMetadata {
+    final String owner;
+    private final File snapshotFile;
+    private final File logFile;
+    private final LinkedHashMap<String, FileMetadata> entries = new LinkedHashMap<>();
+    private int logRecords = 0;
+    
+    private UserMetadata(String owner) {
+        this.owner = owner;
+        this.snapshotFile = new File("server_data/" + owner + "/metadata.txt");
+        this.logFile = new File("server_data/" + owner + "/metadata.log");
+    }
+    
+    static UserMetadata load(String owner) {
+        UserMetadata user = new UserMetadata(owner);
+        try {
+            user.readSnapshot();
+            user.replayLog();
+        } catch (IOException e) {
+            Log.error("Failed to load file metadata for " + owner, e);
+        }
+        return user;
+    }
+    
+    synchronized FileMetadata get(String fileName) {
+        return entries.get(fileName);
+    }
+    
+    synchronized List<FileMetadata> list() {
+        return new ArrayList<>(entries.values());
+    }
+    
+    synchronized void put(FileMetadata metadata) throws IOException {
+        appendLog("+|" + metadata.toLine());
+        entries.remove(metadata.fileName);
+        entries.put(metadata.fileName, metadata);
+    }
+    
+    synchronized void remove(String fileName) throws IOException {
+        if (!entries.containsKey(fileName)) return;
+        appendLog("-|" + fileName);
+        entries.remove(fileName);
+    }
+    
+    synchronized int pendingLogRecords() {
+        return logRecords;
+    }
+    
+    // Write the current entries as the new snapshot, then start a fresh log
+    synchronized void compact() throws IOException {
+        File tmpFile = new File(snapshotFile.getPath() + ".tmp");
+        try (FileWriter fw = new FileWriter(tmpFile, false)) {
+            for (FileMetadata metadata : entries.values()) {
+                fw.write(metadata.toLine() + "\n");
+            }
+        }
+        Files.move(tmpFile.toPath(), snapshotFile.toPath(), 
+                   StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        
+        // Replaying the old log over the new snapshot is harmless if we crash before this
+        new FileWriter(logFile, false).close();
+        logRecords = 0;
+    }
+    
+    private void appendLog(String record) throws IOException {
+        try (FileWriter fw = new FileWriter(logFile, true)) {
+            fw.write(record + "\n");
+        }
+        logRecords++;
+    }
+    
+    private void readSnapshot() throws IOException {
+        if (!snapshotFile.exists()) return;
+        try (BufferedReader reader = new BufferedReader(new FileReader(snapshotFile))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                FileMetadata metadata = FileMetadata.parse(line);
+                if (metadata != null) {
+                    entries.put(metadata.fileName, metadata);
+                }
+            }
+        }
+    }
+    
+    private void replayLog() throws IOException {
+        if (!logFile.exists()) return;
+        try (BufferedReader reader = new BufferedReader(new FileReader(logFile))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("+|")) {
+                    FileMetadata metadata = FileMetadata.parse(line.substring(2));
+                    if (metadata != null) {
+                        entries.remove(metadata.fileName);
+                        entries.put(metadata.fileName, metadata);
+                    }
+                } else if (line.startsWith("-|")) {
+                    entries.remove(line.substring(2));
+                } else {
+                    continue;  // Torn last line after a crash
+                }
+                logRecords++;
+            }
+        }
+    }
+}
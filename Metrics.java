@@ -0,0 +1,225 @@
+import com.sun.net.httpserver.HttpServer;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/*
+    Server instrumentation: a latency histogram per command type, upload and download byte
+    counters with their recent rate, and gauges the server registers at startup (online
+    sessions, upload budget in use, active upload sessions, buffer pool).
+    
+    Recording is lock-free: a histogram is an array of atomic bucket counters plus two
+    LongAdders, so handler threads never wait on each other to record. Buckets are powers of
+    two in microseconds (1 us to 2^25 us, about 33 s, then +Inf); percentiles are the upper
+    bound of the bucket they fall in, at most a factor of two above the real value.
+    
+    Two views of the same numbers:
+        METRICS:                  one-line summary for the users in admin.users
+        http://<host>:metrics.port/metrics   Prometheus text format (metrics.port=0 turns it off)
+    
+    The endpoint has no authentication, so it listens on metrics.host (default 127.0.0.1) only.
+    Set metrics.host=0.0.0.0 to let a Prometheus on another machine scrape it.
+*/
+public class Metrics {
+    private static final int PORT = Integer.getInteger("metrics.port", 9464);
+    private static final String HOST = System.getProperty("metrics.host", "127.0.0.1");
+    private static final int MAX_COMMANDS = 64;  // Histograms beyond this are recorded as OTHER
+    
+    private static final Map<String, Histogram> commands = new ConcurrentHashMap<>();
+    private static final LongAdder uploadedBytes = new LongAdder();
+    private static final LongAdder downloadedBytes = new LongAdder();
+    private static final List<Gauge> gauges = new CopyOnWriteArrayList<>();
+    
+    // Rates over the last sample() interval, written by the housekeeping thread only
+    private static volatile double uploadRate;
+    private static volatile double downloadRate;
+    private static long lastSampleTime = System.nanoTime();
+    private static long lastUploaded;
+    private static long lastDownloaded;
+    
+    private static HttpServer httpServer;
+    
+    private static class Gauge {
+        final String name;
+        final String help;
+        final LongSupplier value;
+        
+        Gauge(String name, String help, LongSupplier value) {
+            this.name = name;
+            this.help = help;
+            this.value = value;
+        }
+    }
+    
+    public static class Histogram {
+        static final int BUCKETS = 27;  // 2^0 .. 2^25 us, then +Inf
+        
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sumNanos = new LongAdder();
+        
+        public void record(long nanos) {
+            long micros = Math.max(1, nanos / 1000);
+            int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros - 1));
+            counts.incrementAndGet(bucket);
+            count.increment();
+            sumNanos.add(nanos);
+        }
+        
+        public long count() {
+            return count.sum();
+        }
+        
+        // Upper bound of the bucket holding quantile q (0 to 1) in microseconds, 0 when empty
+        public long percentileMicros(double q) {
+            long total = 0;
+            long[] snapshot = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = counts.get(i);
+                total += snapshot[i];
+            }
+            if (total == 0) return 0;
+            long rank = (long) Math.ceil(q * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) return upperMicros(i);
+            }
+            return upperMicros(BUCKETS - 1);
+        }
+        
+        static long upperMicros(int bucket) {
+            return 1L << bucket;  // The +Inf bucket reports 2^26 us
+        }
+    }
+    
+    // Time spent in one command, cmd as sent by the client (LIST_CLIENTS, UPLOAD_CHUNK, ...)
+    public static void command(String cmd, long nanos) {
+        Histogram histogram = commands.get(cmd);
+        if (histogram == null) {
+            // Unknown commands are clients' typos, do not let them grow the map without bound
+            String name = commands.size() < MAX_COMMANDS && cmd.matches("[A-Z_]{1,32}") ? cmd : "OTHER";
+            histogram = commands.computeIfAbsent(name, k -> new Histogram());
+        }
+        histogram.record(nanos);
+    }
+    
+    public static void uploaded(long bytes) {
+        uploadedBytes.add(bytes);
+    }
+    
+    public static void downloaded(long bytes) {
+        downloadedBytes.add(bytes);
+    }
+    
+    public static void gauge(String name, String help, LongSupplier value) {
+        gauges.add(new Gauge(name, help, value));
+    }
+    
+    // Refresh the byte rates, called periodically by the server
+    public static synchronized void sample() {
+        long now = System.nanoTime();
+        long uploaded = uploadedBytes.sum();
+        long downloaded = downloadedBytes.sum();
+        double seconds = Math.max(1e-3, (now - lastSampleTime) / 1e9);
+        uploadRate = (uploaded - lastUploaded) / seconds;
+        downloadRate = (downloaded - lastDownloaded) / seconds;
+        lastSampleTime = now;
+        lastUploaded = uploaded;
+        lastDownloaded = downloaded;
+    }
+    
+    // Serve /metrics on metrics.port; a port in use is logged, the server runs on without it
+    public static synchronized void startHttp() {
+        if (PORT <= 0 || httpServer != null) return;
+        try {
+            httpServer = HttpServer.create(new InetSocketAddress(HOST, PORT), 0);
+            httpServer.createContext("/metrics", exchange -> {
+                byte[] body = prometheus().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            httpServer.setExecutor(Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "metrics-http");
+                t.setDaemon(true);
+                return t;
+            }));
+            httpServer.start();
+            Log.info("Metrics endpoint on {}:{}", HOST, PORT);
+        } catch (IOException e) {
+            Log.warn("Metrics endpoint not started on port {}: {}", PORT, e.getMessage());
+        }
+    }
+    
+    /*
+        METRICS reply body: name=value entries separated by ';'. Commands are
+        cmd=count/p50/p99/max with latencies in microseconds.
+    */
+    public static String summary() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("upload_bytes_per_second=%.0f;download_bytes_per_second=%.0f", uploadRate, downloadRate));
+        sb.append(";uploaded_bytes=").append(uploadedBytes.sum());
+        sb.append(";downloaded_bytes=").append(downloadedBytes.sum());
+        for (Gauge gauge : gauges) {
+            sb.append(';').append(gauge.name).append('=').append(gauge.value.getAsLong());
+        }
+        for (Map.Entry<String, Histogram> entry : new TreeMap<>(commands).entrySet()) {
+            Histogram h = entry.getValue();
+            sb.append(';').append(entry.getKey()).append('=').append(h.count())
+              .append('/').append(h.percentileMicros(0.5))
+              .append('/').append(h.percentileMicros(0.99))
+              .append('/').append(h.percentileMicros(1.0));
+        }
+        return sb.toString();
+    }
+    
+    // Prometheus text exposition format 0.0.4
+    public static String prometheus() {
+        StringBuilder sb = new StringBuilder(4096);
+        counter(sb, "chitchat_uploaded_bytes_total", "Chunk bytes received from uploads", uploadedBytes.sum());
+        counter(sb, "chitchat_downloaded_bytes_total", "File bytes sent to downloads", downloadedBytes.sum());
+        gaugeLine(sb, "chitchat_upload_bytes_per_second", "Upload rate over the last sample interval", (long) uploadRate);
+        gaugeLine(sb, "chitchat_download_bytes_per_second", "Download rate over the last sample interval", (long) downloadRate);
+        for (Gauge gauge : gauges) {
+            gaugeLine(sb, gauge.name, gauge.help, gauge.value.getAsLong());
+        }
+        
+        sb.append("# HELP chitchat_command_duration_seconds Time to handle one command\n");
+        sb.append("# TYPE chitchat_command_duration_seconds histogram\n");
+        for (Map.Entry<String, Histogram> entry : new TreeMap<>(commands).entrySet()) {
+            String label = "command=\"" + entry.getKey() + "\"";
+            Histogram h = entry.getValue();
+            long cumulative = 0;
+            for (int i = 0; i < Histogram.BUCKETS - 1; i++) {
+                cumulative += h.counts.get(i);
+                sb.append("chitchat_command_duration_seconds_bucket{").append(label)
+                  .append(",le=\"").append(Histogram.upperMicros(i) / 1e6).append("\"} ").append(cumulative).append('\n');
+            }
+            cumulative += h.counts.get(Histogram.BUCKETS - 1);
+            sb.append("chitchat_command_duration_seconds_bucket{").append(label).append(",le=\"+Inf\"} ").append(cumulative).append('\n');
+            sb.append("chitchat_command_duration_seconds_sum{").append(label).append("} ").append(h.sumNanos.sum() / 1e9).append('\n');
+            sb.append("chitchat_command_duration_seconds_count{").append(label).append("} ").append(cumulative).append('\n');
+        }
+        return sb.toString();
+    }
+    
+    private static void counter(StringBuilder sb, String name, String help, long value) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" counter\n");
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+    
+    private static void gaugeLine(StringBuilder sb, String name, String help, long value) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" gauge\n");
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+}
@@ -0,0 +1,194 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/*
+    Buffered reader for the line protocol. Command lines are decoded as UTF-8 and binary
+    payloads (UPLOAD_CHUNK data, download chunks, v2 frames) are read from the same buffer,
+    so bytes that arrived together with a command line are never lost. The read buffer and the
+    line buffer are reused for every command. Given the socket's channel, payloads read into a
+    ByteBuffer come straight from the channel once the buffered bytes are used up.
+*/
+public class ProtocolReader {
+    private static final int BUFFER_SIZE = 8192;
+    
+    private final InputStream in;
+    private final ReadableByteChannel channel;  // Same stream as in, null for plain sockets
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int pos = 0;
+    private int limit = 0;
+    private byte[] lineBuffer = new byte[256];  // Only used when a line spans several reads
+    
+    public ProtocolReader(InputStream in) {
+        this(in, null);
+    }
+    
+    public ProtocolReader(InputStream in, ReadableByteChannel channel) {
+        this.in = in;
+        this.channel = channel;
+    }
+    
+    // Read one line without the trailing \n (and \r), null at end of stream
+    public String readLine() throws IOException {
+        int lineLength = 0;
+        
+        while (true) {
+            if (pos == limit && !fill()) {
+                // End of stream, return what we have like the old byte-at-a-time reader
+                return lineLength > 0 ? decode(lineBuffer, 0, lineLength) : null;
+            }
+            
+            int newline = indexOf('\n', pos, limit);
+            if (newline >= 0) {
+                String line;
+                if (lineLength == 0) {
+                    // Common case: the whole line is already in the read buffer
+                    line = decode(buffer, pos, newline - pos);
+                } else {
+                    lineLength = appendToLine(lineLength, pos, newline);
+                    line = decode(lineBuffer, 0, lineLength);
+                }
+                pos = newline + 1;
+                return line;
+            }
+            
+            lineLength = appendToLine(lineLength, pos, limit);
+            pos = limit;
+        }
+    }
+    
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (pos == limit) {
+            // Large payloads go straight into the caller's buffer
+            if (len >= BUFFER_SIZE) {
+                return in.read(b, off, len);
+            }
+            if (!fill()) return -1;
+        }
+        int n = Math.min(len, limit - pos);
+        System.arraycopy(buffer, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+    
+    public void readFully(byte[] b, int off, int len) throws IOException {
+        int filled = 0;
+        while (filled < len) {
+            int read = read(b, off + filled, len - filled);
+            if (read == -1) throw new EOFException();
+            filled += read;
+        }
+    }
+    
+    // Read exactly length bytes into dst at its position, e.g. a chunk into a pooled direct buffer
+    public void readFully(ByteBuffer dst, int length) throws IOException {
+        int end = dst.position() + length;
+        int n = Math.min(length, limit - pos);
+        dst.put(buffer, pos, n);
+        pos += n;
+        
+        if (channel == null || !dst.isDirect()) {
+            while (dst.position() < end) {
+                if (!fill()) throw new EOFException();
+                n = Math.min(end - dst.position(), limit - pos);
+                dst.put(buffer, pos, n);
+                pos += n;
+            }
+            return;
+        }
+        
+        int savedLimit = dst.limit();
+        dst.limit(end);
+        try {
+            while (dst.hasRemaining()) {
+                int read = channel.read(dst);
+                if (read == -1) throw new EOFException();
+            }
+        } finally {
+            dst.limit(savedLimit);
+        }
+    }
+    
+    // Discard a payload nobody wants, stopping early at end of stream
+    public void skipBytes(long count) throws IOException {
+        while (count > 0) {
+            if (pos == limit && !fill()) return;
+            int n = (int) Math.min(count, limit - pos);
+            pos += n;
+            count -= n;
+        }
+    }
+    
+    // Next byte as 0-255, -1 at end of stream
+    public int readByte() throws IOException {
+        if (pos == limit && !fill()) return -1;
+        return buffer[pos++] & 0xFF;
+    }
+    
+    public int readInt() throws IOException {
+        while (limit - pos < 4) {
+            compact();
+            int n = in.read(buffer, limit, buffer.length - limit);
+            if (n == -1) throw new EOFException();
+            limit += n;
+        }
+        int value = ((buffer[pos] & 0xFF) << 24) | ((buffer[pos + 1] & 0xFF) << 16) 
+                  | ((buffer[pos + 2] & 0xFF) << 8) | (buffer[pos + 3] & 0xFF);
+        pos += 4;
+        return value;
+    }
+    
+    // Bytes already read from the socket but not consumed yet
+    public int buffered() {
+        return limit - pos;
+    }
+    
+    public int available() throws IOException {
+        return buffered() + in.available();
+    }
+    
+    private boolean fill() throws IOException {
+        pos = 0;
+        limit = 0;
+        int n = in.read(buffer, 0, buffer.length);
+        if (n == -1) return false;
+        limit = n;
+        return true;
+    }
+    
+    private void compact() {
+        if (pos > 0) {
+            System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+            limit -= pos;
+            pos = 0;
+        }
+    }
+    
+    private int appendToLine(int lineLength, int from, int to) {
+        int n = to - from;
+        if (lineLength + n > lineBuffer.length) {
+            byte[] grown = new byte[Math.max(lineBuffer.length * 2, lineLength + n)];
+            System.arraycopy(lineBuffer, 0, grown, 0, lineLength);
+            lineBuffer = grown;
+        }
+        System.arraycopy(buffer, from, lineBuffer, lineLength, n);
+        return lineLength + n;
+    }
+    
+    private int indexOf(int b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buffer[i] == b) return i;
+        }
+        return -1;
+    }
+    
+    // Decode UTF-8 and skip \r like the old reader did
+    private static String decode(byte[] bytes, int off, int len) {
+        if (len > 0 && bytes[off + len - 1] == '\r') {
+            len--;
+        }
+        return new String(bytes, off, len, StandardCharsets.UTF_8);
+    }
+}
@@ -1,68 +1,147 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.zip.CRC32C;
 
 public class Server {
     // Configurable parameters
     private static final int MAX_BUFFER_SIZE = 10 * 1024 * 1024; // 10 MB
-    private static final int MIN_CHUNK_SIZE = 50 * 1024; // 50 KB
-    private static final int MAX_CHUNK_SIZE = 100 * 1024; // 100 KB
+    private static final int MIN_CHUNK_SIZE = Integer.getInteger("upload.minChunk", 16 * 1024); // 16 KB, bounds for ChunkSizer
+    private static final int MAX_CHUNK_SIZE = BufferPool.BUFFER_SIZE; // upload.maxChunk, 1 MB; one pooled buffer holds a chunk
+    private static final int DOWNLOAD_CHUNK_SIZE = 100 * 1024; // 100 KB
+    private static final int UPLOAD_WINDOW = Integer.getInteger("upload.window", 8); // Unacknowledged chunks a client may send
+    private static final int MAX_STREAMS = Integer.getInteger("session.maxStreams", 8); // Concurrent v2 commands per session
+    private static final long UPLOAD_RESUME_TTL = Long.getLong("upload.resumeTtl", 30 * 60) * 1000; // Detached uploads are kept this long
+    private static final Set<String> ADMIN_USERS = new HashSet<>(Arrays.asList(System.getProperty("admin.users", "").split("\\s*,\\s*"))); // May run METRICS
     
-    private static final int PORT = 8000; 
+    private static final int PORT = Integer.getInteger("server.port", 8000); 
+    private static final int HANDSHAKE_TIMEOUT = Integer.getInteger("handshake.timeout", 10_000); // ms a client may take per handshake line
     
     // Data structures
     private static Map<String, ClientHandler> onlineClients = new ConcurrentHashMap<>();
     private static Set<String> allKnownClients = ConcurrentHashMap.newKeySet();
-    private static Map<String, String> userPasswords = new ConcurrentHashMap<>(); // username -> password
-    private static Map<String, String> userSecurityAnswers = new ConcurrentHashMap<>(); // username -> security answer
     private static Map<String, FileUploadSession> uploadSessions = new ConcurrentHashMap<>();
-    private static Map<String, List<FileRequest>> fileRequests = new ConcurrentHashMap<>();
+    private static FileRequestRegistry fileRequests = new FileRequestRegistry();
     private static Map<String, List<String>> unreadMessages = new ConcurrentHashMap<>();
-    private static long currentBufferSize = 0;
-    private static final Object bufferLock = new Object();
+    private static Map<String, TransferToken> transferTokens = new ConcurrentHashMap<>(); // token -> owner and expiry
+    private static final SecureRandom tokenRandom = new SecureRandom();
+    private static final long TRANSFER_TOKEN_TTL = 60 * 1000;
+    private static final UploadBudget uploadBudget = UploadBudget.fromSystemProperties(MAX_BUFFER_SIZE); // Credits for in-flight chunks
     
     private static int fileIdCounter = 0;
     private static int requestIdCounter = 0;
     
-    private static final String CREDENTIALS_FILE = "server_data/credentials.txt";
+    private static ConnectionEngine engine;
+    private static ExecutorService streamExecutor;  // Runs the commands of v2 sessions
+    
+    // Background housekeeping (metadata compaction, ...)
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "server-housekeeping");
+        t.setDaemon(true);
+        return t;
+    });
     
     public static void main(String[] args) {
-        System.out.println("Server starting on port " + PORT + "...");
-        System.out.println("MAX_BUFFER_SIZE: " + MAX_BUFFER_SIZE);
-        System.out.println("MIN_CHUNK_SIZE: " + MIN_CHUNK_SIZE);
-        System.out.println("MAX_CHUNK_SIZE: " + MAX_CHUNK_SIZE);
+        // Engine options: --engine=thread|virtual|selector --workers=N (selector pool size)
+        String engineName = "thread";
+        int workers = 64;
+        for (String arg : args) {
+            if (arg.startsWith("--engine=")) {
+                engineName = arg.substring(9);
+            } else if (arg.startsWith("--workers=")) {
+                workers = Integer.parseInt(arg.substring(10));
+            }
+        }
+        engine = ConnectionEngine.create(engineName, workers);
+        streamExecutor = engine instanceof VirtualThreadEngine 
+                ? ((VirtualThreadEngine) engine).getExecutor() 
+                : Executors.newCachedThreadPool(r -> {
+                    Thread t = new Thread(r, "session-stream");
+                    t.setDaemon(true);
+                    return t;
+                });
+        
+        Log.info("Server starting on port {}...", PORT);
+        Log.info("Connection engine: {}", engineName);
+        Log.info("Upload budget: {}, MIN_CHUNK_SIZE: {}, MAX_CHUNK_SIZE: {}", uploadBudget.capacity(), MIN_CHUNK_SIZE, MAX_CHUNK_SIZE);
         
         // Load saved credentials
-        loadCredentials();
+        CredentialStore.load();
+        allKnownClients.addAll(CredentialStore.usernames());
+        BlobStore.load();
+        
+        scheduler.scheduleWithFixedDelay(MetadataIndex::compactAll, 60, 60, TimeUnit.SECONDS);
+        scheduler.scheduleWithFixedDelay(BlobStore::compact, 60, 60, TimeUnit.SECONDS);
+        scheduler.scheduleWithFixedDelay(CredentialStore::compact, 60, 60, TimeUnit.SECONDS);
+        scheduler.scheduleWithFixedDelay(fileRequests::expire, 10, 10, TimeUnit.MINUTES);
+        scheduler.scheduleWithFixedDelay(MessageStore::compactAll, 5, 5, TimeUnit.MINUTES);
+        scheduler.scheduleWithFixedDelay(Server::expireUploadSessions, 1, 1, TimeUnit.MINUTES);
+        scheduler.scheduleWithFixedDelay(Server::expireTransferTokens, 1, 1, TimeUnit.MINUTES);
+        scheduler.scheduleWithFixedDelay(() -> Log.info("Buffer pool: {}", BufferPool.shared()), 1, 1, TimeUnit.MINUTES);
+        scheduler.scheduleWithFixedDelay(Metrics::sample, 10, 10, TimeUnit.SECONDS);
         
-        try (ServerSocket serverSocket = new ServerSocket(PORT)) {
-            System.out.println("Server started successfully!");
+        Metrics.gauge("chitchat_online_sessions", "Logged-in users", onlineClients::size);
+        Metrics.gauge("chitchat_upload_sessions", "Uploads in progress or waiting to be resumed", uploadSessions::size);
+        Metrics.gauge("chitchat_upload_budget_bytes", "Upload budget reserved for chunks in flight", uploadBudget::inUse);
+        Metrics.gauge("chitchat_upload_budget_capacity_bytes", "Upload budget size", uploadBudget::capacity);
+        Metrics.gauge("chitchat_upload_budget_waiting", "Uploads queued for budget", uploadBudget::waiting);
+        Metrics.gauge("chitchat_buffer_pool_allocated_bytes", "Direct chunk buffers allocated", BufferPool.shared()::allocatedBytes);
+        Metrics.gauge("chitchat_buffer_pool_in_use", "Chunk buffers currently borrowed", BufferPool.shared()::outstanding);
+        Metrics.gauge("chitchat_buffer_pool_bytes_per_gb", "Buffer bytes allocated per GB transferred",
+                      () -> (long) BufferPool.shared().allocatedBytesPerGb());
+        Metrics.gauge("chitchat_auth_queued", "Logins and signups waiting for an auth thread", CredentialStore::queued);
+        Metrics.startHttp();
+        
+        // Accept through a channel so client sockets support zero-copy FileChannel.transferTo
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(PORT));
+            Log.info("Server started successfully!");
             
             while (true) {
-                Socket clientSocket = serverSocket.accept();
-                System.out.println("New connection from: " + clientSocket.getInetAddress());
+                SocketChannel clientChannel = serverChannel.accept();
+                Socket clientSocket = clientChannel.socket();
+                Log.debug("New connection from: {}", clientSocket.getInetAddress());
                 
-                new Thread(() -> handleNewClient(clientSocket)).start();
+                engine.accept(clientChannel, () -> handleNewClient(clientSocket));
             }
         } catch (IOException e) {
-            System.err.println("Server error: " + e.getMessage());
+            Log.error("Server error", e);
         }
     }
     
     private static void handleNewClient(Socket socket) {
         try {
+            // A client that stops sending half way through the login must not hold this thread
+            socket.setSoTimeout(HANDSHAKE_TIMEOUT);
+            
             // Get raw streams first for binary data
             InputStream rawIn = socket.getInputStream();
-            OutputStream rawOut = socket.getOutputStream();
+            OutputStream rawOut = socket.getChannel() != null 
+                    ? new ChannelOutputStream(socket.getChannel()) : socket.getOutputStream();
             
-            DataInputStream dataIn = new DataInputStream(rawIn);
-            PrintWriter out = new PrintWriter(rawOut, true);
+            // The reader is handed to the ClientHandler so buffered bytes are not lost
+            ProtocolReader dataIn = new ProtocolReader(rawIn, socket.getChannel());
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(rawOut, StandardCharsets.UTF_8), true);
             
-            // Read auth mode, username and password
-            String authMode = readLine(dataIn); // LOGIN, SIGNUP, or RECOVER
-            String username = readLine(dataIn);
-            String password = readLine(dataIn);
+            // Read auth mode, username and password; a v2 client sends PROTOCOL:2 first
+            String authMode = dataIn.readLine(); // LOGIN, SIGNUP, RECOVER or ATTACH
+            boolean framed = false;
+            if (authMode != null && authMode.startsWith("PROTOCOL:")) {
+                framed = authMode.equals(FrameProtocol.HELLO);
+                authMode = dataIn.readLine();
+            }
+            String username = dataIn.readLine();
+            String password = dataIn.readLine();
             
             if (authMode == null || authMode.trim().isEmpty()) {
                 authMode = "LOGIN";
@@ -74,41 +153,46 @@ public class Server {
                 return;
             }
             
-            // Handle RECOVER mode (no login, just reset password)
-            if (authMode.equals("RECOVER")) {
-                String securityAnswer = password; // reuse password field for security answer
-                String newPassword = readLine(dataIn);
-                
-                if (!userPasswords.containsKey(username)) {
-                    out.println("ERROR:Account not found");
-                    socket.close();
-                    return;
-                }
-                
-                String storedAnswer = userSecurityAnswers.getOrDefault(username, "");
-                if (storedAnswer.isEmpty()) {
-                    out.println("ERROR:No security question set for this account");
+            // Extra transfer connection of a logged-in user, authenticated by a TRANSFER_TOKEN
+            if (authMode.equals("ATTACH")) {
+                if (!isValidTransferToken(username, password)) {
+                    out.println("ERROR:Invalid transfer token");
                     socket.close();
                     return;
                 }
+                acceptProtocol(out, framed);
+                out.println("SUCCESS:Attached " + username);
+                ClientHandler handler = new ClientHandler(socket, username, out, dataIn, rawOut, true, framed);
+                Log.debug("Transfer connection attached for {}", username);
+                socket.setSoTimeout(0);  // Sessions may stay idle
+                engine.startSession(handler);
+                return;
+            }
+            
+            // Handle RECOVER mode (no login, just reset password)
+            if (authMode.equals("RECOVER")) {
+                String securityAnswer = password; // reuse password field for security answer
+                String newPassword = dataIn.readLine();
                 
-                if (!storedAnswer.equalsIgnoreCase(securityAnswer.trim())) {
-                    out.println("ERROR:Incorrect security answer");
+                if (securityAnswer == null || newPassword == null || newPassword.trim().isEmpty()) {
+                    out.println("ERROR:New password cannot be empty");
                     socket.close();
                     return;
                 }
                 
-                if (newPassword == null || newPassword.trim().isEmpty()) {
-                    out.println("ERROR:New password cannot be empty");
+                CredentialStore.Result result = CredentialStore.recover(username, securityAnswer, newPassword);
+                if (result != CredentialStore.Result.OK) {
+                    out.println(result == CredentialStore.Result.NO_ACCOUNT ? "ERROR:Account not found"
+                              : result == CredentialStore.Result.NO_ANSWER ? "ERROR:No security question set for this account"
+                              : result == CredentialStore.Result.WRONG ? "ERROR:Incorrect security answer"
+                              : "ERROR:Server busy, please try again");
                     socket.close();
                     return;
                 }
                 
-                userPasswords.put(username, newPassword);
-                saveCredentials();
                 out.println("ERROR:Password reset successful! Please login with your new password.");
                 socket.close();
-                System.out.println("Password reset for user: " + username);
+                Log.info("Password reset for user: {}", username);
                 return;
             }
             
@@ -123,43 +207,59 @@ public class Server {
                 if (onlineClients.containsKey(username)) {
                     out.println("ERROR:Username already online");
                     socket.close();
-                    System.out.println("Login denied for " + username + " (already online)");
+                    Log.info("Login denied for {} (already online)", username);
                     return;
                 }
             }
             
             // Handle LOGIN vs SIGNUP
             if (authMode.equals("SIGNUP")) {
-                if (userPasswords.containsKey(username)) {
+                if (CredentialStore.exists(username)) {
                     out.println("ERROR:Username already registered. Please login instead.");
                     socket.close();
-                    System.out.println("Signup denied for " + username + " (already exists)");
+                    Log.info("Signup denied for {} (already exists)", username);
                     return;
                 }
                 // Read security answer for signup
-                String securityAnswer = readLine(dataIn);
+                String securityAnswer = dataIn.readLine();
                 if (securityAnswer == null || securityAnswer.trim().isEmpty()) {
                     out.println("ERROR:Security answer is required for signup");
                     socket.close();
                     return;
                 }
                 // Register new user
-                userPasswords.put(username, password);
-                userSecurityAnswers.put(username, securityAnswer.trim());
-                saveCredentials();
-                System.out.println("New user registered: " + username);
+                CredentialStore.Result result = CredentialStore.signup(username, password, securityAnswer);
+                if (result == CredentialStore.Result.EXISTS) {
+                    out.println("ERROR:Username already registered. Please login instead.");
+                    socket.close();
+                    Log.info("Signup denied for {} (already exists)", username);
+                    return;
+                }
+                if (result != CredentialStore.Result.OK) {
+                    out.println("ERROR:Server busy, please try again");
+                    socket.close();
+                    return;
+                }
+                Log.info("New user registered: {}", username);
             } else {
                 // LOGIN mode
-                if (!userPasswords.containsKey(username)) {
+                CredentialStore.Result result = CredentialStore.login(username, password);
+                if (result == CredentialStore.Result.NO_ACCOUNT) {
                     out.println("ERROR:Account not found. Please sign up first.");
                     socket.close();
-                    System.out.println("Login denied for " + username + " (not registered)");
+                    Log.info("Login denied for {} (not registered)", username);
                     return;
                 }
-                if (!userPasswords.get(username).equals(password)) {
+                if (result == CredentialStore.Result.WRONG) {
                     out.println("ERROR:Wrong password");
                     socket.close();
-                    System.out.println("Login denied for " + username + " (wrong password)");
+                    Log.info("Login denied for {} (wrong password)", username);
+                    return;
+                }
+                if (result != CredentialStore.Result.OK) {
+                    out.println("ERROR:Server busy, please try again");
+                    socket.close();
+                    Log.info("Login denied for {} (auth queue full)", username);
                     return;
                 }
             }
@@ -168,43 +268,76 @@ public class Server {
             File userDir = new File("server_data/" + username);
             if (!userDir.exists()) {
                 userDir.mkdirs();
-                System.out.println("Created directory for new user: " + username);
+                Log.info("Created directory for new user: {}", username);
             }
             
             // Add to known clients
             allKnownClients.add(username);
             
-            // Create client handler with raw streams (no BufferedReader)
-            ClientHandler handler = new ClientHandler(socket, username, out, rawIn, rawOut);
-            onlineClients.put(username, handler);
-            
+            // SUCCESS is the last plain line, in v2 everything after it is framed
+            acceptProtocol(out, framed);
             out.println("SUCCESS:Welcome " + username);
-            System.out.println("User " + username + " logged in successfully");
+            Log.info("User {} logged in successfully", username);
+            
+            // Create client handler sharing the protocol reader used for the handshake
+            ClientHandler handler = new ClientHandler(socket, username, out, dataIn, rawOut, false, framed);
+            onlineClients.put(username, handler);
             
             // Initialize unread messages list if needed
             unreadMessages.putIfAbsent(username, new CopyOnWriteArrayList<>());
             
             // Start handling client
-            handler.start();
+            socket.setSoTimeout(0);  // Sessions may stay idle
+            engine.startSession(handler);
             
+        } catch (SocketTimeoutException e) {
+            Log.info("Handshake from {} timed out", socket.getInetAddress());
+            closeQuietly(socket);
         } catch (IOException e) {
-            System.err.println("Error handling new client: " + e.getMessage());
+            Log.warn("Error handling new client: {}", e.getMessage());
+            closeQuietly(socket);
         }
     }
     
-    // Read a line from DataInputStream without buffering extra bytes
-    private static String readLine(DataInputStream in) throws IOException {
-        StringBuilder sb = new StringBuilder();
-        int c;
-        while ((c = in.read()) != -1) {
-            if (c == '\n') {
-                break;
-            }
-            if (c != '\r') {  // Skip \r
-                sb.append((char) c);
-            }
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already gone
+        }
+    }
+    
+    // Confirm protocol v2 to a client that asked for it, see FrameProtocol
+    private static void acceptProtocol(PrintWriter out, boolean framed) {
+        if (framed) {
+            out.println(FrameProtocol.HELLO);
         }
-        return sb.length() > 0 || c != -1 ? sb.toString() : null;
+    }
+    
+    // A short-lived secret that lets the user open extra connections for parallel transfers
+    public static String issueTransferToken(String username) {
+        byte[] bytes = new byte[16];
+        tokenRandom.nextBytes(bytes);
+        StringBuilder token = new StringBuilder();
+        for (byte b : bytes) {
+            token.append(String.format("%02x", b));
+        }
+        transferTokens.put(token.toString(), new TransferToken(username, System.currentTimeMillis() + TRANSFER_TOKEN_TTL));
+        return token.toString();
+    }
+    
+    private static boolean isValidTransferToken(String username, String token) {
+        TransferToken entry = token != null ? transferTokens.get(token) : null;
+        return entry != null && entry.username.equals(username) && entry.expiresAt > System.currentTimeMillis();
+    }
+    
+    private static void expireTransferTokens() {
+        long now = System.currentTimeMillis();
+        transferTokens.values().removeIf(entry -> entry.expiresAt <= now);
+    }
+    
+    public static ScheduledExecutorService getScheduler() {
+        return scheduler;
     }
     
     //FileID generation here !!
@@ -217,33 +350,50 @@ public class Server {
         return "REQ_" + (++requestIdCounter);
     }
     
-    public static boolean reserveBuffer(long size) {
-        synchronized (bufferLock) {
-            if (currentBufferSize + size <= MAX_BUFFER_SIZE) {
-                currentBufferSize += size;
-                return true;
-            }
-            return false;
-        }
+    // Waits for upload credits, returns those granted or 0 when the wait timed out
+    public static long reserveBuffer(String username, long size) throws InterruptedException {
+        return uploadBudget.acquire(username, size);
     }
     
-    public static void releaseBuffer(long size) {
-        synchronized (bufferLock) {
-            currentBufferSize -= size;
-            if (currentBufferSize < 0) currentBufferSize = 0;
-        }
+    // Give back the credits an upload holds, e.g. when it completes or its connection drops
+    public static void releaseBuffer(FileUploadSession session) {
+        uploadBudget.release(session.username, session.takeCredits());
+    }
+    
+    public static boolean isAdmin(String username) {
+        return username != null && !username.isEmpty() && ADMIN_USERS.contains(username);
     }
     
-    // Get a random chunk size between MIN_CHUNK_SIZE and MAX_CHUNK_SIZE
-    public static int getRandomChunkSize() {
-        Random random = new Random();
-        return MIN_CHUNK_SIZE + random.nextInt(MAX_CHUNK_SIZE - MIN_CHUNK_SIZE + 1);
+    public static UploadBudget getUploadBudget() {
+        return uploadBudget;
     }
     
+    // Chunk size policy for a new upload, see ChunkSizer
+    public static ChunkSizer newChunkSizer(long fileSize) {
+        return new ChunkSizer(fileSize, MIN_CHUNK_SIZE, MAX_CHUNK_SIZE, UPLOAD_WINDOW);
+    }
+    
+    // Largest upload chunk, the size of a handler's chunk buffer
     public static int getMaxChunkSize() {
         return MAX_CHUNK_SIZE;
     }
     
+    public static int getDownloadChunkSize() {
+        return DOWNLOAD_CHUNK_SIZE;
+    }
+    
+    public static int getUploadWindow() {
+        return UPLOAD_WINDOW;
+    }
+    
+    public static int getMaxStreams() {
+        return MAX_STREAMS;
+    }
+    
+    public static ExecutorService getStreamExecutor() {
+        return streamExecutor;
+    }
+    
     public static void addUploadSession(String fileId, FileUploadSession session) {
         uploadSessions.put(fileId, session);
     }
@@ -260,6 +410,29 @@ public class Server {
         return uploadSessions;
     }
     
+    public static long getUploadResumeTtl() {
+        return UPLOAD_RESUME_TTL;
+    }
+    
+    // Drop an unfinished upload and give its buffer reservation back
+    public static void discardUploadSession(FileUploadSession session) {
+        if (uploadSessions.remove(session.fileId, session)) {
+            session.deleteChunks();
+            releaseBuffer(session);
+            Log.info("Deleted incomplete upload: {} of {}", session.fileName, session.username);
+        }
+    }
+    
+    // Uploads whose client has been gone longer than the resume TTL
+    private static void expireUploadSessions() {
+        long now = System.currentTimeMillis();
+        for (FileUploadSession session : uploadSessions.values()) {
+            if (session.isDetached() && now - session.detachedAt > UPLOAD_RESUME_TTL) {
+                discardUploadSession(session);
+            }
+        }
+    }
+    
     public static Map<String, ClientHandler> getOnlineClients() {
         return onlineClients;
     }
@@ -272,29 +445,27 @@ public class Server {
         onlineClients.remove(username);
     }
     
-    public static void addFileRequest(String recipient, FileRequest request) {
-        fileRequests.computeIfAbsent(recipient, k -> new CopyOnWriteArrayList<>()).add(request);
+    public static FileRequest addFileRequest(String requestId, String requester, String description, String recipient) {
+        return fileRequests.create(requestId, requester, description, recipient);
     }
     
-    public static List<FileRequest> getFileRequests(String username) {
-        return fileRequests.getOrDefault(username, new ArrayList<>());
+    // Valid (known and not expired) request, or null
+    public static FileRequest getFileRequest(String requestId) {
+        return fileRequests.get(requestId);
     }
     
-    public static Map<String, List<FileRequest>> getAllFileRequests() {
+    public static FileRequestRegistry getFileRequestRegistry() {
         return fileRequests;
     }
     
     public static void addMessage(String username, String message) {
         unreadMessages.computeIfAbsent(username, k -> new CopyOnWriteArrayList<>()).add(message);
         
-        // Persist to file
-        File userDir = new File("server_data/" + username);
-        if (!userDir.exists()) userDir.mkdirs();
-        File msgFile = new File(userDir, "messages.txt");
-        try (java.io.FileWriter fw = new java.io.FileWriter(msgFile, true)) {
-            fw.write(message + "\n");
-        } catch (java.io.IOException e) {
-            e.printStackTrace();
+        // Persist to the user's message log
+        try {
+            MessageStore.append(username, message);
+        } catch (IOException e) {
+            Log.error("Failed to store message for " + username, e);
         }
     }
     
@@ -304,18 +475,12 @@ public class Server {
     
     public static List<String> getAllMessages(String username) {
         List<String> messages = new ArrayList<>();
-        File msgFile = new File("server_data/" + username + "/messages.txt");
-        if (msgFile.exists()) {
-            try (java.io.BufferedReader reader = new java.io.BufferedReader(new java.io.FileReader(msgFile))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    if (!line.trim().isEmpty()) {
-                        messages.add(line);
-                    }
-                }
-            } catch (java.io.IOException e) {
-                e.printStackTrace();
+        try {
+            for (StoredMessage message : MessageStore.readSince(username, 0)) {
+                messages.add(message.text);
             }
+        } catch (IOException e) {
+            Log.error("Failed to read messages for " + username, e);
         }
         return messages;
     }
@@ -326,47 +491,6 @@ public class Server {
             messages.clear();
         }
     }
-    
-    private static void loadCredentials() {
-        File credFile = new File(CREDENTIALS_FILE);
-        if (!credFile.exists()) {
-            System.out.println("No saved credentials found.");
-            return;
-        }
-        
-        try (BufferedReader reader = new BufferedReader(new FileReader(credFile))) {
-            String line;
-            int count = 0;
-            while ((line = reader.readLine()) != null) {
-                String[] parts = line.split("\\|", 3);
-                if (parts.length >= 2) {
-                    userPasswords.put(parts[0], parts[1]);
-                    allKnownClients.add(parts[0]);
-                    if (parts.length >= 3) {
-                        userSecurityAnswers.put(parts[0], parts[2]);
-                    }
-                    count++;
-                }
-            }
-            System.out.println("Loaded " + count + " saved credentials.");
-        } catch (IOException e) {
-            System.err.println("Error loading credentials: " + e.getMessage());
-        }
-    }
-    
-    private static synchronized void saveCredentials() {
-        File credFile = new File(CREDENTIALS_FILE);
-        credFile.getParentFile().mkdirs();
-        
-        try (FileWriter fw = new FileWriter(credFile, false)) {
-            for (Map.Entry<String, String> entry : userPasswords.entrySet()) {
-                String secAnswer = userSecurityAnswers.getOrDefault(entry.getKey(), "");
-                fw.write(entry.getKey() + "|" + entry.getValue() + "|" + secAnswer + "\n");
-            }
-        } catch (IOException e) {
-            System.err.println("Error saving credentials: " + e.getMessage());
-        }
-    }
 }
 
 class FileUploadSession {
@@ -379,11 +503,23 @@ class FileUploadSession {
     String requestId;
     String requesterUsername;  // Username of the person who requested this file
     String description;  // Description added by uploader
-    List<byte[]> chunks;
-    long receivedSize;
+    File spoolFile;  // Temporary file the chunks are appended to
+    FileChannel channel;
+    long receivedSize;  // Bytes from the start of the file that have all been written
+    TreeMap<Long, Long> pendingRanges = new TreeMap<>();  // Written ranges past the first gap, start -> end
+    volatile ClientHandler attachedTo;  // Connection currently sending chunks, null while detached
+    volatile long detachedAt;
+    private long credits;  // Upload budget held for the chunks in flight, see UploadBudget
+    String expectedHash;  // SHA-256 the client announced with UPLOAD_HASH, null if none
+    ChunkSizer sizer;  // Picks chunkSize as the upload runs
+    private final MessageDigest digest;  // SHA-256 of the first hashedSize bytes
+    private long hashedSize;
+    private String contentHash;  // digest() resets the digest, so the result is kept
+    private final CRC32C blockCrc = new CRC32C();  // CRC32C of the block hashedSize is in
+    private final int[] blockCrcs;  // Per-block CRC32C kept with the blob, see BlobStore.Checksums
     
     public FileUploadSession(String fileId, String username, String fileName, long totalSize, 
-                            int chunkSize, boolean isPublic, String requestId) {
+                            int chunkSize, boolean isPublic, String requestId) throws IOException {
         this.fileId = fileId;
         this.username = username;
         this.fileName = fileName;
@@ -391,30 +527,192 @@ class FileUploadSession {
         this.chunkSize = chunkSize;
         this.isPublic = isPublic;
         this.requestId = requestId;
-        this.chunks = new ArrayList<>();
         this.receivedSize = 0;
+        
+        // Spool inside the user's directory so the final rename stays on the same file system
+        this.spoolFile = new File("server_data/" + username + "/.upload_" + fileId + ".part");
+        RandomAccessFile raf = new RandomAccessFile(spoolFile, "rw");
+        try {
+            raf.setLength(totalSize);  // Preallocate
+        } catch (IOException e) {
+            raf.close();
+            spoolFile.delete();
+            throw e;
+        }
+        this.channel = raf.getChannel();
+        try {
+            this.digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        this.blockCrcs = new int[(int) ((totalSize + BlobStore.CHECKSUM_BLOCK - 1) / BlobStore.CHECKSUM_BLOCK)];
     }
     
-    public void addChunk(byte[] chunk) {
-        chunks.add(chunk);
-        receivedSize += chunk.length;
+    /*
+        Write a chunk (position to limit of the caller's buffer, which is left unchanged) at its
+        offset in the spool file. A pooled direct buffer goes to the file without a heap copy.
+    */
+    public synchronized void addChunk(ByteBuffer chunk, long offset) throws IOException {
+        int length = chunk.remaining();
+        if (offset < 0 || offset + length > totalSize) {
+            throw new IOException("Chunk outside file: " + offset + "+" + length);
+        }
+        ByteBuffer src = chunk.duplicate();
+        long position = offset;
+        while (src.hasRemaining()) {
+            position += channel.write(src, position);
+        }
+        markReceived(offset, offset + length);
+        updateDigest(chunk, offset);
     }
     
-    public boolean isComplete() {
-        return receivedSize == totalSize;
+    /*
+        Hash the contiguous prefix as it grows. An in-order chunk is hashed straight from the
+        caller's buffer; bytes that were behind a gap are read back from the spool file (still
+        in the page cache) into a pooled buffer once the gap is filled.
+    */
+    private void updateDigest(ByteBuffer chunk, long offset) throws IOException {
+        if (offset == hashedSize) {
+            hash(chunk.duplicate());
+        }
+        if (hashedSize < receivedSize) {
+            ByteBuffer catchUp = BufferPool.shared().acquire();
+            try {
+                while (hashedSize < receivedSize) {
+                    catchUp.clear().limit((int) Math.min(catchUp.capacity(), receivedSize - hashedSize));
+                    int read = channel.read(catchUp, hashedSize);
+                    if (read <= 0) throw new IOException("Spool file truncated");
+                    hash(catchUp.flip());
+                }
+            } finally {
+                BufferPool.shared().release(catchUp);
+            }
+        }
     }
     
-    public void saveToFile() throws IOException {
-        File file = new File("server_data/" + username + "/" + fileName);
-        try (FileOutputStream fos = new FileOutputStream(file)) {
-            for (byte[] chunk : chunks) {
-                fos.write(chunk);
+    // Feed the next bytes of the file to the SHA-256 and to the CRC32C of their blocks
+    private void hash(ByteBuffer bytes) {
+        while (bytes.hasRemaining()) {
+            int n = (int) Math.min(bytes.remaining(), BlobStore.CHECKSUM_BLOCK - hashedSize % BlobStore.CHECKSUM_BLOCK);
+            ByteBuffer block = bytes.slice().limit(n);
+            digest.update(block.duplicate());
+            blockCrc.update(block);
+            bytes.position(bytes.position() + n);
+            hashedSize += n;
+            if (hashedSize % BlobStore.CHECKSUM_BLOCK == 0 || hashedSize == totalSize) {
+                blockCrcs[(int) ((hashedSize - 1) / BlobStore.CHECKSUM_BLOCK)] = (int) blockCrc.getValue();
+                blockCrc.reset();
             }
         }
     }
     
+    // Hex SHA-256 of the whole file, only valid once isComplete()
+    public synchronized String contentHash() {
+        if (contentHash == null) {
+            StringBuilder hex = new StringBuilder(64);
+            for (byte b : digest.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            contentHash = hex.toString();
+        }
+        return contentHash;
+    }
+    
+    // Legacy chunks carry no offset and follow each other
+    public synchronized void addChunk(ByteBuffer chunk) throws IOException {
+        addChunk(chunk, receivedSize);
+    }
+    
+    // receivedSize is the contiguous prefix written so far; chunks beyond a gap wait in pendingRanges
+    private void markReceived(long start, long end) {
+        if (end <= receivedSize) return;  // Retransmission of data we already have
+        if (start > receivedSize) {
+            pendingRanges.merge(start, end, Math::max);
+            return;
+        }
+        receivedSize = end;
+        Map.Entry<Long, Long> next;
+        while ((next = pendingRanges.firstEntry()) != null && next.getKey() <= receivedSize) {
+            receivedSize = Math.max(receivedSize, next.getValue());
+            pendingRanges.remove(next.getKey());
+        }
+    }
+    
+    public synchronized boolean isComplete() {
+        return receivedSize == totalSize;
+    }
+    
+    public synchronized long committedSize() {
+        return receivedSize;
+    }
+    
+    // The connection went away; the spool file is kept until the resume TTL runs out.
+    // True if the session was attached to this handler
+    public boolean detach(ClientHandler handler) {
+        if (attachedTo == handler) {
+            detachedAt = System.currentTimeMillis();
+            attachedTo = null;
+            return true;
+        }
+        return false;
+    }
+    
+    public void attach(ClientHandler handler) {
+        attachedTo = handler;
+        detachedAt = 0;
+    }
+    
+    public synchronized void setCredits(long credits) {
+        this.credits = credits;
+    }
+    
+    public synchronized long credits() {
+        return credits;
+    }
+    
+    public synchronized boolean hasCredits() {
+        return credits > 0;
+    }
+    
+    // Hands the credits over for release, so they are given back only once
+    public synchronized long takeCredits() {
+        long taken = credits;
+        credits = 0;
+        return taken;
+    }
+    
+    public boolean isDetached() {
+        return detachedAt != 0;
+    }
+    
+    // Hand the spooled upload to the blob store, which links it in as server_data/<user>/<file>; true if it was a duplicate
+    public boolean saveToFile() throws IOException {
+        channel.close();
+        String hash = contentHash();
+        if (expectedHash != null && !expectedHash.equals(hash)) {
+            throw new IOException("Upload of " + fileName + " does not match its announced hash");
+        }
+        return BlobStore.commit(spoolFile.toPath(), new BlobStore.Checksums(hash, totalSize, BlobStore.CHECKSUM_BLOCK, blockCrcs), 
+                                username, fileName);
+    }
+    
     public void deleteChunks() {
-        chunks.clear();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+        spoolFile.delete();
+    }
+}
+
+class TransferToken {
+    final String username;
+    final long expiresAt;
+    
+    TransferToken(String username, long expiresAt) {
+        this.username = username;
+        this.expiresAt = expiresAt;
     }
 }
 
@@ -422,10 +720,22 @@ class FileRequest {
     String requestId;
     String requester;
     String description;
+    String recipient;  // Username, or ALL for a broadcast
+    long createdAt;
+    long expiresAt;
+    Set<String> fulfilledBy = ConcurrentHashMap.newKeySet();  // Users who uploaded a file for this request
     
-    public FileRequest(String requestId, String requester, String description) {
+    public FileRequest(String requestId, String requester, String description, String recipient, 
+                       long createdAt, long expiresAt) {
         this.requestId = requestId;
         this.requester = requester;
         this.description = description;
+        this.recipient = recipient;
+        this.createdAt = createdAt;
+        this.expiresAt = expiresAt;
+    }
+    
+    public boolean isExpired(long now) {
+        return now >= expiresAt;
     }
 }
@@ -0,0 +1,181 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+    Admission control for upload memory. An upload holds credits for the chunks it may have in
+    flight (its window), not for the whole file, and gives them back when it completes, fails
+    or loses its connection.
+
+    The uncontended case is a CAS on the free counter and one on the user's counter. When
+    credits run out, callers wait in a FIFO queue and every release hands credits to the
+    oldest waiter that fits, so a large upload is not starved by a stream of small ones. No
+    user may hold more than its share of the budget, so one user cannot lock everyone else
+    out; a waiter held back only by its own share lets the others behind it go first. A waiter
+    gives up after the admission timeout.
+
+    Settings (system properties):
+        upload.budget          bytes of chunk data in flight across all uploads (default 10 MB)
+        upload.userShare       percent of the budget one user may hold (default 50)
+        upload.admissionWait   milliseconds an upload waits for credits (default 30000)
+*/
+public class UploadBudget {
+    private final long capacity;
+    private final long userLimit;
+    private final long timeoutNanos;
+    private final AtomicLong free;
+    private final Map<String, AtomicLong> held = new ConcurrentHashMap<>();
+    
+    private final ReentrantLock queueLock = new ReentrantLock();
+    private final Condition granted = queueLock.newCondition();
+    private final ArrayDeque<Waiter> waiters = new ArrayDeque<>();
+    private volatile int waiting;  // waiters.size(), read without the lock on the fast path
+    
+    private static class Waiter {
+        final String username;
+        final long amount;
+        boolean done;
+        
+        Waiter(String username, long amount) {
+            this.username = username;
+            this.amount = amount;
+        }
+    }
+    
+    public UploadBudget(long capacity, int userSharePercent, long timeoutMillis) {
+        this.capacity = capacity;
+        this.userLimit = Math.max(1, capacity * Math.max(1, Math.min(100, userSharePercent)) / 100);
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        this.free = new AtomicLong(capacity);
+    }
+    
+    static UploadBudget fromSystemProperties(long defaultCapacity) {
+        return new UploadBudget(Long.getLong("upload.budget", defaultCapacity),
+                                Integer.getInteger("upload.userShare", 50),
+                                Long.getLong("upload.admissionWait", 30_000));
+    }
+    
+    /*
+        Blocks until credits are available; returns the credits granted, which is less than
+        asked when the request exceeds the user's share, or 0 after the admission timeout.
+    */
+    public long acquire(String username, long amount) throws InterruptedException {
+        long wanted = Math.max(1, Math.min(amount, userLimit));
+        
+        // Fast path: nobody is queued and the credits are there
+        if (waiting == 0 && tryTake(username, wanted)) {
+            return wanted;
+        }
+        
+        Waiter waiter = new Waiter(username, wanted);
+        queueLock.lock();
+        try {
+            waiters.add(waiter);
+            waiting = waiters.size();
+            grantWaiters();
+            
+            long remaining = timeoutNanos;
+            while (!waiter.done) {
+                if (remaining <= 0) {
+                    waiters.remove(waiter);
+                    waiting = waiters.size();
+                    grantWaiters();  // It may have been the head that held the others back
+                    return 0;
+                }
+                remaining = granted.awaitNanos(remaining);
+            }
+            return wanted;
+        } finally {
+            queueLock.unlock();
+        }
+    }
+    
+    /*
+        Credits without waiting, for an upload that wants a larger window; returns what was
+        granted (up to the user's share), 0 when the budget is short or others are queued.
+    */
+    public long tryAcquire(String username, long amount) {
+        long wanted = Math.min(amount, userLimit - heldBy(username));
+        if (wanted <= 0 || waiting > 0) return 0;
+        return tryTake(username, wanted) ? wanted : 0;
+    }
+    
+    public void release(String username, long amount) {
+        if (amount <= 0) return;
+        AtomicLong user = held.get(username);
+        if (user != null) {
+            user.addAndGet(-amount);
+        }
+        free.addAndGet(amount);
+        
+        if (waiting > 0) {
+            queueLock.lock();
+            try {
+                grantWaiters();
+            } finally {
+                queueLock.unlock();
+            }
+        }
+    }
+    
+    public long inUse() {
+        return capacity - free.get();
+    }
+    
+    public long capacity() {
+        return capacity;
+    }
+    
+    public int waiting() {
+        return waiting;
+    }
+    
+    // Serve the queue in order; called with queueLock held
+    private void grantWaiters() {
+        boolean any = false;
+        Iterator<Waiter> it = waiters.iterator();
+        while (it.hasNext()) {
+            Waiter waiter = it.next();
+            if (heldBy(waiter.username) + waiter.amount > userLimit) {
+                continue;  // Waits for its own uploads, must not block other users
+            }
+            if (!tryTake(waiter.username, waiter.amount)) {
+                break;  // FIFO: later waiters do not overtake one that needs more
+            }
+            waiter.done = true;
+            it.remove();
+            any = true;
+        }
+        waiting = waiters.size();
+        if (any) {
+            granted.signalAll();
+        }
+    }
+    
+    private long heldBy(String username) {
+        AtomicLong user = held.get(username);
+        return user != null ? user.get() : 0;
+    }
+    
+    // Take from the user's share and then from the free pool, both lock-free
+    private boolean tryTake(String username, long amount) {
+        AtomicLong user = held.computeIfAbsent(username, k -> new AtomicLong());
+        long current;
+        do {
+            current = user.get();
+            if (current + amount > userLimit) return false;
+        } while (!user.compareAndSet(current, current + amount));
+        
+        long available;
+        do {
+            available = free.get();
+            if (available < amount) {
+                user.addAndGet(-amount);
+                return false;
+            }
+        } while (!free.compareAndSet(available, available - amount));
+        return true;
+    }
+}
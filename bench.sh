@@ -0,0 +1,22 @@
+#!/bin/bash
+
+# Compile and run a benchmark from the bench/ directory
+# Usage: ./bench.sh <BenchmarkClass> [args...]
+# JVM options go in JAVA_OPTS, e.g. JAVA_OPTS=-Dbench.filter=metadata ./bench.sh ProtocolBench
+
+if [ -z "$1" ]; then
+    echo "Usage: ./bench.sh <BenchmarkClass> [args...]"
+    echo "Available benchmarks:"
+    for f in $(grep -l "static void main" bench/*.java); do
+        echo "  - $(basename "$f" .java)"
+    done
+    exit 1
+fi
+
+mkdir -p bench/out
+javac -d bench/out *.java bench/*.java || exit 1
+
+BENCH="$1"
+shift
+# Run inside bench/out, benchmarks that touch server_data/ must not use the real one
+cd bench/out && java $JAVA_OPTS -cp . "$BENCH" "$@"
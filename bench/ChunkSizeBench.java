@@ -0,0 +1,275 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32C;
+
+/*
+    Compares the old random chunk size (50-100 KB per upload) with ChunkSizer on a windowed
+    upload: sequenced UPLOAD_CHUNK lines with CRC32C, positional writes to a spool file and
+    CHUNK_ACKs, as in ClientHandler. The LAN case runs over loopback directly, the WAN cases
+    through a relay that delays every byte by half the RTT in each direction and caps the
+    bandwidth.
+    
+    Usage: java ChunkSizeBench [fileSizeMB] [iterations]
+*/
+public class ChunkSizeBench {
+    private static final int WINDOW = 8;  // Server upload.window
+    private static final int MIN_CHUNK = 16 * 1024;  // Server upload.minChunk
+    private static final int MAX_CHUNK = 1024 * 1024;  // Server upload.maxChunk
+    private static final Random random = new Random(42);
+    
+    public static void main(String[] args) throws Exception {
+        int sizeMb = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        byte[] data = new byte[sizeMb * 1024 * 1024];
+        random.nextBytes(data);
+        
+        System.out.println("File size: " + sizeMb + " MB, window: " + WINDOW + ", iterations: " + iterations);
+        
+        // Warm up both policies before measuring
+        upload(data, false, 0, 0);
+        upload(data, true, 0, 0);
+        
+        scenario("LAN (loopback)", data, iterations, 0, 0);
+        scenario("WAN 20 ms, 1 Gbit/s", data, iterations, 20, 1000);
+        scenario("WAN 100 ms, 200 Mbit/s", data, iterations, 100, 200);
+    }
+    
+    private static void scenario(String name, byte[] data, int iterations, int rttMillis, int mbits) throws Exception {
+        double randomRate = 0;
+        double adaptiveRate = 0;
+        for (int i = 0; i < iterations; i++) {
+            randomRate += upload(data, false, rttMillis, mbits) / iterations;
+            adaptiveRate += upload(data, true, rttMillis, mbits) / iterations;
+        }
+        System.out.println(String.format("%-24s random %7.1f MB/s   adaptive %7.1f MB/s   %.2fx",
+                                         name, randomRate, adaptiveRate, adaptiveRate / randomRate));
+    }
+    
+    // One upload, returns MB/s from the approval to the last ACK
+    private static double upload(byte[] data, boolean adaptive, int rttMillis, int mbits) throws Exception {
+        File spool = File.createTempFile("chunk-bench", ".part");
+        spool.deleteOnExit();
+        
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            Future<?> receiver = Executors.newSingleThreadExecutor(daemon()).submit(() -> {
+                try (Socket socket = server.accept()) {
+                    socket.setTcpNoDelay(true);
+                    receive(socket, data.length, adaptive, spool);
+                }
+                return null;
+            });
+            
+            int port = server.getLocalPort();
+            LinkEmulator link = null;
+            if (rttMillis > 0) {
+                link = new LinkEmulator(port, rttMillis * 1_000_000L / 2, mbits * 1_000_000L / 8);
+                port = link.port();
+            }
+            
+            long start = System.nanoTime();
+            try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+                socket.setTcpNoDelay(true);
+                send(socket, data);
+            }
+            long elapsed = System.nanoTime() - start;
+            receiver.get();
+            if (link != null) {
+                link.close();
+            }
+            return (data.length / (1024.0 * 1024.0)) / (elapsed / 1e9);
+        } finally {
+            spool.delete();
+        }
+    }
+    
+    // Server side, the parts of handleUploadRequest and handleUploadChunk that cost time per chunk
+    private static void receive(Socket socket, long fileSize, boolean adaptive, File spool) throws IOException {
+        ProtocolReader in = new ProtocolReader(socket.getInputStream());
+        OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+        ChunkSizer sizer = new ChunkSizer(fileSize, MIN_CHUNK, MAX_CHUNK, WINDOW);
+        int chunkSize = adaptive ? sizer.chunkSize() : 50 * 1024 + random.nextInt(50 * 1024 + 1);
+        byte[] buffer = new byte[MAX_CHUNK];
+        CRC32C crc = new CRC32C();
+        
+        try (FileChannel channel = FileChannel.open(spool.toPath(), StandardOpenOption.WRITE)) {
+            writeLine(out, "UPLOAD_APPROVED:bench|" + chunkSize + "|" + WINDOW);
+            sizer.started(System.nanoTime());
+            
+            long received = 0;
+            while (received < fileSize) {
+                String line = in.readLine();
+                long arrived = System.nanoTime();
+                String[] parts = line.substring(13).split("\\|");
+                int length = Integer.parseInt(parts[1]);
+                long offset = Long.parseLong(parts[3]);
+                
+                in.readFully(buffer, 0, length);
+                crc.reset();
+                crc.update(buffer, 0, length);
+                if (crc.getValue() != Long.parseLong(parts[4], 16)) {
+                    throw new IOException("Checksum mismatch at " + offset);
+                }
+                ByteBuffer src = ByteBuffer.wrap(buffer, 0, length);
+                while (src.hasRemaining()) {
+                    channel.write(src, offset + src.position());
+                }
+                received += length;
+                
+                String resize = "";
+                if (adaptive) {
+                    sizer.chunkArrived(arrived, length);
+                    int next = sizer.adjust(0);
+                    if (next != 0) {
+                        resize = "|" + next + "|" + WINDOW;
+                    }
+                }
+                writeLine(out, "CHUNK_ACK:" + parts[2] + "|" + received + resize);
+                sizer.acked(System.nanoTime());
+            }
+        }
+    }
+    
+    // Client side, Client.sendChunks without resends
+    private static void send(Socket socket, byte[] data) throws IOException {
+        ProtocolReader in = new ProtocolReader(socket.getInputStream());
+        OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+        CRC32C crc = new CRC32C();
+        
+        String[] approved = in.readLine().substring(16).split("\\|");
+        int chunkSize = Integer.parseInt(approved[1]);
+        int window = Integer.parseInt(approved[2]);
+        long nextOffset = 0;
+        int nextSeq = 0;
+        int inFlight = 0;
+        long acked = 0;
+        
+        while (acked < data.length) {
+            while (inFlight < window && nextOffset < data.length) {
+                int length = (int) Math.min(chunkSize, data.length - nextOffset);
+                crc.reset();
+                crc.update(data, (int) nextOffset, length);
+                out.write(("UPLOAD_CHUNK:bench|" + length + "|" + nextSeq++ + "|" + nextOffset + "|"
+                           + Long.toHexString(crc.getValue()) + "\n").getBytes(StandardCharsets.UTF_8));
+                out.write(data, (int) nextOffset, length);
+                out.flush();
+                nextOffset += length;
+                inFlight++;
+            }
+            
+            String[] ack = in.readLine().substring(10).split("\\|");
+            inFlight--;
+            acked = Long.parseLong(ack[1]);
+            if (ack.length >= 4) {
+                chunkSize = Integer.parseInt(ack[2]);
+                window = Integer.parseInt(ack[3]);
+            }
+        }
+    }
+    
+    private static void writeLine(OutputStream out, String line) throws IOException {
+        out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+    
+    private static ThreadFactory daemon() {
+        return r -> {
+            Thread thread = new Thread(r);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+    
+    /*
+        TCP relay for one connection that holds every read for the one-way delay and paces
+        writes to the bandwidth, so the endpoints see a long, narrow link.
+    */
+    private static class LinkEmulator implements Closeable {
+        private final ServerSocket listener;
+        private final List<Socket> sockets = new CopyOnWriteArrayList<>();
+        
+        LinkEmulator(int targetPort, long delayNanos, long bytesPerSecond) throws IOException {
+            listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+            Thread acceptor = new Thread(() -> {
+                try {
+                    Socket client = listener.accept();
+                    Socket target = new Socket(InetAddress.getLoopbackAddress(), targetPort);
+                    for (Socket socket : new Socket[] {client, target}) {
+                        socket.setTcpNoDelay(true);
+                        sockets.add(socket);
+                    }
+                    relay(client, target, delayNanos, bytesPerSecond);
+                    relay(target, client, delayNanos, bytesPerSecond);
+                } catch (IOException e) {
+                    // Closed before a connection came in
+                }
+            });
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+        
+        int port() {
+            return listener.getLocalPort();
+        }
+        
+        // One direction: a reader stamps each read with its delivery time, a writer sends it then
+        private void relay(Socket from, Socket to, long delayNanos, long bytesPerSecond) {
+            BlockingQueue<Object[]> inTransit = new LinkedBlockingQueue<>();
+            Thread reader = new Thread(() -> {
+                byte[] buffer = new byte[16 * 1024];
+                try {
+                    InputStream in = from.getInputStream();
+                    int n;
+                    while ((n = in.read(buffer)) != -1) {
+                        inTransit.put(new Object[] {System.nanoTime() + delayNanos, Arrays.copyOf(buffer, n)});
+                    }
+                } catch (IOException | InterruptedException e) {
+                    // Connection closed
+                }
+                inTransit.add(new Object[] {0L, new byte[0]});
+            });
+            Thread writer = new Thread(() -> {
+                long linkFreeAt = 0;
+                try {
+                    OutputStream out = to.getOutputStream();
+                    while (true) {
+                        Object[] packet = inTransit.take();
+                        byte[] bytes = (byte[]) packet[1];
+                        if (bytes.length == 0) break;
+                        
+                        // Leaves the link after its delay and after the bytes ahead of it
+                        long due = Math.max((Long) packet[0], linkFreeAt);
+                        linkFreeAt = due + bytes.length * 1_000_000_000L / bytesPerSecond;
+                        long wait;
+                        while ((wait = due - System.nanoTime()) > 0) {
+                            LockSupport.parkNanos(wait);
+                        }
+                        out.write(bytes);
+                        out.flush();
+                    }
+                    to.shutdownOutput();
+                } catch (IOException | InterruptedException e) {
+                    // Connection closed
+                }
+            });
+            reader.setDaemon(true);
+            writer.setDaemon(true);
+            reader.start();
+            writer.start();
+        }
+        
+        @Override
+        public void close() throws IOException {
+            listener.close();
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,136 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.*;
+
+/*
+    Compares the original handleDownloadRequest copy loop with the FileChannel.transferTo
+    path over a loopback socket. Both use the same writeInt(len) + payload framing.
+    
+    Usage: java DownloadBench [fileSizeMB] [iterations]
+*/
+public class DownloadBench {
+    private static final int CHUNK_SIZE = 100 * 1024;  // Server MAX_CHUNK_SIZE
+    
+    public static void main(String[] args) throws Exception {
+        int sizeMb = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        
+        File file = File.createTempFile("download-bench", ".bin");
+        file.deleteOnExit();
+        writeRandomFile(file, sizeMb * 1024L * 1024L);
+        
+        System.out.println("File size: " + sizeMb + " MB, iterations: " + iterations);
+        
+        // Warm up both paths before measuring
+        run("copy", file, 2, false);
+        run("transferTo", file, 2, false);
+        
+        double copy = run("copy", file, iterations, true);
+        double zeroCopy = run("transferTo", file, iterations, true);
+        System.out.println(String.format("Speedup: %.2fx", zeroCopy / copy));
+    }
+    
+    private static double run(String mode, File file, int iterations, boolean report) throws Exception {
+        double best = 0;
+        for (int i = 0; i < iterations; i++) {
+            double mbPerSec = transferOnce(mode, file);
+            best = Math.max(best, mbPerSec);
+        }
+        if (report) {
+            System.out.println(String.format("%-12s best %.1f MB/s", mode, best));
+        }
+        return best;
+    }
+    
+    private static double transferOnce(String mode, File file) throws Exception {
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            int port = ((InetSocketAddress) server.getLocalAddress()).getPort();
+            
+            Thread sender = new Thread(() -> {
+                try (SocketChannel channel = server.accept()) {
+                    if (mode.equals("copy")) {
+                        sendCopy(channel.socket(), file);
+                    } else {
+                        sendZeroCopy(channel, file);
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+            
+            long start = System.nanoTime();
+            sender.start();
+            long received;
+            try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+                received = receive(new DataInputStream(new BufferedInputStream(socket.getInputStream())), file.length());
+            }
+            sender.join();
+            long elapsed = System.nanoTime() - start;
+            
+            if (received != file.length()) {
+                throw new IllegalStateException("Received " + received + " of " + file.length() + " bytes");
+            }
+            return (received / (1024.0 * 1024.0)) / (elapsed / 1e9);
+        }
+    }
+    
+    // Original loop: heap buffer, writeInt + write + flush per chunk
+    private static void sendCopy(Socket socket, File file) throws IOException {
+        DataOutputStream dataOut = new DataOutputStream(socket.getOutputStream());
+        try (FileInputStream fis = new FileInputStream(file)) {
+            byte[] buffer = new byte[CHUNK_SIZE];
+            int bytesRead;
+            while ((bytesRead = fis.read(buffer)) != -1) {
+                dataOut.writeInt(bytesRead);
+                dataOut.write(buffer, 0, bytesRead);
+                dataOut.flush();
+            }
+        }
+    }
+    
+    // Same framing, payload moved with transferTo
+    private static void sendZeroCopy(SocketChannel socketChannel, File file) throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(4);
+            long fileSize = fileChannel.size();
+            long position = 0;
+            while (position < fileSize) {
+                int len = (int) Math.min(CHUNK_SIZE, fileSize - position);
+                header.clear();
+                header.putInt(len).flip();
+                while (header.hasRemaining()) {
+                    socketChannel.write(header);
+                }
+                long sent = 0;
+                while (sent < len) {
+                    sent += fileChannel.transferTo(position + sent, len - sent, socketChannel);
+                }
+                position += len;
+            }
+        }
+    }
+    
+    private static long receive(DataInputStream in, long fileSize) throws IOException {
+        byte[] buffer = new byte[CHUNK_SIZE];
+        long total = 0;
+        while (total < fileSize) {
+            int len = in.readInt();
+            in.readFully(buffer, 0, len);
+            total += len;
+        }
+        return total;
+    }
+    
+    private static void writeRandomFile(File file, long size) throws IOException {
+        byte[] block = new byte[1024 * 1024];
+        new java.util.Random(42).nextBytes(block);
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            for (long written = 0; written < size; written += block.length) {
+                fos.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        }
+    }
+}
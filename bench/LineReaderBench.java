@@ -0,0 +1,110 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/*
+    Compares the old byte-at-a-time readLine over a DataInputStream with ProtocolReader
+    on a command-heavy stream. Every read() on the underlying stream is counted, since on
+    a socket each one is a syscall.
+    
+    Usage: java LineReaderBench [commands] [iterations]
+*/
+public class LineReaderBench {
+    
+    public static void main(String[] args) throws IOException {
+        int commands = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        byte[] input = buildCommands(commands);
+        
+        System.out.println("Commands: " + commands + ", bytes: " + input.length);
+        for (int i = 0; i < iterations; i++) {
+            boolean report = i == iterations - 1;
+            runOld(input, commands, report);
+            runProtocolReader(input, commands, report);
+        }
+    }
+    
+    private static void runOld(byte[] input, int commands, boolean report) throws IOException {
+        CountingInputStream counter = new CountingInputStream(new ByteArrayInputStream(input));
+        DataInputStream in = new DataInputStream(counter);
+        long start = System.nanoTime();
+        int lines = 0;
+        while (oldReadLine(in) != null) {
+            lines++;
+        }
+        report("byte-at-a-time", start, lines, counter.reads, commands, report);
+    }
+    
+    private static void runProtocolReader(byte[] input, int commands, boolean report) throws IOException {
+        CountingInputStream counter = new CountingInputStream(new ByteArrayInputStream(input));
+        ProtocolReader in = new ProtocolReader(counter);
+        long start = System.nanoTime();
+        int lines = 0;
+        while (in.readLine() != null) {
+            lines++;
+        }
+        report("ProtocolReader", start, lines, counter.reads, commands, report);
+    }
+    
+    private static void report(String name, long start, int lines, long reads, int commands, boolean report) {
+        long elapsed = System.nanoTime() - start;
+        if (lines != commands) {
+            throw new IllegalStateException(name + " read " + lines + " lines");
+        }
+        if (report) {
+            System.out.println(String.format("%-16s %8.1f ns/command %8.3f reads/command", 
+                name, (double) elapsed / commands, (double) reads / commands));
+        }
+    }
+    
+    // The readLine that Server, ClientHandler and Client used before ProtocolReader
+    private static String oldReadLine(DataInputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                break;
+            }
+            if (c != '\r') {
+                sb.append((char) c);
+            }
+        }
+        return sb.length() > 0 || c != -1 ? sb.toString() : null;
+    }
+    
+    private static byte[] buildCommands(int count) {
+        String[] samples = {
+            "LIST_CLIENTS:",
+            "LIST_OWN_FILES:",
+            "LIST_PUBLIC_FILES:alice",
+            "DOWNLOAD_REQUEST:alice|quarterly-report-final.pdf",
+            "UPLOAD_REQUEST:holiday photos.zip|52428800|true||Photos from the trip",
+            "VIEW_MESSAGES:",
+            "FILE_REQUEST:Need the lecture slides for week 7|ALL",
+        };
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            sb.append(samples[i % samples.length]).append('\n');
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+    
+    private static class CountingInputStream extends FilterInputStream {
+        long reads = 0;
+        
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+        
+        @Override
+        public int read() throws IOException {
+            reads++;
+            return super.read();
+        }
+        
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            reads++;
+            return super.read(b, off, len);
+        }
+    }
+}
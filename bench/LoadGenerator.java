@@ -0,0 +1,575 @@
+import java.io.*;
+import java.lang.reflect.Method;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.zip.CRC32C;
+
+/*
+    Headless load generator: many simulated users, each on its own connection (a virtual
+    thread where the JDK has them), speaking protocol v2 like Client does. Every user logs in
+    (signing up the first time), then runs a random mix of operations with a think time
+    between them and logs out after a number of operations to log in again:
+    
+        upload      UPLOAD_REQUEST, windowed UPLOAD_CHUNKs with CRC32C, UPLOAD_COMPLETE with the
+                    SHA-256; sizes from a weighted distribution, half of the files public
+        download    DOWNLOAD_REQUEST of a public file some user uploaded (skipped until there is one)
+        request     FILE_REQUEST broadcast to ALL, which pushes a notification to every user
+        messages    VIEW_MESSAGES
+        list        LIST_CLIENTS
+    
+    Upload content is a window into a shared random pattern at a random offset, so files
+    differ (no deduplication) without holding a copy per user. Downloaded bytes are
+    skipped, not stored.
+    
+    At the end it prints per operation: count, errors, ops/s and p50/p99/p999 latency; the
+    latencies are kept in a log-linear histogram, exact to about 6%.
+    
+    Usage: java LoadGenerator [--host=localhost] [--port=8000] [--users=1000] [--duration=60]
+                              [--rampup=10] [--think=100] [--sessionOps=50] [--prefix=load]
+                              [--sizes=16k:60,256k:30,4m:10]
+                              [--mix=upload:20,download:30,request:2,messages:28,list:20]
+    duration and rampup are in seconds, think in milliseconds.
+*/
+public class LoadGenerator {
+    private static final String[] OPERATIONS = {"login", "signup", "upload", "download", "request", "messages", "list"};
+    private static final byte[] PATTERN = new byte[4 * 1024 * 1024];
+    private static final String PASSWORD = "load-password";
+    
+    private final String host;
+    private final int port;
+    private final int users;
+    private final long durationNanos;
+    private final long rampupNanos;
+    private final long thinkMillis;
+    private final int sessionOps;
+    private final String prefix;
+    private final long[] sizes;
+    private final int[] sizeWeights;
+    private final String[] mix;
+    private final int[] mixWeights;
+    
+    private final Map<String, Latencies> latencies = new LinkedHashMap<>();
+    private final Map<String, LongAdder> errors = new LinkedHashMap<>();
+    private final LongAdder uploadedBytes = new LongAdder();
+    private final LongAdder downloadedBytes = new LongAdder();
+    private final LongAdder pushes = new LongAdder();
+    private final AtomicInteger online = new AtomicInteger();
+    private final AtomicReferenceArray<String> publicFiles = new AtomicReferenceArray<>(1024);  // owner|fileName
+    private final AtomicInteger publicFileCount = new AtomicInteger();
+    private final Map<String, String> firstError = new ConcurrentHashMap<>();
+    private volatile long deadline;
+    
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                System.out.println("Unknown argument: " + arg + " (options are --name=value)");
+                return;
+            }
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+        new Random(7).nextBytes(PATTERN);
+        new LoadGenerator(options).run();
+    }
+    
+    LoadGenerator(Map<String, String> options) {
+        host = options.getOrDefault("host", "localhost");
+        port = Integer.parseInt(options.getOrDefault("port", "8000"));
+        users = Integer.parseInt(options.getOrDefault("users", "1000"));
+        durationNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(options.getOrDefault("duration", "60")));
+        rampupNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(options.getOrDefault("rampup", "10")));
+        thinkMillis = Long.parseLong(options.getOrDefault("think", "100"));
+        sessionOps = Integer.parseInt(options.getOrDefault("sessionOps", "50"));
+        prefix = options.getOrDefault("prefix", "load");
+        
+        String[] sizeSpec = options.getOrDefault("sizes", "16k:60,256k:30,4m:10").split(",");
+        sizes = new long[sizeSpec.length];
+        sizeWeights = new int[sizeSpec.length];
+        for (int i = 0; i < sizeSpec.length; i++) {
+            String[] entry = sizeSpec[i].split(":");
+            sizes[i] = parseSize(entry[0]);
+            sizeWeights[i] = entry.length > 1 ? Integer.parseInt(entry[1]) : 1;
+        }
+        
+        String[] mixSpec = options.getOrDefault("mix", "upload:20,download:30,request:2,messages:28,list:20").split(",");
+        mix = new String[mixSpec.length];
+        mixWeights = new int[mixSpec.length];
+        for (int i = 0; i < mixSpec.length; i++) {
+            String[] entry = mixSpec[i].split(":");
+            if (!Arrays.asList(OPERATIONS).contains(entry[0])) {
+                throw new IllegalArgumentException("Unknown operation in --mix: " + entry[0]);
+            }
+            mix[i] = entry[0];
+            mixWeights[i] = entry.length > 1 ? Integer.parseInt(entry[1]) : 1;
+        }
+        
+        for (String operation : OPERATIONS) {
+            latencies.put(operation, new Latencies());
+            errors.put(operation, new LongAdder());
+        }
+    }
+    
+    void run() throws InterruptedException {
+        ExecutorService executor = newExecutor();
+        long start = System.nanoTime();
+        deadline = start + rampupNanos + durationNanos;
+        System.out.println(String.format("%d users against %s:%d, %d s ramp-up, %d s at full load",
+                                         users, host, port, rampupNanos / 1_000_000_000, durationNanos / 1_000_000_000));
+        
+        for (int i = 0; i < users; i++) {
+            long startAt = start + rampupNanos * i / Math.max(1, users);
+            String username = prefix + i;
+            executor.execute(() -> user(username, startAt));
+        }
+        executor.shutdown();
+        
+        long lastOps = 0;
+        long lastReport = start;
+        while (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+            long now = System.nanoTime();
+            long ops = totalOps();
+            System.out.println(String.format("[%4d s] %6d online, %8.1f ops/s, %8.1f MB/s up, %8.1f MB/s down",
+                                             (now - start) / 1_000_000_000, online.get(),
+                                             (ops - lastOps) * 1e9 / (now - lastReport),
+                                             uploadedBytes.sum() / 1048576.0 / ((now - start) / 1e9),
+                                             downloadedBytes.sum() / 1048576.0 / ((now - start) / 1e9)));
+            lastOps = ops;
+            lastReport = now;
+            if (now > deadline + TimeUnit.SECONDS.toNanos(60)) {
+                System.out.println("Users still busy a minute after the deadline, reporting anyway");
+                break;
+            }
+        }
+        report((System.nanoTime() - start) / 1e9);
+    }
+    
+    // One simulated user until the deadline; a failed session is counted and started over
+    private void user(String username, long startAt) {
+        Random random = new Random(username.hashCode());
+        sleepUntil(startAt);
+        int uploads = 0;
+        while (System.nanoTime() < deadline) {
+            try (Session session = login(username)) {
+                online.incrementAndGet();
+                try {
+                    for (int i = 0; i < sessionOps && System.nanoTime() < deadline; i++) {
+                        String operation = pick(mix, mixWeights, random);
+                        long started = System.nanoTime();
+                        boolean done = true;
+                        try {
+                            switch (operation) {
+                                case "upload":
+                                    upload(session, username + "-" + uploads++ + ".bin", pick(sizes, sizeWeights, random), random);
+                                    break;
+                                case "download":
+                                    done = download(session, random);
+                                    break;
+                                case "request":
+                                    session.command("FILE_REQUEST:Load test request from " + username + "|ALL", "REQUEST_SENT:");
+                                    break;
+                                case "messages":
+                                    session.command("VIEW_MESSAGES:", "MESSAGES:");
+                                    break;
+                                default:
+                                    session.command("LIST_CLIENTS:", "CLIENT_LIST:");
+                            }
+                            if (done) {
+                                latencies.get(operation).record(System.nanoTime() - started);
+                            }
+                        } catch (ProtocolException e) {
+                            failed(operation, e);  // The server refused, the connection is still in sync
+                        }
+                        think(random);
+                    }
+                    session.command("LOGOUT:", "SUCCESS");
+                } finally {
+                    online.decrementAndGet();
+                }
+            } catch (IOException e) {
+                failed("login", e);
+                think(random);
+            }
+        }
+    }
+    
+    // LOGIN, or SIGNUP for a user that does not exist yet
+    private Session login(String username) throws IOException {
+        long started = System.nanoTime();
+        Session session = new Session(host, port);
+        try {
+            String reply = session.handshake("LOGIN", username, null);
+            if (reply.startsWith("ERROR:Account not found")) {
+                session.close();
+                session = new Session(host, port);
+                reply = session.handshake("SIGNUP", username, "load");
+                if (!reply.startsWith("SUCCESS")) throw new ProtocolException(reply);
+                latencies.get("signup").record(System.nanoTime() - started);
+                return session;
+            }
+            if (!reply.startsWith("SUCCESS")) throw new ProtocolException(reply);
+            latencies.get("login").record(System.nanoTime() - started);
+            return session;
+        } catch (IOException e) {
+            session.close();
+            throw e;
+        }
+    }
+    
+    private void upload(Session session, String fileName, long size, Random random) throws IOException {
+        boolean isPublic = random.nextBoolean();
+        int patternOffset = random.nextInt(PATTERN.length);
+        String reply = session.command("UPLOAD_REQUEST:" + fileName + "|" + size + "|" + isPublic + "||Load test", "UPLOAD_APPROVED:");
+        String[] approved = reply.substring(16).split("\\|");
+        String fileId = approved[0];
+        int chunkSize = Integer.parseInt(approved[1]);
+        int window = approved.length > 2 ? Math.max(1, Integer.parseInt(approved[2])) : 1;
+        
+        MessageDigest digest = newSha256();
+        CRC32C crc = new CRC32C();
+        Set<Integer> inFlight = new HashSet<>();
+        long offset = 0;
+        int seq = 0;
+        while (offset < size || !inFlight.isEmpty()) {
+            while (inFlight.size() < window && offset < size) {
+                int length = (int) Math.min(chunkSize, size - offset);
+                crc.reset();
+                forEachPiece(patternOffset, offset, length, (off, len) -> crc.update(PATTERN, off, len));
+                int id = session.send(FrameProtocol.TEXT, ("UPLOAD_CHUNK:" + fileId + "|" + length + "|" + seq + "|" + offset + "|"
+                                                           + Long.toHexString(crc.getValue())).getBytes(StandardCharsets.UTF_8));
+                session.sendData(id, patternOffset, offset, length, digest);
+                inFlight.add(seq++);
+                offset += length;
+                uploadedBytes.add(length);
+            }
+            
+            String ack = session.nextReply();
+            if (ack.startsWith("CHUNK_ACK:")) {
+                String[] fields = ack.substring(10).split("\\|");
+                inFlight.remove(Integer.parseInt(fields[0]));
+                if (fields.length >= 4) {
+                    chunkSize = Integer.parseInt(fields[2]);
+                    window = Math.max(1, Integer.parseInt(fields[3]));
+                }
+            } else {
+                throw new IOException("Upload of " + fileName + " failed: " + ack);  // Chunks may still be in flight
+            }
+        }
+        
+        session.command("UPLOAD_COMPLETE:" + fileId + "|" + hex(digest.digest()), "UPLOAD_SUCCESS");
+        if (isPublic) {
+            int slot = publicFileCount.getAndIncrement() % publicFiles.length();
+            publicFiles.set(slot, session.username + "|" + fileName);
+        }
+    }
+    
+    // False when no public file has been uploaded yet
+    private boolean download(Session session, Random random) throws IOException {
+        int count = Math.min(publicFileCount.get(), publicFiles.length());
+        String source = count > 0 ? publicFiles.get(random.nextInt(count)) : null;
+        if (source == null) return false;
+        
+        int id = session.send(FrameProtocol.TEXT, ("DOWNLOAD_REQUEST:" + source).getBytes(StandardCharsets.UTF_8));
+        String reply = session.replyTo(id);
+        if (!reply.startsWith("DOWNLOAD_START:")) {
+            throw new ProtocolException(reply);
+        }
+        downloadedBytes.add(session.drainStream(id));
+        return true;
+    }
+    
+    private void failed(String operation, Exception e) {
+        errors.get(operation).increment();
+        firstError.putIfAbsent(operation, String.valueOf(e.getMessage()));
+    }
+    
+    private void think(Random random) {
+        if (thinkMillis > 0) {
+            sleepUntil(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(thinkMillis / 2 + (long) (random.nextDouble() * thinkMillis)));
+        }
+    }
+    
+    private long totalOps() {
+        long ops = 0;
+        for (Latencies l : latencies.values()) {
+            ops += l.count();
+        }
+        return ops;
+    }
+    
+    private void report(double seconds) {
+        System.out.println();
+        System.out.println(String.format("%-10s %10s %8s %10s %10s %10s %10s", "operation", "count", "errors", "ops/s", "p50 ms", "p99 ms", "p999 ms"));
+        for (String operation : OPERATIONS) {
+            Latencies l = latencies.get(operation);
+            long errorCount = errors.get(operation).sum();
+            if (l.count() == 0 && errorCount == 0) continue;
+            System.out.println(String.format("%-10s %10d %8d %10.1f %10.2f %10.2f %10.2f", operation, l.count(), errorCount,
+                                             l.count() / seconds, l.percentile(0.5) / 1e3, l.percentile(0.99) / 1e3,
+                                             l.percentile(0.999) / 1e3));
+        }
+        System.out.println(String.format("Uploaded %.1f MB (%.1f MB/s), downloaded %.1f MB (%.1f MB/s), %d notifications received",
+                                         uploadedBytes.sum() / 1048576.0, uploadedBytes.sum() / 1048576.0 / seconds,
+                                         downloadedBytes.sum() / 1048576.0, downloadedBytes.sum() / 1048576.0 / seconds,
+                                         pushes.sum()));
+        for (Map.Entry<String, String> error : firstError.entrySet()) {
+            System.out.println("First " + error.getKey() + " error: " + error.getValue());
+        }
+    }
+    
+    // Calls action(patternOffset, length) for the pieces of the pattern that make up file bytes [offset, offset + length)
+    private static void forEachPiece(int patternOffset, long offset, int length, PieceAction action) throws IOException {
+        int position = (int) ((patternOffset + offset) % PATTERN.length);
+        while (length > 0) {
+            int n = Math.min(length, PATTERN.length - position);
+            action.accept(position, n);
+            length -= n;
+            position = 0;
+        }
+    }
+    
+    private interface PieceAction {
+        void accept(int offset, int length) throws IOException;
+    }
+    
+    private static <T> T pick(T[] values, int[] weights, Random random) {
+        return values[pickIndex(weights, random)];
+    }
+    
+    private static long pick(long[] values, int[] weights, Random random) {
+        return values[pickIndex(weights, random)];
+    }
+    
+    private static int pickIndex(int[] weights, Random random) {
+        int total = Arrays.stream(weights).sum();
+        int r = random.nextInt(Math.max(1, total));
+        for (int i = 0; i < weights.length; i++) {
+            r -= weights[i];
+            if (r < 0) return i;
+        }
+        return weights.length - 1;
+    }
+    
+    private static long parseSize(String size) {
+        String s = size.trim().toLowerCase();
+        long unit = s.endsWith("k") ? 1024 : s.endsWith("m") ? 1024 * 1024 : s.endsWith("g") ? 1024L * 1024 * 1024 : 1;
+        return Long.parseLong(unit == 1 ? s : s.substring(0, s.length() - 1)) * unit;
+    }
+    
+    private static void sleepUntil(long nanoTime) {
+        long wait;
+        while ((wait = nanoTime - System.nanoTime()) > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+    
+    // Virtual thread per user where the JDK has them (21+), otherwise a platform thread each
+    private static ExecutorService newExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.out.println("Virtual threads not available on this JDK, using a platform thread per user");
+            return Executors.newCachedThreadPool();
+        }
+    }
+    
+    private static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    private static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+    
+    // The server answered with an error; the connection can go on
+    private static class ProtocolException extends IOException {
+        private static final long serialVersionUID = 1L;
+        
+        ProtocolException(String message) {
+            super(message);
+        }
+    }
+    
+    /*
+        One v2 connection. Commands are sent with increasing requestIds and the user waits for
+        each reply, so frames for other requestIds can only be late parts of a failed command;
+        they are skipped, as are PUSH frames (counted).
+    */
+    private class Session implements Closeable {
+        private final Socket socket;
+        private final ProtocolReader in;
+        private final DataOutputStream out;
+        private final FrameProtocol.Header frame = new FrameProtocol.Header();
+        private int nextId = 0;
+        String username;
+        
+        Session(String host, int port) throws IOException {
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            in = new ProtocolReader(socket.getInputStream());
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+        }
+        
+        // Plain-line login; returns the SUCCESS or ERROR line
+        String handshake(String mode, String username, String securityAnswer) throws IOException {
+            this.username = username;
+            StringBuilder lines = new StringBuilder(FrameProtocol.HELLO).append('\n').append(mode).append('\n')
+                    .append(username).append('\n').append(PASSWORD).append('\n');
+            if (securityAnswer != null) {
+                lines.append(securityAnswer).append('\n');
+            }
+            out.write(lines.toString().getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith("SUCCESS") || line.startsWith("ERROR")) return line;
+            }
+            throw new EOFException("Connection closed during login");
+        }
+        
+        // Send a command and check that its reply starts with expected
+        String command(String command, String expected) throws IOException {
+            String reply = replyTo(send(FrameProtocol.TEXT, command.getBytes(StandardCharsets.UTF_8)));
+            if (!reply.startsWith(expected)) {
+                throw new ProtocolException(reply);
+            }
+            return reply;
+        }
+        
+        int send(byte type, byte[] payload) throws IOException {
+            int id = ++nextId;
+            out.writeByte(type);
+            out.writeInt(id);
+            out.writeInt(payload.length);
+            out.write(payload);
+            out.flush();
+            return id;
+        }
+        
+        // DATA frame with file bytes [offset, offset + length) of an upload, fed to the digest too
+        void sendData(int id, int patternOffset, long offset, int length, MessageDigest digest) throws IOException {
+            out.writeByte(FrameProtocol.DATA);
+            out.writeInt(id);
+            out.writeInt(length);
+            forEachPiece(patternOffset, offset, length, (off, len) -> {
+                out.write(PATTERN, off, len);
+                digest.update(PATTERN, off, len);
+            });
+            out.flush();
+        }
+        
+        // Next TEXT reply to any command of this session (upload ACKs come back on the chunks' ids)
+        String nextReply() throws IOException {
+            return replyTo(-1);
+        }
+        
+        String replyTo(int id) throws IOException {
+            while (FrameProtocol.readHeader(in, frame)) {
+                if (frame.type == FrameProtocol.PUSH) {
+                    in.skipBytes(frame.length);
+                    pushes.increment();
+                } else if (frame.type != FrameProtocol.TEXT) {
+                    in.skipBytes(frame.length);
+                } else {
+                    String text = FrameProtocol.readText(in, frame.length);
+                    if (id == -1 || frame.requestId == id) return text;
+                }
+            }
+            throw new EOFException("Connection closed");
+        }
+        
+        // Skip a download's DATA frames up to its DOWNLOAD_COMPLETE; returns the bytes received
+        long drainStream(int id) throws IOException {
+            long bytes = 0;
+            while (FrameProtocol.readHeader(in, frame)) {
+                if (frame.type == FrameProtocol.DATA && frame.requestId == id) {
+                    in.skipBytes(frame.length);
+                    bytes += frame.length;
+                } else if (frame.type == FrameProtocol.TEXT && frame.requestId == id) {
+                    String text = FrameProtocol.readText(in, frame.length);
+                    if (text.equals("DOWNLOAD_COMPLETE")) return bytes;
+                    throw new IOException("Download failed: " + text);
+                } else {
+                    in.skipBytes(frame.length);
+                    if (frame.type == FrameProtocol.PUSH) pushes.increment();
+                }
+            }
+            throw new EOFException("Connection closed");
+        }
+        
+        @Override
+        public void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+    }
+    
+    /*
+        Log-linear latency histogram in microseconds: values below 16 are exact, above that
+        every power of two is split into 16 buckets, so a bucket is at most 1/16 wide. Counters
+        are atomic, any number of users record into it without locks.
+    */
+    private static class Latencies {
+        private static final int SUB_BUCKETS = 16;
+        private static final int BUCKETS = SUB_BUCKETS + 40 * SUB_BUCKETS;
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        
+        void record(long nanos) {
+            long micros = Math.max(0, nanos / 1000);
+            counts.incrementAndGet(Math.min(BUCKETS - 1, index(micros)));
+            count.increment();
+        }
+        
+        long count() {
+            return count.sum();
+        }
+        
+        // Upper bound in microseconds of the bucket holding quantile q
+        long percentile(double q) {
+            long total = count();
+            if (total == 0) return 0;
+            long rank = (long) Math.ceil(q * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts.get(i);
+                if (seen >= rank) return upper(i);
+            }
+            return upper(BUCKETS - 1);
+        }
+        
+        private static int index(long micros) {
+            if (micros < SUB_BUCKETS) return (int) micros;
+            int exponent = 63 - Long.numberOfLeadingZeros(micros);  // >= 4
+            int mantissa = (int) (micros >>> (exponent - 4));  // 16..31
+            return SUB_BUCKETS + (exponent - 4) * SUB_BUCKETS + (mantissa - SUB_BUCKETS);
+        }
+        
+        private static long upper(int index) {
+            if (index < SUB_BUCKETS) return index;
+            int exponent = (index - SUB_BUCKETS) / SUB_BUCKETS + 4;
+            long mantissa = (index - SUB_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+            return ((mantissa + 1) << (exponent - 4)) - 1;
+        }
+    }
+}
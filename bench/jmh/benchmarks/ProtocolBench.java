@@ -0,0 +1,210 @@
+package benchmarks;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import static benchmarks.ServerClasses.*;
+
+/*
+    Per-operation costs of the server's hot paths:
+    
+        readLine          ProtocolReader.readLine on a command-heavy stream
+        dispatch          ClientHandler.processNextCommand of a v1 session: the command line is
+                          read, parsed and handled by the real handler, replies go to a null stream
+        metadata          isFileAccessible: the old metadata.txt scan against MetadataIndex,
+                          for a user with 1000 files
+        saveToFile        a 1 MB upload through FileUploadSession: chunks written and hashed,
+                          then committed to the blob store
+    
+    The metadata and upload benchmarks write server_data/ in the working directory;
+    gradle jmh runs them in build/jmh-run. The download loop over a loopback socket is
+    measured by bench/DownloadBench.
+*/
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ProtocolBench {
+    private static final String USER = "bench";
+    private static final int FILES = 1000;
+    private static final int UPLOAD_SIZE = 1024 * 1024;
+    private static final int UPLOAD_CHUNK = 256 * 1024;
+    
+    private static final String[] COMMANDS = {
+        "LIST_CLIENTS:",
+        "LIST_PUBLIC_FILES:alice",
+        "DOWNLOAD_REQUEST:alice|quarterly-report-final.pdf",
+        "UPLOAD_REQUEST:holiday photos.zip|52428800|true||Photos from the trip",
+        "UPLOAD_CHUNK:FILE_42|262144|17|4456448|8f2a11c0",
+        "FILE_REQUEST:Need the lecture slides for week 7|ALL",
+    };
+    
+    @State(Scope.Thread)
+    public static class Lines {
+        byte[] input;
+        Object reader;
+        
+        @Setup(Level.Trial)
+        public void setup() throws Throwable {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < 10_000; i++) {
+                sb.append(COMMANDS[i % COMMANDS.length]).append('\n');
+            }
+            input = sb.toString().getBytes(StandardCharsets.UTF_8);
+            reader = NEW_PROTOCOL_READER.invokeExact((InputStream) new ByteArrayInputStream(input));
+        }
+    }
+    
+    /*
+        One v1 session that gets the same command over and over. The commands need no other
+        connection and leave no state behind, so every call does the same work.
+    */
+    @State(Scope.Thread)
+    public static class Session {
+        @Param({"LIST_CLIENTS:", "LIST_OWN_FILES:", "LIST_PUBLIC_FILES:" + USER, "NO_SUCH_COMMAND:"})
+        public String command;
+        
+        byte[] input;
+        Object handler;
+        
+        @Setup(Level.Trial)
+        public void setup() throws Throwable {
+            checkWorkingDirectory();
+            writeMetadata(100);
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < 10_000; i++) {
+                sb.append(command).append('\n');
+            }
+            input = sb.toString().getBytes(StandardCharsets.UTF_8);
+            handler = newHandler();
+        }
+        
+        Object newHandler() throws Throwable {
+            Object reader = NEW_PROTOCOL_READER.invokeExact((InputStream) new ByteArrayInputStream(input));
+            OutputStream sink = OutputStream.nullOutputStream();
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(sink, StandardCharsets.UTF_8), true);
+            return NEW_CLIENT_HANDLER.invokeExact(new Socket(), USER, out, reader, sink);
+        }
+    }
+    
+    @State(Scope.Benchmark)
+    public static class Metadata {
+        String wanted;
+        
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            checkWorkingDirectory();
+            writeMetadata(FILES);
+            wanted = "file-" + (FILES / 2 + 1) + ".bin";  // Middle of the file, private, requested by carol
+        }
+    }
+    
+    @State(Scope.Thread)
+    public static class Upload {
+        byte[] content = new byte[UPLOAD_SIZE];
+        ByteBuffer chunk = ByteBuffer.allocateDirect(UPLOAD_CHUNK);
+        long uploads;
+        
+        @Setup(Level.Trial)
+        public void setup() throws Throwable {
+            checkWorkingDirectory();
+            new File("server_data/" + USER).mkdirs();
+            LOAD_BLOB_STORE.invokeExact();
+            new Random(42).nextBytes(content);
+        }
+    }
+    
+    @Benchmark
+    public String readLine(Lines lines) throws Throwable {
+        String line = (String) READ_LINE.invokeExact(lines.reader);
+        if (line == null) {
+            lines.reader = NEW_PROTOCOL_READER.invokeExact((InputStream) new ByteArrayInputStream(lines.input));
+            line = (String) READ_LINE.invokeExact(lines.reader);
+        }
+        return line;
+    }
+    
+    @Benchmark
+    public boolean dispatch(Session session) throws Throwable {
+        boolean open = (boolean) PROCESS_NEXT_COMMAND.invokeExact(session.handler);
+        if (!open) {
+            // End of the input stream, the next call starts a new one
+            session.handler = session.newHandler();
+        }
+        return open;
+    }
+    
+    @Benchmark
+    public boolean metadataScan(Metadata metadata) {
+        return oldIsFileAccessible(USER, metadata.wanted, "carol");
+    }
+    
+    @Benchmark
+    public void metadataIndex(Metadata metadata, Blackhole blackhole) throws Throwable {
+        blackhole.consume((Object) METADATA_GET.invokeExact(USER, metadata.wanted));
+    }
+    
+    // Every upload has new content and replaces the previous one, so blobs do not pile up
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public boolean saveToFile(Upload upload) throws Throwable {
+        long id = upload.uploads++;
+        for (int i = 0; i < 8; i++) {
+            upload.content[i] = (byte) (id >>> (8 * i));
+        }
+        Object session = NEW_UPLOAD_SESSION.invokeExact("BENCH_" + id, USER, "upload.bin", (long) UPLOAD_SIZE, UPLOAD_CHUNK, false, (String) null);
+        for (int offset = 0; offset < UPLOAD_SIZE; offset += UPLOAD_CHUNK) {
+            upload.chunk.clear();
+            upload.chunk.put(upload.content, offset, UPLOAD_CHUNK).flip();
+            ADD_CHUNK.invokeExact(session, upload.chunk, (long) offset);
+        }
+        return (boolean) SAVE_TO_FILE.invokeExact(session);
+    }
+    
+    private static void checkWorkingDirectory() {
+        if (new File("Server.java").exists()) {
+            throw new IllegalStateException("Run from an empty directory, the benchmarks write server_data/ (gradle jmh does)");
+        }
+    }
+    
+    // files entries for USER, every other one public, the private ones requested by carol
+    private static void writeMetadata(int files) throws IOException {
+        File dir = new File("server_data/" + USER);
+        dir.mkdirs();
+        new File(dir, "metadata.log").delete();
+        try (PrintWriter out = new PrintWriter(new FileWriter(new File(dir, "metadata.txt")))) {
+            for (int i = 0; i < files; i++) {
+                out.println("file-" + i + ".bin|" + (i % 2 == 0 ? "public" : "private") + "|carol|File number " + i);
+            }
+        }
+    }
+    
+    // ClientHandler.isFileAccessible before MetadataIndex: a scan of metadata.txt per call
+    private static boolean oldIsFileAccessible(String owner, String fileName, String downloader) {
+        File metadataFile = new File("server_data/" + owner + "/metadata.txt");
+        if (metadataFile.exists()) {
+            try (BufferedReader reader = new BufferedReader(new FileReader(metadataFile))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] parts = line.split("\\|");
+                    if (parts[0].equals(fileName)) {
+                        if (parts[1].equals("public")) {
+                            return true;
+                        }
+                        return parts.length > 2 && parts[2].equals(downloader);
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);  // Fail the benchmark instead of measuring a broken run
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,87 @@
+package benchmarks;
+
+import java.io.*;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Executable;
+import java.lang.reflect.Method;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+/*
+    The server's classes are in the default package, which code in a named package cannot
+    import, and JMH only accepts benchmarks in a named package. The benchmarks therefore call
+    the real methods through these handles. They are static final, so the JIT inlines them
+    like direct calls; a handle on a package-private member is opened with setAccessible,
+    which works because everything is on the class path in the same unnamed module.
+*/
+final class ServerClasses {
+    static final MethodHandle NEW_PROTOCOL_READER = constructor("ProtocolReader", InputStream.class);
+    static final MethodHandle READ_LINE = method("ProtocolReader", "readLine");
+    
+    static final MethodHandle NEW_CLIENT_HANDLER = constructor("ClientHandler", 
+            Socket.class, String.class, PrintWriter.class, type("ProtocolReader"), OutputStream.class);
+    static final MethodHandle PROCESS_NEXT_COMMAND = method("ClientHandler", "processNextCommand");
+    
+    static final MethodHandle METADATA_GET = method("MetadataIndex", "get", String.class, String.class);
+    
+    static final MethodHandle LOAD_BLOB_STORE = method("BlobStore", "load");
+    static final MethodHandle NEW_UPLOAD_SESSION = constructor("FileUploadSession", 
+            String.class, String.class, String.class, long.class, int.class, boolean.class, String.class);
+    static final MethodHandle ADD_CHUNK = method("FileUploadSession", "addChunk", ByteBuffer.class, long.class);
+    static final MethodHandle SAVE_TO_FILE = method("FileUploadSession", "saveToFile");
+    
+    private ServerClasses() {
+    }
+    
+    static Class<?> type(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("Server class " + name + " is not on the class path", e);
+        }
+    }
+    
+    // Handle with every class of the server replaced by Object, so callers need no server types
+    private static MethodHandle constructor(String className, Class<?>... parameters) {
+        try {
+            Constructor<?> constructor = type(className).getDeclaredConstructor(parameters);
+            return generic(MethodHandles.lookup().unreflectConstructor(open(constructor)));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("No constructor " + className + " for the benchmarks", e);
+        }
+    }
+    
+    private static MethodHandle method(String className, String name, Class<?>... parameters) {
+        try {
+            Method method = type(className).getDeclaredMethod(name, parameters);
+            return generic(MethodHandles.lookup().unreflect(open(method)));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("No method " + className + "." + name + " for the benchmarks", e);
+        }
+    }
+    
+    private static <T extends Executable> T open(T member) {
+        member.setAccessible(true);
+        return member;
+    }
+    
+    private static MethodHandle generic(MethodHandle handle) {
+        MethodType type = handle.type();
+        for (int i = 0; i < type.parameterCount(); i++) {
+            if (isServerClass(type.parameterType(i))) {
+                type = type.changeParameterType(i, Object.class);
+            }
+        }
+        if (isServerClass(type.returnType())) {
+            type = type.changeReturnType(Object.class);
+        }
+        return handle.asType(type);
+    }
+    
+    private static boolean isServerClass(Class<?> c) {
+        return !c.isPrimitive() && c.getPackageName().isEmpty();
+    }
+}
@@ -3,7 +3,7 @@
 # Compile all Java files in the project
 
 echo "Compiling File Server System..."
-javac Server.java ClientHandler.java Client.java
+javac *.java
 
 if [ $? -eq 0 ]; then
     echo "✓ Compilation successful!"
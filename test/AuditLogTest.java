@@ -0,0 +1,50 @@
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.junit.jupiter.api.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Records logged while shutdown() runs must still reach log.txt
+class AuditLogTest {
+    private static final int THREADS = 8;
+    private static final int RECORDS = 2000;
+    
+    @BeforeAll
+    static void shortFlushInterval() {
+        System.setProperty("audit.flushMillis", "5");
+    }
+    
+    @Test
+    void noRecordsLostWhenLoggingDuringShutdown() throws Exception {
+        for (int t = 0; t < THREADS; t++) {
+            Files.createDirectories(Paths.get("server_data", "audit-user-" + t));
+        }
+        
+        CountDownLatch started = new CountDownLatch(THREADS);
+        List<Thread> loggers = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            String username = "audit-user-" + t;
+            Thread logger = new Thread(() -> {
+                started.countDown();
+                for (int i = 0; i < RECORDS; i++) {
+                    AuditLog.log(username, "file-" + i, "UPLOAD", "SUCCESS");
+                }
+            });
+            logger.start();
+            loggers.add(logger);
+        }
+        
+        started.await();
+        Thread.sleep(10);
+        AuditLog.shutdown();
+        for (Thread logger : loggers) {
+            logger.join();
+        }
+        
+        for (int t = 0; t < THREADS; t++) {
+            List<String> lines = Files.readAllLines(Paths.get("server_data", "audit-user-" + t, "log.txt"));
+            assertEquals(RECORDS, lines.size(), "audit-user-" + t);
+        }
+    }
+}
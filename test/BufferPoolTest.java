@@ -0,0 +1,99 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import org.junit.jupiter.api.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Every chunk buffer of an upload and a download goes back to the pool, and acquire() waits at the cap
+class BufferPoolTest {
+    @BeforeAll
+    static void startServer() throws Exception {
+        BufferPool.shared().setLeakDetection(true);
+        TestServer.start("--engine=selector", "--workers=2");
+    }
+    
+    @Test
+    void uploadAndDownloadReleaseEveryBuffer() throws Exception {
+        byte[] content = new byte[3 * BufferPool.BUFFER_SIZE + 123];
+        new Random(42).nextBytes(content);
+        
+        // One raw connection, the download is binary and has to be read straight from the socket
+        try (Socket socket = new Socket("localhost", TestServer.start())) {
+            socket.setSoTimeout(30_000);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            OutputStream out = socket.getOutputStream();
+            send(out, "SIGNUP", "pool-user", "secret", "answer");
+            assertTrue(readLine(in).startsWith("SUCCESS"));
+            
+            send(out, "UPLOAD_REQUEST:pool.bin|" + content.length + "|false");
+            String approved = readLine(in);
+            assertTrue(approved.startsWith("UPLOAD_APPROVED:"), approved);
+            String[] fields = approved.substring(16).split("\\|");
+            String fileId = fields[0];
+            int chunkSize = Integer.parseInt(fields[1]);
+            for (int offset = 0; offset < content.length; offset += chunkSize) {
+                int length = Math.min(chunkSize, content.length - offset);
+                send(out, "UPLOAD_CHUNK:" + fileId + "|" + length);
+                out.write(content, offset, length);
+                assertEquals("CHUNK_ACK", readLine(in));
+            }
+            send(out, "UPLOAD_COMPLETE:" + fileId);
+            assertEquals("UPLOAD_SUCCESS", readLine(in));
+            
+            send(out, "DOWNLOAD_REQUEST:pool-user|pool.bin");
+            assertEquals("DOWNLOAD_START:pool.bin|" + content.length, readLine(in));
+            ByteArrayOutputStream received = new ByteArrayOutputStream();
+            while (received.size() < content.length) {
+                byte[] chunk = new byte[in.readInt()];
+                in.readFully(chunk);
+                received.write(chunk);
+            }
+            assertArrayEquals(content, received.toByteArray());
+            assertEquals("DOWNLOAD_COMPLETE", readLine(in));
+        }
+        
+        assertEquals(List.of(), BufferPool.shared().leaks());
+        assertEquals(0, BufferPool.shared().outstanding());
+    }
+    
+    @Test
+    void acquireWaitsForReleaseAtTheCap() throws Exception {
+        BufferPool pool = new BufferPool(16, 1, 2);
+        ByteBuffer first = pool.acquire();
+        pool.acquire();
+        
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<ByteBuffer> third = executor.submit(pool::acquire);
+            assertThrows(TimeoutException.class, () -> third.get(200, TimeUnit.MILLISECONDS));
+            
+            pool.release(first);
+            assertTimeoutPreemptively(Duration.ofSeconds(5), () -> assertNotNull(third.get()));
+            assertEquals(2, pool.outstanding());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    private static void send(OutputStream out, String... lines) throws IOException {
+        for (String line : lines) {
+            out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        out.flush();
+    }
+    
+    private static String readLine(DataInputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1) throw new EOFException();
+            if (b != '\r') line.write(b);
+        }
+        return line.toString(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,56 @@
+import java.io.*;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.jupiter.api.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// --engine=selector: a flood of slow, failing logins must not delay commands of logged-in users
+class LoginFloodTest {
+    private static final int FLOODERS = 8;
+    
+    @BeforeAll
+    static void startServer() throws Exception {
+        System.setProperty("auth.threads", "1");
+        System.setProperty("auth.iterations", "1000000");
+        System.setProperty("handshake.threads", "4");
+        TestServer.start("--engine=selector", "--workers=2");
+    }
+    
+    @Test
+    void commandsStayFastDuringLoginFlood() throws Exception {
+        AtomicBoolean flooding = new AtomicBoolean(true);
+        List<Thread> flooders = new ArrayList<>();
+        TestServer.signup("flood-target", "secret").close();
+        try (TestServer.Connection user = TestServer.signup("flood-user", "secret")) {
+            for (int i = 0; i < FLOODERS; i++) {
+                Thread flooder = new Thread(() -> {
+                    while (flooding.get()) {
+                        try (TestServer.Connection attacker = TestServer.connect()) {
+                            attacker.send("LOGIN", "flood-target", "wrong");
+                            attacker.read();
+                        } catch (IOException e) {
+                            // Dropped by the server, try again
+                        }
+                    }
+                });
+                flooder.setDaemon(true);
+                flooder.start();
+                flooders.add(flooder);
+            }
+            Thread.sleep(500);  // Let the handshake and auth pools fill up
+            
+            for (int i = 0; i < 20; i++) {
+                assertTimeoutPreemptively(Duration.ofSeconds(1), () -> {
+                    assertTrue(user.command("LIST_CLIENTS:").startsWith("CLIENT_LIST:"));
+                });
+            }
+        } finally {
+            flooding.set(false);
+            for (Thread flooder : flooders) {
+                flooder.join(10_000);
+            }
+        }
+    }
+}
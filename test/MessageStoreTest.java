@@ -0,0 +1,64 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import org.junit.jupiter.api.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Compaction of sealed segments, a delete and its message cancel out when both are in the same segment
+class MessageStoreTest {
+    private static final String USER = "compaction-user";
+    private static final String RESTARTED_USER = "restarted-user";
+    
+    @Test
+    void compactionDropsDeleteWithItsMessage() throws Exception {
+        long deleted = MessageStore.append(USER, "going away");
+        long kept = MessageStore.append(USER, "staying");
+        assertTrue(MessageStore.delete(USER, deleted));
+        
+        // Fill the first segment and roll over so it is sealed
+        for (int i = 3; i < MessageStore.SEGMENT_MAX_RECORDS; i++) {
+            MessageStore.append(USER, "filler " + i);
+        }
+        MessageStore.append(USER, "first record of the active segment");
+        
+        MessageStore.compactAll();
+        
+        List<String> sealed = Files.readAllLines(Paths.get("server_data", USER, "messages", String.format("%020d.log", 0)));
+        assertFalse(sealed.contains("M|" + deleted + "|going away"));
+        assertFalse(sealed.contains("D|" + deleted));
+        assertTrue(sealed.contains("M|" + kept + "|staying"));
+        
+        assertEquals(kept, MessageStore.readSince(USER, 0).get(0).offset);
+        assertFalse(MessageStore.delete(USER, deleted));
+    }
+    
+    @Test
+    void restartForgetsDeleteOfCompactedMessage() throws Exception {
+        long deleted = MessageStore.append(RESTARTED_USER, "going away");
+        for (int i = 1; i < MessageStore.SEGMENT_MAX_RECORDS; i++) {
+            MessageStore.append(RESTARTED_USER, "filler " + i);
+        }
+        long kept = MessageStore.append(RESTARTED_USER, "first record of the active segment");
+        
+        // The delete lands in the active segment, compaction purges the message from the sealed one
+        assertTrue(MessageStore.delete(RESTARTED_USER, deleted));
+        MessageStore.compactAll();
+        assertTrue(Files.readAllLines(Paths.get("server_data", RESTARTED_USER, "messages", String.format("%020d.log", kept)))
+                        .contains("D|" + deleted));
+        
+        // Loaded again as after a restart, the leftover D record is no tombstone
+        UserMessages restarted = UserMessages.load(RESTARTED_USER);
+        assertEquals(0, restarted.tombstoneCount());
+        assertEquals(1, restarted.readSince(0).get(0).offset);
+        assertEquals(kept + 1, restarted.nextOffset());
+        
+        // Once its segment is sealed, compaction removes the leftover record
+        for (long i = restarted.nextOffset(); i <= kept + MessageStore.SEGMENT_MAX_RECORDS; i++) {
+            restarted.append("filler " + i);
+        }
+        restarted.compact();
+        assertFalse(Files.readAllLines(Paths.get("server_data", RESTARTED_USER, "messages", String.format("%020d.log", kept)))
+                         .contains("D|" + deleted));
+    }
+}
@@ -0,0 +1,98 @@
+import java.io.*;
+import java.lang.management.*;
+import java.net.*;
+import java.time.Duration;
+import java.util.*;
+import org.junit.jupiter.api.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// --engine=selector with 2 workers: connections that never finish logging in, or a v2 session
+// whose replies are stuck on a full socket, must not block real users
+class SelectorEngineTest {
+    private static final int WORKERS = 2;
+    private static final int HANDSHAKE_THREADS = 2;
+    
+    @BeforeAll
+    static void startServer() throws Exception {
+        System.setProperty("handshake.threads", Integer.toString(HANDSHAKE_THREADS));
+        System.setProperty("handshake.timeout", "1000");
+        TestServer.start("--engine=selector", "--workers=" + WORKERS);
+    }
+    
+    @Test
+    void loginSucceedsWhileIdleConnectionsOutnumberWorkers() throws Exception {
+        List<Socket> idle = new ArrayList<>();
+        try {
+            for (int i = 0; i < 10 * (WORKERS + HANDSHAKE_THREADS); i++) {
+                idle.add(new Socket("localhost", TestServer.start()));
+            }
+            // And one that stops half way through its login
+            try (TestServer.Connection stalled = TestServer.connect()) {
+                stalled.send("LOGIN");
+                
+                assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+                    try (TestServer.Connection user = TestServer.signup("selector-user", "secret")) {
+                        assertTrue(user.command("LIST_CLIENTS:").startsWith("CLIENT_LIST:"));
+                    }
+                });
+                
+                // Dropped after handshake.timeout
+                assertNull(stalled.read());
+            }
+        } finally {
+            for (Socket socket : idle) {
+                socket.close();
+            }
+        }
+    }
+    
+    @Test
+    void commandsRunWhileV2ReplyIsBlocked() throws Exception {
+        TestServer.signup("v2-user", "secret").close();
+        try (TestServer.Connection sender = TestServer.signup("v2-sender", "secret")) {
+            String description = "x".repeat(100_000);
+            for (int i = 0; i < 100; i++) {
+                assertTrue(sender.command("FILE_REQUEST:" + description + "|v2-user").startsWith("REQUEST_SENT:"));
+            }
+        }
+        
+        // A v2 client with a tiny receive buffer that never reads its 10 MB of messages
+        Socket socket = new Socket();
+        socket.setReceiveBufferSize(4096);
+        socket.connect(new InetSocketAddress("localhost", TestServer.start()));
+        try (TestServer.Connection v2 = new TestServer.Connection(socket)) {
+            v2.send(FrameProtocol.HELLO, "LOGIN", "v2-user", "secret");
+            assertEquals(FrameProtocol.HELLO, v2.read());
+            assertTrue(v2.read().startsWith("SUCCESS"));
+            
+            FramedWriter frames = new FramedWriter(socket.getOutputStream(), () -> 0);
+            frames.println(1, "VIEW_MESSAGES:");
+            Thread.sleep(500);
+            frames.println(2, "LIST_CLIENTS:");  // Waits behind the first reply for the frame lock
+            Thread.sleep(500);
+            
+            // The blocked reply waits in the kernel instead of polling the full socket
+            long cpuBefore = streamCpuNanos();
+            Thread.sleep(1000);
+            assertTrue(streamCpuNanos() - cpuBefore < 100_000_000L, "stream threads spin on a full socket");
+            
+            assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+                try (TestServer.Connection user = TestServer.signup("v1-user", "secret")) {
+                    assertTrue(user.command("LIST_CLIENTS:").startsWith("CLIENT_LIST:"));
+                }
+            });
+        }
+    }
+    
+    private static long streamCpuNanos() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long total = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("session-stream")) {
+                total += Math.max(threads.getThreadCpuTime(thread.getId()), 0);
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,91 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+
+/*
+    Runs Server.main in the test JVM on a free port and talks the v1 line protocol to it.
+    The server's state is static, so there is one server per JVM; the build forks a JVM
+    per test class and runs it in build/test-run.
+*/
+final class TestServer {
+    private static int port;
+    
+    private TestServer() {
+    }
+    
+    // Start the server with these command line arguments, once per JVM
+    static synchronized int start(String... args) throws Exception {
+        if (port != 0) return port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        System.setProperty("server.port", Integer.toString(port));
+        Thread server = new Thread(() -> Server.main(args), "test-server");
+        server.setDaemon(true);
+        server.start();
+        
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (true) {
+            try (Socket probe = new Socket("localhost", port)) {
+                return port;  // The handshake of this probe times out on the server
+            } catch (ConnectException e) {
+                if (System.currentTimeMillis() > deadline) throw e;
+                Thread.sleep(50);
+            }
+        }
+    }
+    
+    static Connection connect() throws IOException {
+        return new Connection(new Socket("localhost", port));
+    }
+    
+    // A signed-up and logged-in v1 session
+    static Connection signup(String username, String password) throws IOException {
+        Connection connection = connect();
+        connection.send("SIGNUP", username, password, "answer");
+        String reply = connection.read();
+        if (!reply.startsWith("SUCCESS")) {
+            connection.close();
+            throw new IOException("Signup of " + username + " failed: " + reply);
+        }
+        return connection;
+    }
+    
+    static final class Connection implements Closeable {
+        final Socket socket;
+        private final BufferedReader in;
+        private final PrintWriter out;
+        
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            socket.setSoTimeout(30_000);
+            this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            this.out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+        }
+        
+        void send(String... lines) {
+            for (String line : lines) {
+                out.println(line);
+            }
+        }
+        
+        // Next line that is not a NEW_MESSAGE push
+        String read() throws IOException {
+            String line;
+            do {
+                line = in.readLine();
+            } while (line != null && line.startsWith("NEW_MESSAGE:"));
+            return line;
+        }
+        
+        String command(String command) throws IOException {
+            send(command);
+            return read();
+        }
+        
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
@@ -79,7 +79,7 @@ function setupEventListeners() {
     // Refresh buttons
     document.getElementById('refresh-my-files').addEventListener('click', () => sendCommand('LIST_OWN_FILES:'));
     document.getElementById('refresh-users').addEventListener('click', () => sendCommand('LIST_CLIENTS:'));
-    document.getElementById('refresh-history').addEventListener('click', () => sendCommand('VIEW_HISTORY:'));
+    document.getElementById('refresh-history').addEventListener('click', () => loadHistory(true));
     
     // File request
     document.getElementById('new-request-btn').addEventListener('click', openRequestModal);
@@ -119,7 +119,7 @@ function setupSocketListeners() {
         const msg = data.message.trim();
         
         // Log summary for large messages instead of full content
-        if (msg.startsWith('HISTORY:')) {
+        if (msg.startsWith('HISTORY:') || msg.startsWith('HISTORY_PAGE:')) {
             logConsole('✓ History loaded');
         } else if (msg.startsWith('OWN_FILES:')) {
             const count = msg.split(';').filter(f => f.trim()).length;
@@ -133,6 +133,8 @@ function setupSocketListeners() {
         } else if (msg.startsWith('MESSAGES:')) {
             const count = msg.substring(9).split(';').filter(m => m.trim()).length;
             logConsole(`✓ Messages loaded (${count} messages)`);
+        } else if (msg.startsWith('MESSAGES_PAGE:')) {
+            logConsole('✓ Messages page loaded');
         } else if (!msg.startsWith('DOWNLOAD_START:') && 
                    !msg.startsWith('DOWNLOAD_COMPLETE') && 
                    !msg.startsWith('BINARY:')) {
@@ -290,11 +292,11 @@ function switchView(viewName) {
             sendCommand('LIST_CLIENTS:');
             break;
         case 'history':
-            sendCommand('VIEW_HISTORY:');
+            loadHistory(true);
             break;
         case 'messages':
         case 'requests':
-            sendCommand('VIEW_MESSAGES:');
+            loadMessages(true);
             // Clear notification badge when viewing messages
             const messagesNavItem = document.querySelector('.nav-item[data-view="messages"]');
             if (messagesNavItem) {
@@ -351,9 +353,9 @@ function handleServerMessage(message) {
         handleUploadApproved(msg);
     }
     
-    // Handle chunk acknowledgment
-    else if (msg === 'CHUNK_ACK') {
-        handleChunkAck();
+    // Handle chunk acknowledgment (CHUNK_ACK:seq|committed, or CHUNK_NACK:seq|committed to resend)
+    else if (msg.startsWith('CHUNK_ACK:') || msg.startsWith('CHUNK_NACK:')) {
+        handleChunkAck(msg);
     }
     
     // Handle upload success
@@ -381,11 +383,21 @@ function handleServerMessage(message) {
         parseHistory(msg);
     }
     
+    // Parse one page of history
+    else if (msg.startsWith('HISTORY_PAGE:')) {
+        parseHistoryPage(msg);
+    }
+    
     // Parse messages
     else if (msg.startsWith('MESSAGES:')) {
         parseMessages(msg);
     }
     
+    // Parse one page of messages
+    else if (msg.startsWith('MESSAGES_PAGE:')) {
+        parseMessagesPage(msg);
+    }
+    
     // Parse public files list
     else if (msg.startsWith('PUBLIC_FILES:')) {
         parsePublicFiles(msg);
@@ -405,7 +417,7 @@ function handleServerMessage(message) {
             const deleteCmd = `DELETE_MESSAGE:${window.pendingMessageDelete}`;
             sendCommand(deleteCmd);
             window.pendingMessageDelete = null;
-            setTimeout(() => sendCommand('VIEW_MESSAGES:'), 500);
+            setTimeout(() => loadMessages(true), 500);
         }
     }
     
@@ -422,7 +434,7 @@ function handleServerMessage(message) {
         // Refresh messages view if currently on it
         const messagesView = document.getElementById('messages-view');
         if (messagesView && messagesView.classList.contains('active')) {
-            sendCommand('VIEW_MESSAGES:');
+            loadMessages(true);
         }
     }
     
@@ -460,13 +472,14 @@ function handleNewMessage(messageText) {
 let uploadContext = null;
 
 function handleUploadApproved(message) {
-    // UPLOAD_APPROVED:fileId|chunkSize
+    // UPLOAD_APPROVED:fileId|chunkSize|window
     const data = message.substring(16); // Remove "UPLOAD_APPROVED:"
     const parts = data.split('|');
     const fileId = parts[0];
     const chunkSize = parseInt(parts[1]);
+    const windowSize = Math.max(1, parseInt(parts[2]) || 1);
     
-    console.log(`Upload approved. File ID: ${fileId}, Chunk size: ${chunkSize}`);
+    console.log(`Upload approved. File ID: ${fileId}, Chunk size: ${chunkSize}, Window: ${windowSize}`);
     
     if (!window.pendingUpload) {
         console.error('No pending upload found!');
@@ -474,72 +487,116 @@ function handleUploadApproved(message) {
     }
     
     // Initialize upload context
+    const totalSize = window.pendingUpload.file.size;
     uploadContext = {
         fileId: fileId,
         chunkSize: chunkSize,
+        windowSize: windowSize,
         file: window.pendingUpload.file,
-        offset: 0,
-        totalSize: window.pendingUpload.file.size,
-        chunkNum: 0
+        totalSize: totalSize,
+        chunks: {},      // seq -> { offset, length } until it is ACKed
+        nextOffset: 0,
+        nextSeq: 0,
+        inFlight: 0,
+        ackedBytes: 0,
+        retries: {},
+        resend: []
     };
     
-    // Start uploading chunks
-    uploadNextChunk();
+    // Start uploading chunks (an empty file has none to wait for)
+    if (totalSize === 0) {
+        socket.emit('send-command', { command: `UPLOAD_COMPLETE:${fileId}` });
+    } else {
+        fillUploadWindow();
+    }
 }
 
-function uploadNextChunk() {
+// Keep up to windowSize chunks in flight; the server ACKs each one by sequence number
+function fillUploadWindow() {
     if (!uploadContext) return;
     
-    const { file, offset, chunkSize, totalSize, fileId } = uploadContext;
-    
-    if (offset >= totalSize) {
-        console.log('All chunks sent!');
-        return;
+    while (uploadContext.inFlight < uploadContext.windowSize &&
+           (uploadContext.resend.length > 0 || uploadContext.nextOffset < uploadContext.totalSize)) {
+        let seq;
+        if (uploadContext.resend.length > 0) {
+            seq = uploadContext.resend.shift();
+        } else {
+            // New chunks use the current chunk size, the server may change it with an ACK
+            seq = uploadContext.nextSeq++;
+            const offset = uploadContext.nextOffset;
+            const length = Math.min(uploadContext.chunkSize, uploadContext.totalSize - offset);
+            uploadContext.chunks[seq] = { offset, length };
+            uploadContext.nextOffset += length;
+        }
+        uploadContext.inFlight++;
+        sendUploadChunk(seq);
     }
-    
-    const chunk = file.slice(offset, Math.min(offset + chunkSize, totalSize));
+}
+
+function sendUploadChunk(seq) {
+    const { file, fileId } = uploadContext;
+    const { offset, length } = uploadContext.chunks[seq];
+    const chunk = file.slice(offset, offset + length);
     const reader = new FileReader();
+    const context = uploadContext;
     
     reader.onload = (e) => {
+        if (uploadContext !== context) return;  // Upload was cancelled meanwhile
         const arrayBuffer = e.target.result;
         const base64Data = arrayBufferToBase64(arrayBuffer);
         const bytesRead = arrayBuffer.byteLength;
         
-        uploadContext.chunkNum++;
-        uploadContext.offset += bytesRead;
+        console.log(`Sending chunk ${seq + 1} (${bytesRead} bytes at ${offset})`);
         
-        // Update progress
-        const progress = Math.round((uploadContext.offset / totalSize) * 100);
-        document.getElementById('progress-fill').style.width = progress + '%';
-        document.getElementById('upload-percent').textContent = progress + '%';
-        
-        console.log(`Sending chunk ${uploadContext.chunkNum} (${bytesRead} bytes)`);
-        
-        // Send chunk command: UPLOAD_CHUNK:fileId|bytesRead
-        const chunkCommand = `UPLOAD_CHUNK:${fileId}|${bytesRead}`;
-        socket.emit('send-command', { command: chunkCommand });
-        
-        // Send binary data
-        setTimeout(() => {
-            socket.emit('upload-chunk-data', { data: base64Data });
-        }, 50);
+        // Command and data go out back to back, the bridge forwards them in order
+        socket.emit('send-command', { command: `UPLOAD_CHUNK:${fileId}|${bytesRead}|${seq}|${offset}` });
+        socket.emit('upload-chunk-data', { data: base64Data });
     };
     
     reader.readAsArrayBuffer(chunk);
 }
 
-function handleChunkAck() {
-    console.log('Chunk acknowledged');
-    if (uploadContext) {
-        if (uploadContext.offset < uploadContext.totalSize) {
-            // Upload next chunk
-            uploadNextChunk();
-        } else {
-            // All chunks sent, finalize upload
-            console.log('All chunks uploaded, sending completion signal');
-            const completeCommand = `UPLOAD_COMPLETE:${uploadContext.fileId}`;
-            socket.emit('send-command', { command: completeCommand });
+function handleChunkAck(message) {
+    if (!uploadContext) return;
+    
+    // CHUNK_ACK:seq|committed[|chunkSize|window], CHUNK_NACK:seq|committed
+    const nack = message.startsWith('CHUNK_NACK:');
+    const fields = message.substring(nack ? 11 : 10).split('|');
+    const seq = parseInt(fields[0]);
+    if (!uploadContext.chunks[seq]) return;  // Already ACKed
+    uploadContext.inFlight--;
+    
+    if (nack) {
+        uploadContext.retries[seq] = (uploadContext.retries[seq] || 0) + 1;
+        if (uploadContext.retries[seq] > 3) {
+            console.error(`Chunk ${seq + 1} failed repeatedly, aborting upload`);
+            uploadContext = null;
+            document.getElementById('upload-progress').style.display = 'none';
+            document.getElementById('upload-box').style.display = 'block';
+            showStatus('Upload failed: chunk could not be stored', 'error');
+            return;
         }
+        uploadContext.resend.push(seq);
+    } else {
+        uploadContext.ackedBytes += uploadContext.chunks[seq].length;
+        delete uploadContext.chunks[seq];
+        if (fields.length >= 4) {
+            uploadContext.chunkSize = parseInt(fields[2]);
+            uploadContext.windowSize = Math.max(1, parseInt(fields[3]) || 1);
+        }
+        
+        // Update progress
+        const progress = Math.round((uploadContext.ackedBytes / uploadContext.totalSize) * 100);
+        document.getElementById('progress-fill').style.width = progress + '%';
+        document.getElementById('upload-percent').textContent = progress + '%';
+    }
+    
+    if (uploadContext.ackedBytes >= uploadContext.totalSize) {
+        // All chunks stored, finalize upload
+        console.log('All chunks uploaded, sending completion signal');
+        socket.emit('send-command', { command: `UPLOAD_COMPLETE:${uploadContext.fileId}` });
+    } else {
+        fillUploadWindow();
     }
 }
 
@@ -676,6 +733,56 @@ function parseUserList(message) {
     `).join('');
 }
 
+// History and messages are fetched lazily, one page at a time
+const PAGE_SIZE = 50;
+let historyCursor = '';
+let historyAppend = false;
+let messagesCursor = 0;
+let messagesAppend = false;
+
+function loadHistory(reset) {
+    if (reset) {
+        historyCursor = '';
+    }
+    historyAppend = !reset;
+    sendCommand(`VIEW_HISTORY:${historyCursor}|${PAGE_SIZE}`);
+}
+
+window.loadHistory = loadHistory;
+
+function loadMessages(reset) {
+    if (reset) {
+        messagesCursor = 0;
+    }
+    messagesAppend = !reset;
+    sendCommand(`VIEW_MESSAGES:${messagesCursor}|${PAGE_SIZE}`);
+}
+
+window.loadMessages = loadMessages;
+
+// Split <nextCursor>|<hasMore>|<entries> from a *_PAGE response
+function parsePage(data) {
+    const first = data.indexOf('|');
+    const second = data.indexOf('|', first + 1);
+    return {
+        cursor: data.substring(0, first),
+        hasMore: data.substring(first + 1, second) === 'true',
+        entries: data.substring(second + 1).split(';').filter(e => e.trim())
+    };
+}
+
+// Replace the "Load more" button at the end of a container
+function updateLoadMore(container, id, hasMore, onClick) {
+    const existing = document.getElementById(id);
+    if (existing) {
+        existing.remove();
+    }
+    if (hasMore) {
+        container.insertAdjacentHTML('beforeend', 
+            `<button class="btn btn-secondary load-more-btn" id="${id}" onclick="${onClick}">Load more</button>`);
+    }
+}
+
 function parseHistory(message) {
     const container = document.getElementById('history-container');
     
@@ -686,36 +793,69 @@ function parseHistory(message) {
     if (entries.length === 0) {
         container.innerHTML = '<div class="empty-state"><p>No activity yet</p></div>';
     } else {
-        container.innerHTML = entries.reverse().map(entry => {
-            const parts = entry.split('|');
-            const fileName = parts[0] || '';
-            const timestamp = parts[1] || '';
-            const action = parts[2] || '';
-            const status = parts[3] || '';
-            
-            const actionIcon = action.includes('upload') ? '⬆️' :
-                              action.includes('download') ? '⬇️' :
-                              action.includes('delete') ? '🗑️' : '📋';
-            
-            const isSuccess = status.toLowerCase().startsWith('success');
-            const statusColor = isSuccess ? 'var(--success-color)' : '#ef4444';
-            const borderColor = isSuccess ? 'var(--success-color)' : '#ef4444';
-            
-            return `
-                <div style="background: var(--bg-primary); border: 1px solid var(--border-color); border-left: 3px solid ${borderColor}; border-radius: 10px; padding: 12px 16px; margin-bottom: 8px; display: flex; align-items: center; gap: 12px;">
-                    <div style="font-size: 20px;">${actionIcon}</div>
-                    <div style="flex: 1; min-width: 0;">
-                        <div style="font-weight: 600; font-size: 14px; color: var(--text-primary);">${action}</div>
-                        <div style="font-size: 13px; color: var(--text-secondary); overflow: hidden; text-overflow: ellipsis; white-space: nowrap;">${fileName}</div>
-                        <div style="font-size: 11px; color: var(--text-secondary); opacity: 0.7; margin-top: 2px;">${timestamp}</div>
-                    </div>
-                    <div style="font-size: 11px; font-weight: 600; text-transform: uppercase; padding: 4px 8px; border-radius: 4px; color: ${statusColor}; background: ${isSuccess ? 'rgba(52,211,153,0.1)' : 'rgba(239,68,68,0.1)'}; flex-shrink: 0;">${status}</div>
-                </div>
-            `;
-        }).join('');
+        container.innerHTML = entries.reverse().map(renderHistoryEntry).join('');
+    }
+}
+
+// HISTORY_PAGE:<nextCursor>|<hasMore>|entry;entry; (newest first)
+function parseHistoryPage(message) {
+    const container = document.getElementById('history-container');
+    const page = parsePage(message.substring(13)); // Remove "HISTORY_PAGE:"
+    historyCursor = page.cursor;
+    
+    if (!historyAppend) {
+        if (page.entries.length === 0) {
+            container.innerHTML = '<div class="empty-state"><p>No activity yet</p></div>';
+            return;
+        }
+        container.innerHTML = '';
+    }
+    
+    const loadMore = document.getElementById('history-load-more');
+    if (loadMore) {
+        loadMore.remove();
     }
+    container.insertAdjacentHTML('beforeend', page.entries.map(renderHistoryEntry).join(''));
+    updateLoadMore(container, 'history-load-more', page.hasMore, 'loadHistory(false)');
+}
+
+function renderHistoryEntry(entry) {
+    const parts = entry.split('|');
+    const fileName = parts[0] || '';
+    const timestamp = parts[1] || '';
+    const action = parts[2] || '';
+    const status = parts[3] || '';
+    
+    const actionIcon = action.includes('upload') ? '⬆️' :
+                      action.includes('download') ? '⬇️' :
+                      action.includes('delete') ? '🗑️' : '📋';
+    
+    const isSuccess = status.toLowerCase().startsWith('success');
+    const statusColor = isSuccess ? 'var(--success-color)' : '#ef4444';
+    const borderColor = isSuccess ? 'var(--success-color)' : '#ef4444';
+    
+    return `
+        <div style="background: var(--bg-primary); border: 1px solid var(--border-color); border-left: 3px solid ${borderColor}; border-radius: 10px; padding: 12px 16px; margin-bottom: 8px; display: flex; align-items: center; gap: 12px;">
+            <div style="font-size: 20px;">${actionIcon}</div>
+            <div style="flex: 1; min-width: 0;">
+                <div style="font-weight: 600; font-size: 14px; color: var(--text-primary);">${action}</div>
+                <div style="font-size: 13px; color: var(--text-secondary); overflow: hidden; text-overflow: ellipsis; white-space: nowrap;">${fileName}</div>
+                <div style="font-size: 11px; color: var(--text-secondary); opacity: 0.7; margin-top: 2px;">${timestamp}</div>
+            </div>
+            <div style="font-size: 11px; font-weight: 600; text-transform: uppercase; padding: 4px 8px; border-radius: 4px; color: ${statusColor}; background: ${isSuccess ? 'rgba(52,211,153,0.1)' : 'rgba(239,68,68,0.1)'}; flex-shrink: 0;">${status}</div>
+        </div>
+    `;
 }
 
+const NO_MESSAGES_HTML = `
+    <div class="empty-state">
+        <svg width="64" height="64" viewBox="0 0 24 24" fill="none" stroke="currentColor" stroke-width="1">
+            <path d="M21 15a2 2 0 0 1-2 2H7l-4 4V5a2 2 0 0 1 2-2h14a2 2 0 0 1 2 2z"></path>
+        </svg>
+        <p>No unread messages</p>
+    </div>
+`;
+
 function parseMessages(message) {
     const container = document.getElementById('messages-container');
     
@@ -724,56 +864,60 @@ function parseMessages(message) {
     const messages = messagesData.split(';').filter(m => m.trim());
     
     if (messages.length === 0) {
-        container.innerHTML = `
-            <div class="empty-state">
-                <svg width="64" height="64" viewBox="0 0 24 24" fill="none" stroke="currentColor" stroke-width="1">
-                    <path d="M21 15a2 2 0 0 1-2 2H7l-4 4V5a2 2 0 0 1 2-2h14a2 2 0 0 1 2 2z"></path>
-                </svg>
-                <p>No unread messages</p>
-            </div>
-        `;
+        container.innerHTML = NO_MESSAGES_HTML;
     } else {
-        container.innerHTML = messages.map(msg => {
-            // Check if message is a file upload notification
-            const fileUploadPattern = /(.+) uploaded requested file '(.+)' \(Request ID: (.+)\)/;
-            const match = msg.match(fileUploadPattern);
-            
-            if (match) {
-                const uploader = match[1];
-                const filename = match[2];
-                const requestId = match[3];
-                const escapedMsg = msg.replace(/'/g, "\\'").replace(/"/g, '&quot;');
-                
-                return `
-                    <div class="message-card file-upload-notification">
-                        <div class="message-icon">📦</div>
-                        <div class="message-content">
-                            <div style="margin-bottom: 8px;">${msg}</div>
-                            <div class="message-actions">
-                                <button class="download-btn" onclick="downloadFromMessage('${uploader}', '${filename}', this)">
-                                    <svg width="16" height="16" viewBox="0 0 24 24" fill="none" stroke="currentColor" stroke-width="2">
-                                        <path d="M21 15v4a2 2 0 0 1-2 2H5a2 2 0 0 1-2-2v-4"></path>
-                                        <polyline points="7 10 12 15 17 10"></polyline>
-                                        <line x1="12" y1="15" x2="12" y2="3"></line>
-                                    </svg>
-                                    Download ${filename}
-                                </button>
-                                <button class="delete-msg-btn" onclick="deleteMessage('${escapedMsg}')" title="Delete message">
-                                    <svg width="16" height="16" viewBox="0 0 24 24" fill="none" stroke="currentColor" stroke-width="2">
-                                        <polyline points="3 6 5 6 21 6"></polyline>
-                                        <path d="M19 6v14a2 2 0 0 1-2 2H7a2 2 0 0 1-2-2V6m3 0V4a2 2 0 0 1 2-2h4a2 2 0 0 1 2 2v2"></path>
-                                    </svg>
-                                </button>
-                            </div>
-                        </div>
-                    </div>
-                `;
-            } else {
-                const escapedMsg = msg.replace(/'/g, "\\'").replace(/"/g, '&quot;');
-                return `
-                    <div class="message-card">
-                        <div class="message-icon">📩</div>
-                        <div class="message-content">${msg}</div>
+        container.innerHTML = messages.map(renderMessage).join('');
+    }
+}
+
+// MESSAGES_PAGE:<nextCursor>|<hasMore>|<id>~<text>;... (oldest first)
+function parseMessagesPage(message) {
+    const container = document.getElementById('messages-container');
+    const page = parsePage(message.substring(14)); // Remove "MESSAGES_PAGE:"
+    messagesCursor = parseInt(page.cursor);
+    
+    if (!messagesAppend) {
+        if (page.entries.length === 0) {
+            container.innerHTML = NO_MESSAGES_HTML;
+            return;
+        }
+        container.innerHTML = '';
+    }
+    
+    const loadMore = document.getElementById('messages-load-more');
+    if (loadMore) {
+        loadMore.remove();
+    }
+    const messages = page.entries.map(entry => entry.substring(entry.indexOf('~') + 1));
+    container.insertAdjacentHTML('beforeend', messages.map(renderMessage).join(''));
+    updateLoadMore(container, 'messages-load-more', page.hasMore, 'loadMessages(false)');
+}
+
+function renderMessage(msg) {
+    // Check if message is a file upload notification
+    const fileUploadPattern = /(.+) uploaded requested file '(.+)' \(Request ID: (.+)\)/;
+    const match = msg.match(fileUploadPattern);
+    
+    if (match) {
+        const uploader = match[1];
+        const filename = match[2];
+        const requestId = match[3];
+        const escapedMsg = msg.replace(/'/g, "\\'").replace(/"/g, '&quot;');
+        
+        return `
+            <div class="message-card file-upload-notification">
+                <div class="message-icon">📦</div>
+                <div class="message-content">
+                    <div style="margin-bottom: 8px;">${msg}</div>
+                    <div class="message-actions">
+                        <button class="download-btn" onclick="downloadFromMessage('${uploader}', '${filename}', this)">
+                            <svg width="16" height="16" viewBox="0 0 24 24" fill="none" stroke="currentColor" stroke-width="2">
+                                <path d="M21 15v4a2 2 0 0 1-2 2H5a2 2 0 0 1-2-2v-4"></path>
+                                <polyline points="7 10 12 15 17 10"></polyline>
+                                <line x1="12" y1="15" x2="12" y2="3"></line>
+                            </svg>
+                            Download ${filename}
+                        </button>
                         <button class="delete-msg-btn" onclick="deleteMessage('${escapedMsg}')" title="Delete message">
                             <svg width="16" height="16" viewBox="0 0 24 24" fill="none" stroke="currentColor" stroke-width="2">
                                 <polyline points="3 6 5 6 21 6"></polyline>
@@ -781,9 +925,23 @@ function parseMessages(message) {
                             </svg>
                         </button>
                     </div>
-                `;
-            }
-        }).join('');
+                </div>
+            </div>
+        `;
+    } else {
+        const escapedMsg = msg.replace(/'/g, "\\'").replace(/"/g, '&quot;');
+        return `
+            <div class="message-card">
+                <div class="message-icon">📩</div>
+                <div class="message-content">${msg}</div>
+                <button class="delete-msg-btn" onclick="deleteMessage('${escapedMsg}')" title="Delete message">
+                    <svg width="16" height="16" viewBox="0 0 24 24" fill="none" stroke="currentColor" stroke-width="2">
+                        <polyline points="3 6 5 6 21 6"></polyline>
+                        <path d="M19 6v14a2 2 0 0 1-2 2H7a2 2 0 0 1-2-2V6m3 0V4a2 2 0 0 1 2-2h4a2 2 0 0 1 2 2v2"></path>
+                    </svg>
+                </button>
+            </div>
+        `;
     }
 }
 
@@ -908,7 +1066,7 @@ function completeDownload() {
         window.pendingMessageDelete = null;
         
         // Refresh messages view after a short delay
-        setTimeout(() => sendCommand('VIEW_MESSAGES:'), 500);
+        setTimeout(() => loadMessages(true), 500);
     }
     
     window.currentDownload = null;
@@ -13,6 +13,13 @@ const JAVA_SERVER_HOST = 'localhost';
 const JAVA_SERVER_PORT = 8000;
 const WEB_SERVER_PORT = 3000;
 
+// Protocol v2 frames: type (1 byte) | requestId (4 bytes) | length (4 bytes) | payload
+const PROTOCOL_HELLO = 'PROTOCOL:2';
+const FRAME_TEXT = 1;
+const FRAME_DATA = 2;
+const FRAME_PUSH = 3;
+const FRAME_HEADER_SIZE = 9;
+
 // Serve static files
 app.use(express.static(path.join(__dirname, 'public')));
 app.use(express.json());
@@ -27,6 +34,17 @@ io.on('connection', (webSocket) => {
     let javaSocket = null;
     let username = null;
     let authenticated = false;
+    let framed = false;         // Server confirmed v2, everything after SUCCESS is a frame
+    let nextRequestId = 0;
+    let lastRequestId = 0;      // Upload chunk data belongs to the last command sent
+    
+    function sendFrame(type, requestId, payload) {
+        const header = Buffer.alloc(FRAME_HEADER_SIZE);
+        header.writeUInt8(type, 0);
+        header.writeInt32BE(requestId, 1);
+        header.writeInt32BE(payload.length, 5);
+        javaSocket.write(Buffer.concat([header, payload]));
+    }
     
     // Connect to Java server
     webSocket.on('connect-server', (data) => {
@@ -41,8 +59,9 @@ io.on('connection', (webSocket) => {
         javaSocket.connect(JAVA_SERVER_PORT, JAVA_SERVER_HOST, () => {
             console.log(`Connected to Java server for user: ${username}`);
             
-            // Send auth mode, username and password
+            // Ask for protocol v2, then send auth mode, username and password
             const authMode = data.authMode || 'LOGIN';
+            javaSocket.write(PROTOCOL_HELLO + '\n');
             javaSocket.write(authMode + '\n');
             javaSocket.write(username + '\n');
             javaSocket.write(password + '\n');
@@ -56,137 +75,90 @@ io.on('connection', (webSocket) => {
             }
         });
         
-        // Handle data from Java server
-        let downloadMode = false;
-        let downloadBuffer = Buffer.alloc(0);
-        let expectedFileSize = 0;
+        // Handle data from Java server: plain lines during the handshake, frames afterwards
+        let inBuffer = Buffer.alloc(0);
+        let protocolAccepted = false;
         let receivedBytes = 0;
         
         javaSocket.on('data', (data) => {
-            if (downloadMode) {
-                downloadBuffer = Buffer.concat([downloadBuffer, data]);
+            inBuffer = Buffer.concat([inBuffer, data]);
+            if (!framed) {
+                processHandshake();
+            }
+            if (framed) {
+                processFrames();
+            }
+        });
+        
+        // Handshake replies arrive in arbitrary TCP chunks, only complete lines are handled
+        function processHandshake() {
+            let newline;
+            
+            while (!framed && (newline = inBuffer.indexOf('\n')) !== -1) {
+                const line = inBuffer.slice(0, newline).toString('utf-8').replace(/\r$/, '');
+                inBuffer = inBuffer.slice(newline + 1);
                 
-                // Process chunks: each chunk has 4-byte length prefix + data
-                while (downloadBuffer.length >= 4) {
-                    // Check for DOWNLOAD_COMPLETE text message
-                    // It might be at the end of the buffer as text
-                    const bufferStr = downloadBuffer.toString('utf-8');
-                    const completeIdx = bufferStr.indexOf('DOWNLOAD_COMPLETE');
-                    
-                    if (completeIdx === 0) {
-                        // Download complete signal at start
-                        downloadMode = false;
-                        webSocket.emit('server-message', { message: 'DOWNLOAD_COMPLETE' });
-                        console.log('Download complete, received', receivedBytes, 'bytes');
-                        
-                        // Handle remaining data after DOWNLOAD_COMPLETE\n
-                        const remaining = downloadBuffer.slice('DOWNLOAD_COMPLETE\n'.length);
-                        downloadBuffer = Buffer.alloc(0);
-                        if (remaining.length > 0) {
-                            const text = remaining.toString('utf-8').trim();
-                            if (text) {
-                                webSocket.emit('server-message', { message: text });
-                            }
-                        }
-                        break;
-                    }
-                    
-                    // Read 4-byte chunk length (big-endian int)
-                    const chunkLen = downloadBuffer.readInt32BE(0);
-                    
-                    // Sanity check - if chunk length looks invalid, it might be text
-                    if (chunkLen < 0 || chunkLen > 1000000) {
-                        // Try to parse as text - might be DOWNLOAD_COMPLETE or error
-                        const text = downloadBuffer.toString('utf-8');
-                        if (text.includes('DOWNLOAD_COMPLETE')) {
-                            downloadMode = false;
-                            webSocket.emit('server-message', { message: 'DOWNLOAD_COMPLETE' });
-                            downloadBuffer = Buffer.alloc(0);
-                            console.log('Download complete (text detected)');
-                        } else {
-                            console.log('Unexpected data in download mode:', text.substring(0, 100));
-                            webSocket.emit('server-message', { message: text });
-                            downloadBuffer = Buffer.alloc(0);
-                            downloadMode = false;
-                        }
-                        break;
-                    }
-                    
-                    // Wait for full chunk if not enough data
-                    if (downloadBuffer.length < 4 + chunkLen) {
-                        break;
-                    }
-                    
-                    // Extract chunk data
-                    const chunkData = downloadBuffer.slice(4, 4 + chunkLen);
-                    receivedBytes += chunkLen;
-                    
-                    // Send to web client
-                    webSocket.emit('binary-data', {
-                        data: chunkData.toString('base64'),
-                        bytes: chunkLen
-                    });
-                    
-                    // Remove processed data from buffer
-                    downloadBuffer = downloadBuffer.slice(4 + chunkLen);
+                if (line === PROTOCOL_HELLO) {
+                    protocolAccepted = true;
+                } else if (line.trim()) {
+                    handleTextMessage(line);
+                    framed = protocolAccepted && line.startsWith('SUCCESS:');
+                }
+            }
+        }
+        
+        // Every frame says what it is and how long it is, nothing has to be guessed
+        function processFrames() {
+            while (inBuffer.length >= FRAME_HEADER_SIZE) {
+                const type = inBuffer.readUInt8(0);
+                const length = inBuffer.readInt32BE(5);
+                if (inBuffer.length < FRAME_HEADER_SIZE + length) {
+                    break;  // Wait for the rest of the payload
                 }
-            } else {
-                // Text mode - might contain mixed messages
-                let buffer = data;
                 
-                // Check if this data contains DOWNLOAD_START
-                const text = buffer.toString('utf-8');
+                const payload = inBuffer.slice(FRAME_HEADER_SIZE, FRAME_HEADER_SIZE + length);
+                inBuffer = inBuffer.slice(FRAME_HEADER_SIZE + length);
                 
-                if (text.includes('DOWNLOAD_START:')) {
-                    // Extract DOWNLOAD_START message
-                    const lines = text.split('\n');
-                    let binaryDataStart = 0;
-                    
-                    for (const line of lines) {
-                        if (line.startsWith('DOWNLOAD_START:')) {
-                            webSocket.emit('server-message', { message: line });
-                            
-                            // Parse file size
-                            const parts = line.substring(15).split('|');
-                            expectedFileSize = parseInt(parts[1]);
-                            receivedBytes = 0;
-                            downloadMode = true;
-                            
-                            console.log('Entering download mode, expected size:', expectedFileSize);
-                        } else if (line.trim()) {
-                            webSocket.emit('server-message', { message: line });
-                        }
-                        binaryDataStart += line.length + 1; // +1 for newline
-                    }
-                    
-                    // Check if there's binary data after the text
-                    if (downloadMode && binaryDataStart < buffer.length) {
-                        downloadBuffer = buffer.slice(binaryDataStart);
+                if (type === FRAME_DATA) {
+                    receivedBytes += length;
+                    webSocket.emit('binary-data', {
+                        data: payload.toString('base64'),
+                        bytes: length
+                    });
+                } else if (type === FRAME_TEXT || type === FRAME_PUSH) {
+                    const message = payload.toString('utf-8');
+                    if (message.startsWith('DOWNLOAD_START:')) {
+                        receivedBytes = 0;
+                    } else if (message === 'DOWNLOAD_COMPLETE') {
+                        console.log('Download complete, received', receivedBytes, 'bytes');
                     }
+                    handleTextMessage(message);
                 } else {
-                    // Regular text message handling
-                    const message = text;
-                    console.log(`Message from Java server for ${username}:`, message.substring(0, 100));
-                    
-                    // Handle SUCCESS/ERROR messages from Java server
-                    if (message.startsWith('SUCCESS:') && !authenticated) {
-                        authenticated = true;
-                        connections.set(webSocket.id, { webSocket, javaSocket, username });
-                        webSocket.emit('connection-success', { message: message.substring(8) });
-                        webSocket.emit('server-message', { message });
-                    } else if (message.startsWith('ERROR:') && !authenticated) {
-                        // Only treat ERROR as connection failure during login
-                        webSocket.emit('connection-error', { message: message.substring(6) });
-                        webSocket.emit('server-message', { message });
-                        if (!javaSocket.destroyed) {
-                            javaSocket.destroy();
-                        }
-                    } else {
-                        webSocket.emit('server-message', { message });
-                    }
+                    console.log('Ignoring frame of unknown type', type);
                 }
             }
-        });
+        }
+        
+        function handleTextMessage(message) {
+            console.log(`Message from Java server for ${username}:`, message.substring(0, 100));
+            
+            // Handle SUCCESS/ERROR messages from Java server
+            if (message.startsWith('SUCCESS:') && !authenticated) {
+                authenticated = true;
+                connections.set(webSocket.id, { webSocket, javaSocket, username });
+                webSocket.emit('connection-success', { message: message.substring(8) });
+                webSocket.emit('server-message', { message });
+            } else if (message.startsWith('ERROR:') && !authenticated) {
+                // Only treat ERROR as connection failure during login
+                webSocket.emit('connection-error', { message: message.substring(6) });
+                webSocket.emit('server-message', { message });
+                if (!javaSocket.destroyed) {
+                    javaSocket.destroy();
+                }
+            } else {
+                webSocket.emit('server-message', { message });
+            }
+        }
         
         javaSocket.on('error', (error) => {
             console.error('Java socket error:', error);
@@ -211,19 +183,33 @@ io.on('connection', (webSocket) => {
             const cmd = data.command.toString().trim();
             if (cmd) {
                 console.log(`Sending command to Java server for ${username}: "${cmd}"`);
-                javaSocket.write(cmd + '\n');
+                if (framed) {
+                    lastRequestId = ++nextRequestId;
+                    sendFrame(FRAME_TEXT, lastRequestId, Buffer.from(cmd, 'utf-8'));
+                } else {
+                    javaSocket.write(cmd + '\n');
+                }
             } else {
                 console.log(`Ignoring empty command for ${username}`);
             }
         }
     });
     
+    // Payload of the last UPLOAD_CHUNK command, a DATA frame in v2
+    function writeData(buffer) {
+        if (framed) {
+            sendFrame(FRAME_DATA, lastRequestId, buffer);
+        } else {
+            javaSocket.write(buffer);
+        }
+    }
+    
     // Handle file upload
     webSocket.on('upload-file', (data) => {
         if (javaSocket && !javaSocket.destroyed) {
             // Send file data as binary
             const buffer = Buffer.from(data.fileData, 'base64');
-            javaSocket.write(buffer);
+            writeData(buffer);
         }
     });
     
@@ -233,7 +219,7 @@ io.on('connection', (webSocket) => {
             // Convert base64 to binary and send to Java server
             const buffer = Buffer.from(data.data, 'base64');
             console.log(`Sending chunk data: ${buffer.length} bytes`);
-            javaSocket.write(buffer);
+            writeData(buffer);
         }
     });
     